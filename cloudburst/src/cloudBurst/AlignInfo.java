@@ -7,9 +7,7 @@ public class AlignInfo {
 	public int [] what;
 	public int distlen;
 	
-	private static final StringBuilder builder = new StringBuilder();
-	
-	
+
 	//------------------------- Constructor --------------------------
 	public AlignInfo(int len, int k, int [] pdist, int [] pwhat, int dlen)
 	{
@@ -133,7 +131,7 @@ public class AlignInfo {
 	//------------------------- toString --------------------------
 	public String toString()
 	{
-		builder.setLength(0);
+		StringBuilder builder = new StringBuilder();
 		
 		builder.append(alignlen);    builder.append(';');
 		builder.append(differences); builder.append(';');
@@ -0,0 +1,59 @@
+package cloudBurst;
+
+
+/// The settings of one alignment job, for CloudBurst.alignall and alignmap,
+/// and for the SeedStore of its reference seeds.
+/// Set by name rather than passed by position, so two settings of the same
+/// type can't be swapped at the call site. The defaults are the ones of the
+/// CloudBurst command line. Each cascade pass aligns with a copy() that
+/// changes the reads, the output, K and SKIP_N_READS.
+
+public class AlignOptions implements Cloneable
+{
+	public String  refpath            = null;
+	public String  qrypath            = null;
+	public String  outpath            = null;
+
+	public int     MIN_READ_LEN       = 0;
+	public int     MAX_READ_LEN       = 0;
+	public int     K                  = 0;
+	public int     ALLOW_DIFFERENCES  = 0;
+	public boolean FILTER_ALIGNMENTS  = false;
+
+	public int     NUM_MAP_TASKS      = 1;
+	public int     NUM_REDUCE_TASKS   = 1;
+	public int     BLOCK_SIZE         = 128;
+	public int     REDUNDANCY         = 1;
+	public int     DIFF_ENGINE        = LandauVishkin.ENGINE_LANDAU_VISHKIN;
+	public int     REDUCE_THREADS     = 1;
+	public long    PARALLEL_MIN_PAIRS = 1000000;
+	public int     MAP_THREADS        = 1;
+	public long    HOT_MIN            = 0;
+	public int     HOT_SAMPLE         = 100;
+	public String  SEED_STORE         = null;
+	public int     SPILL_MB           = -1;
+	public boolean FLANK_CACHE        = false;
+	public boolean CANONICAL          = false;
+	public int     MINIMIZER_W        = 0;
+	public String  SPACED_SEED        = null;
+	public boolean REF_POINTERS       = false;
+	public boolean RECORD_V2          = false;
+	public boolean GROUP_REFS         = false;
+	public int     READ_FILTER_MB     = 0;
+	public String  READ_COPIES        = null;
+	public boolean SKIP_N_READS       = false;
+
+
+	//------------------------- copy --------------------------
+	public AlignOptions copy()
+	{
+		try
+		{
+			return (AlignOptions) clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package cloudBurst;
+
+import java.io.IOException;
+
+
+/// Extends shared seeds into end-to-end alignments. An Aligner owns all of
+/// its scratch buffers and result objects, so each thread can use its own
+/// Aligner without any shared mutable state.
+
+public class Aligner {
+
+	private AlignmentRecord noalignment   = new AlignmentRecord(-1, -1, -1, -1, true);
+	private AlignmentRecord fullalignment = new AlignmentRecord();
+
+	private LandauVishkin lv;
+
+	// the arena query the bit-vector match vectors may have been built for
+	private TupleArena lastqry = null;
+	private int lastqi = -1;
+	private long laststamp = -1;
+
+	private int K;
+	private int SEED_LEN;
+	private boolean ALLOW_DIFFERENCES;
+
+	// with minimizer seeding, the minimizer length and the flank length of the
+	// exhaustive tuples, and scratch for the flanks cut back to the seed block
+	private int KEY_LEN = 0;
+	private int FLANK_LEN;
+	private byte [][] cut = new byte[4][];
+
+	// with spaced seeds, the mask and the read windows seeded with it, and
+	// scratch for the read positions of the mismatches
+	private SpacedSeed spaced = null;
+	private int [] spacedoffsets;
+	private int [] mmpos;
+
+
+	//------------------------- Constructor --------------------------
+	// aligner for up to k differences (or mismatches) around a seed of seedlen
+
+	public Aligner(int k, int seedlen, boolean allowdifferences, int diffengine)
+	{
+		K                 = k;
+		SEED_LEN          = seedlen;
+		ALLOW_DIFFERENCES = allowdifferences;
+
+		lv = new LandauVishkin(K, diffengine);
+	}
+
+
+	//------------------------- setMinimizer --------------------------
+	// Use extendMinimizer for tuples anchored at minimizers of keylen bp
+
+	public void setMinimizer(int keylen, int flanklen)
+	{
+		KEY_LEN   = keylen;
+		FLANK_LEN = flanklen;
+
+		for (int i = 0; i < 4; i++)
+		{
+			cut[i] = new byte[DNAString.arrToDNALen(FLANK_LEN + SEED_LEN)];
+		}
+	}
+
+
+	//------------------------- setSpaced --------------------------
+	// Use extendSpaced for tuples seeded with a spaced seed at the read offsets
+
+	public void setSpaced(SpacedSeed s, int [] offsets)
+	{
+		spaced        = s;
+		spacedoffsets = offsets;
+		mmpos         = new int[K+1];
+	}
+
+
+	//------------------------- extend --------------------------
+	// Given an exact shared seed, try to extend to a full length alignment.
+	// The returned record is reused by the next call, and has
+	// m_differences == -1 if the alignment failed.
+	//
+	// The alignment is only found if it has at most maxk <= K differences, so
+	// a caller that only keeps the best alignments can stop the extension as
+	// soon as it can't beat them. Within maxk the alignment is the same as
+	// with K, since LV and the bit-vector engine find the fewest differences.
+
+	public AlignmentRecord extend(MerRecord qrytuple, MerRecord reftuple) throws IOException
+	{
+		return extend(qrytuple, reftuple, K);
+	}
+
+	public AlignmentRecord extend(MerRecord qrytuple, MerRecord reftuple, int maxk) throws IOException
+	{
+		return extend(qrytuple.leftFlank, 0, qrytuple.leftFlank.length,
+				      qrytuple.rightFlank, 0, qrytuple.rightFlank.length,
+				      qrytuple.id, qrytuple.isRC,
+				      reftuple.leftFlank, 0, reftuple.leftFlank.length,
+				      reftuple.rightFlank, 0, reftuple.rightFlank.length,
+				      reftuple.id, reftuple.offset, maxk);
+	}
+
+
+	//------------------------- extend --------------------------
+	// Same, for query qi and reference tuple ri, reading the flanks in place
+
+	public AlignmentRecord extend(TupleArena qa, int qi, TupleArena ra, int ri, int maxk) throws IOException
+	{
+		// the arena slabs are reused, so only trust the cached pattern for the same query
+		if ((qa != lastqry) || (qi != lastqi) || (qa.stamp() != laststamp))
+		{
+			lv.resetPattern();
+			lastqry   = qa;
+			lastqi    = qi;
+			laststamp = qa.stamp();
+		}
+
+		byte [] qs = qa.slab();
+		byte [] rs = ra.slab();
+
+		return extend(qs, qa.leftStart(qi), qa.leftLen(qi),
+				      qs, qa.rightStart(qi), qa.rightLen(qi),
+				      qa.id(qi), qa.isRC(qi),
+				      rs, ra.leftStart(ri), ra.leftLen(ri),
+				      rs, ra.rightStart(ri), ra.rightLen(ri),
+				      ra.id(ri), ra.offset(ri), maxk);
+	}
+
+
+	//------------------------- extendMinimizer --------------------------
+	// Same, for tuples anchored at a shared minimizer. The read tuple's offset
+	// gives the offset o of the minimizer in its seed block. Check that the
+	// whole block matches the reference around the minimizer, then cut the
+	// flanks back to the block, so the alignment is exactly the one exhaustive
+	// seeding would find from the same block.
+
+	public AlignmentRecord extendMinimizer(TupleArena qa, int qi, TupleArena ra, int ri, int maxk) throws IOException
+	{
+		byte [] qs = qa.slab();
+		byte [] rs = ra.slab();
+
+		int o    = qa.offset(qi) % SEED_LEN;
+		int post = SEED_LEN - KEY_LEN - o;
+
+		int ql = qa.leftStart(qi),  qr = qa.rightStart(qi);
+		int rl = ra.leftStart(ri),  rr = ra.rightStart(ri);
+
+		int rleftbp  = DNAString.dnaArrLen(rs, rl, ra.leftLen(ri));
+		int rrightbp = DNAString.dnaArrLen(rs, rr, ra.rightLen(ri));
+
+		// the block runs off the reference
+		if ((rleftbp < o) || (rrightbp < post)) { return noalignment; }
+
+		// the flanks read away from the minimizer, so the block starts at 0 in both
+		for (int i = 0; i < o; i++)
+		{
+			if (base(qs, ql, i) != base(rs, rl, i)) { return noalignment; }
+		}
+
+		for (int i = 0; i < post; i++)
+		{
+			if (base(qs, qr, i) != base(rs, rr, i)) { return noalignment; }
+		}
+
+		int qleftbp  = DNAString.dnaArrLen(qs, ql, qa.leftLen(qi))  - o;
+		int qrightbp = DNAString.dnaArrLen(qs, qr, qa.rightLen(qi)) - post;
+
+		int qlb = cut(qs, ql, o,    qleftbp,  cut[0]);
+		int qrb = cut(qs, qr, post, qrightbp, cut[1]);
+		int rlb = cut(rs, rl, o,    Math.min(FLANK_LEN, rleftbp - o),     cut[2]);
+		int rrb = cut(rs, rr, post, Math.min(FLANK_LEN, rrightbp - post), cut[3]);
+
+		// the scratch arrays are reused for every pair
+		lv.resetPattern();
+		lastqry = null;
+
+		return extend(cut[0], 0, qlb,
+				      cut[1], 0, qrb,
+				      qa.id(qi), qa.isRC(qi),
+				      cut[2], 0, rlb,
+				      cut[3], 0, rrb,
+				      ra.id(ri), ra.offset(ri) - o, maxk);
+	}
+
+
+	//------------------------- extendSpaced --------------------------
+	// Same, for a shared spaced seed, k-mismatch only. Only the care positions
+	// of the read window at its offset o are known to match, so both right
+	// flanks start at the window and its don't care positions are checked
+	// with the rest of the read. Like the Baeza-Yates check for contiguous
+	// seeds, only the first read window with exact care positions reports
+	// the alignment, so it is reported once.
+
+	public AlignmentRecord extendSpaced(TupleArena qa, int qi, TupleArena ra, int ri, int maxk) throws IOException
+	{
+		byte [] qs = qa.slab();
+		byte [] rs = ra.slab();
+
+		int o   = qa.offset(qi);
+		int nmm = 0;
+		int differences = 0;
+
+		try
+		{
+			if (qa.leftLen(qi) != 0)
+			{
+				AlignInfo a = lv.extend(rs, ra.leftStart(ri), ra.leftLen(ri),
+						                qs, qa.leftStart(qi), qa.leftLen(qi),
+						                maxk, false);
+
+				if ((a.alignlen == -1) || (a.alignlen < o)) { return noalignment; }
+
+				// the left flank is reversed, so its base p is read base o-1-p
+				for (int d = 0, p = 0; d < a.differences; d++)
+				{
+					p += a.dist[d];
+					mmpos[nmm++] = o - 1 - p;
+				}
+
+				differences = a.differences;
+			}
+
+			AlignInfo b = lv.extend(rs, ra.rightStart(ri), ra.rightLen(ri),
+					                qs, qa.rightStart(qi), qa.rightLen(qi),
+					                maxk - differences, false);
+
+			if (b.alignlen == -1) { return noalignment; }
+
+			// kmismatch_bin lets the last read base hang off the end of the reference
+			if (b.alignlen < DNAString.dnaArrLen(qs, qa.rightStart(qi), qa.rightLen(qi))) { return noalignment; }
+
+			for (int d = 0, p = 0; d < b.differences; d++)
+			{
+				p += b.dist[d];
+				mmpos[nmm++] = o + p;
+			}
+
+			if (!firstSpacedWindow(qs, qa.leftStart(qi), qa.rightStart(qi), o, nmm)) { return noalignment; }
+
+			fullalignment.m_refID       = ra.id(ri);
+			fullalignment.m_refStart    = ra.offset(ri) - o;
+			fullalignment.m_refEnd      = ra.offset(ri) + b.alignlen;
+			fullalignment.m_differences = differences + b.differences;
+			fullalignment.m_isRC        = qa.isRC(qi);
+
+			return fullalignment;
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Problem with read:" + qa.id(qi) + " :" + e.getMessage() + "\n" + MerReduce.getStackTrace(e));
+		}
+	}
+
+
+	//------------------------- firstSpacedWindow --------------------------
+	// true if no read window before o has all of its care positions free of
+	// the nmm mismatches in mmpos and of N's. Such a window was seeded too, and
+	// reports the alignment instead
+
+	private boolean firstSpacedWindow(byte [] qs, int qleft, int qright, int o, int nmm)
+	{
+		for (int w : spacedoffsets)
+		{
+			if (w >= o) { return true; }
+
+			boolean exact = true;
+
+			for (int c : spaced.care())
+			{
+				int j = w + c;
+				int b = (j < o) ? base(qs, qleft, o - 1 - j) : base(qs, qright, j - o);
+
+				boolean mm = (b == DNAString.dna_n);
+				for (int m = 0; !mm && (m < nmm); m++) { mm = (mmpos[m] == j); }
+
+				if (mm) { exact = false; break; }
+			}
+
+			if (exact) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- base --------------------------
+	// The i'th packed base of the flank at buf[start]
+
+	private static int base(byte [] buf, int start, int i)
+	{
+		int b = buf[start + (i >> 1)];
+		return ((i & 1) == 0) ? ((b >> 4) & 0x0F) : (b & 0x0F);
+	}
+
+
+	//------------------------- cut --------------------------
+	// Repack len bases of the flank at buf[start], starting from base from,
+	// into out. Returns the packed length
+
+	private static int cut(byte [] buf, int start, int from, int len, byte [] out)
+	{
+		int bytes = DNAString.arrToDNALen(len);
+
+		for (int i = 0; i < len; i += 2)
+		{
+			int hi = base(buf, start, from + i);
+			int lo = (i + 1 < len) ? base(buf, start, from + i + 1) : DNAString.space;
+			out[i >> 1] = (byte) ((hi << 4) | lo);
+		}
+
+		return bytes;
+	}
+
+
+	//------------------------- extend --------------------------
+	// the alignment itself, on flanks given as (buffer, offset, length in bytes)
+
+	private AlignmentRecord extend(byte [] qleft,  int qleftoff,  int qleftlen,
+			                       byte [] qright, int qrightoff, int qrightlen,
+			                       int qryid, boolean isRC,
+			                       byte [] rleft,  int rleftoff,  int rleftlen,
+			                       byte [] rright, int rrightoff, int rrightlen,
+			                       int refid, int refoffset, int maxk) throws IOException
+	{
+		int refStart    = refoffset;
+		int refEnd      = refoffset + SEED_LEN;
+		int differences = 0;
+
+		try
+		{
+			if (qleftlen != 0)
+			{
+				// at least 1 read base on the left needs to be aligned
+				int realleftflanklen = DNAString.dnaArrLen(qleft, qleftoff, qleftlen);
+
+				// aligned the pre-reversed strings!
+				AlignInfo a = lv.score(rleft, rleftoff, rleftlen,
+						               qleft, qleftoff, qleftlen,
+						               maxk, ALLOW_DIFFERENCES);
+
+				if (a.alignlen == -1) { return noalignment; } // alignment failed
+
+				// the seed is only the first exact one if every seed sized block to
+				// its left has a difference, so only trace back when that's possible
+				if (a.differences < realleftflanklen / SEED_LEN) { return noalignment; }
+
+				lv.traceback();
+				if (!a.isBazeaYatesSeed(realleftflanklen, SEED_LEN)) { return noalignment; }
+
+				refStart    -= a.alignlen;
+				differences = a.differences;
+			}
+
+			if (qrightlen != 0)
+			{
+				AlignInfo b = lv.score(rright, rrightoff, rrightlen,
+						               qright, qrightoff, qrightlen,
+						               maxk - differences,
+						               ALLOW_DIFFERENCES);
+
+				if (b.alignlen == -1) {	return noalignment;	} // alignment failed
+
+				refEnd      += b.alignlen;
+				differences += b.differences;
+			}
+
+			fullalignment.m_refID       = refid;
+			fullalignment.m_refStart    = refStart;
+			fullalignment.m_refEnd      = refEnd;
+			fullalignment.m_differences = differences;
+			fullalignment.m_isRC        = isRC;
+
+			return fullalignment;
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Problem with read:" + qryid + " :" + e.getMessage() + "\n" + MerReduce.getStackTrace(e));
+		}
+	}
+}
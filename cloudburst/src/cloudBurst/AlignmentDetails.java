@@ -0,0 +1,423 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.TextOutputFormat;
+
+
+/// Mismatch and indel positions of the reported alignments (CloudBurst -details).
+///
+/// The aligners only keep the number of differences, since most candidate
+/// alignments are thrown away by FilterAlignments. This pass runs after the
+/// filter, so the transcripts are only worked out for the alignments that
+/// are reported. The reads are joined to their alignments by read id in the
+/// shuffle, and the reference bases are read from the memory mapped
+/// RefFlanks file, so there is no per alignment lookup into the .br files.
+///
+/// Each alignment is written as a line of PrintAlignments output followed by
+/// an extended CIGAR string of the read against the reference strand: =
+/// match, X mismatch, I a base only in the read, D a base only in the
+/// reference, S a read base past the end of the reference. k-mismatch
+/// alignments are ungapped. k-difference alignments use the fewest edits
+/// between the read and the reported reference range, and only clip the end
+/// of a read when the range runs to the end of the reference.
+
+public class AlignmentDetails {
+
+	private static final byte READ_TAG  = 0;
+	private static final byte ALIGN_TAG = 1;
+
+
+	//------------------------- DetailMapClass --------------------------
+	// Send the reads and the alignments to the reducer of their read id. The
+	// reads collapsed by ConvertFastaForCloud -dedup are sent for their copies
+	// too, since the filter reported the alignments for them
+
+	public static class DetailMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		private boolean ISREAD;
+		private ReadCopies.Collector copies = null;
+		private BytesWritable tagged = new BytesWritable();
+		private byte [] buffer = new byte[1024];
+
+		public void configure(JobConf conf)
+		{
+			ISREAD = (conf.get("map.input.file").indexOf(conf.get("qrypath")) != -1);
+
+			String copiespath = conf.get("READ_COPIES_PATH");
+			if ((copiespath != null) && ISREAD)
+			{
+				try
+				{
+					copies = ReadCopies.load(conf, copiespath).collector(null);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't load read copies from " + copiespath + ": " + e.getMessage());
+				}
+			}
+		}
+
+		public void map(IntWritable id, BytesWritable value,
+				OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException
+		{
+			int len = value.getSize();
+			if (len + 1 > buffer.length) { buffer = new byte[2 * (len + 1)]; }
+
+			buffer[0] = ISREAD ? READ_TAG : ALIGN_TAG;
+			System.arraycopy(value.get(), 0, buffer, 1, len);
+			tagged.set(buffer, 0, len + 1);
+
+			if (copies != null)
+			{
+				copies.setOutput(output);
+				output = copies;
+			}
+
+			output.collect(id, tagged);
+		}
+	}
+
+
+	//------------------------- DetailReduceClass --------------------------
+	// Work out the transcript of each alignment of a read
+
+	public static class DetailReduceClass extends MapReduceBase implements
+			Reducer<IntWritable, BytesWritable, Text, Text>
+	{
+		private boolean ALLOW_DIFFERENCES;
+		private RefFlanks flanks;
+
+		private FastaRecord read = new FastaRecord();
+		private List<AlignmentRecord> alignments = new ArrayList<AlignmentRecord>();
+		private int numalignments = 0;
+
+		private BytesWritable untagged = new BytesWritable();
+		private Text line = new Text();
+		private Text cigar = new Text();
+
+		private byte [] qry = new byte[256];
+		private byte [] ref = new byte[256];
+		private Transcript transcript = new Transcript();
+
+		public void configure(JobConf conf)
+		{
+			ALLOW_DIFFERENCES = Integer.parseInt(conf.get("ALLOW_DIFFERENCES")) == 1;
+
+			try
+			{
+				flanks = RefFlanks.load(conf, conf.get("REF_FLANKS_PATH"));
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Can't load reference from " + conf.get("REF_FLANKS_PATH") + ": " + e.getMessage());
+			}
+		}
+
+		public void reduce(IntWritable readid, Iterator<BytesWritable> values,
+				OutputCollector<Text, Text> output, Reporter reporter) throws IOException
+		{
+			boolean haveread = false;
+			numalignments = 0;
+
+			while (values.hasNext())
+			{
+				BytesWritable v = values.next();
+				untagged.set(v.get(), 1, v.getSize() - 1);
+
+				if (v.get()[0] == READ_TAG)
+				{
+					read.fromBytes(untagged);
+					haveread = true;
+				}
+				else
+				{
+					if (numalignments == alignments.size()) { alignments.add(new AlignmentRecord()); }
+					alignments.get(numalignments++).fromBytes(untagged);
+				}
+			}
+
+			for (int a = 0; a < numalignments; a++)
+			{
+				AlignmentRecord rec = alignments.get(a);
+
+				line.set(rec.toAlignment(readid.get()));
+
+				if (!haveread)
+				{
+					cigar.set("*");
+				}
+				else
+				{
+					int m = read.m_sequence.length;
+					int n = rec.m_refEnd - rec.m_refStart;
+
+					if (m > qry.length) { qry = new byte[2 * m]; }
+					if (n > ref.length) { ref = new byte[2 * n]; }
+
+					for (int i = 0; i < m; i++)
+					{
+						byte b = rec.m_isRC ? DNAString.rc(read.m_sequence[m - 1 - i]) : read.m_sequence[i];
+						qry[i] = DNAString.letterToDNA[b & 0xFF];
+					}
+
+					flanks.bases(rec.m_refID, rec.m_refStart, n, ref);
+					boolean atend = (rec.m_refEnd == flanks.length(rec.m_refID));
+
+					if (ALLOW_DIFFERENCES) { cigar.set(transcript.differences(qry, m, ref, n, rec.m_differences, atend)); }
+					else                   { cigar.set(transcript.mismatches(qry, m, ref, n)); }
+				}
+
+				output.collect(line, cigar);
+			}
+		}
+	}
+
+
+	//------------------------- Transcript --------------------------
+	// The extended CIGAR string of a read against a reference range, both
+	// as 4-bit codes
+
+	public static class Transcript
+	{
+		private static final byte MATCH    = '=';
+		private static final byte MISMATCH = 'X';
+		private static final byte INSERT   = 'I';
+		private static final byte DELETE   = 'D';
+		private static final byte CLIP     = 'S';
+
+		private int [] score = new int[0];
+		private byte [] moves = new byte[0];
+		private byte [] ops = new byte[0];
+		private StringBuilder builder = new StringBuilder();
+
+		//------------------------- mismatches --------------------------
+		// ungapped, the read against the first m reference bases
+
+		public String mismatches(byte [] qry, int m, byte [] ref, int n)
+		{
+			if (ops.length < m + n) { ops = new byte[2 * (m + n)]; }
+
+			int len = 0;
+			for (int i = 0; i < m; i++)
+			{
+				// kmismatch_bin lets the last read base hang off the end of the reference
+				if      (i >= n)           { ops[len++] = CLIP; }
+				else if (qry[i] == ref[i]) { ops[len++] = MATCH; }
+				else                       { ops[len++] = MISMATCH; }
+			}
+
+			return cigar(len);
+		}
+
+		//------------------------- differences --------------------------
+		// global alignment of the read to the reference range with the
+		// fewest edits, in a band around the diagonal wide enough for k. If
+		// atend, the read may run past the end of the range for free
+
+		public String differences(byte [] qry, int m, byte [] ref, int n, int k, boolean atend)
+		{
+			int band  = k + Math.abs(n - m) + 1;
+			int width = 2 * band + 1;
+
+			if (score.length < (m + 1) * width)
+			{
+				score = new int[2 * (m + 1) * width];
+				moves = new byte[score.length];
+			}
+
+			final int FAR = Integer.MAX_VALUE / 2;
+
+			// cell (i, j) is at i * width + (j - i + band)
+			for (int i = 0; i <= m; i++)
+			{
+				for (int c = 0; c < width; c++)
+				{
+					int j = i + c - band;
+					int cell = i * width + c;
+
+					if ((j < 0) || (j > n)) { score[cell] = FAR; continue; }
+
+					if (i == 0) { score[cell] = j; moves[cell] = DELETE; continue; }
+					if (j == 0) { score[cell] = i; moves[cell] = INSERT; continue; }
+
+					// prefer a match or mismatch, then an extra read base, then an extra reference base
+					int best = score[cell - width] + ((qry[i-1] == ref[j-1]) ? 0 : 1);
+					byte move = (qry[i-1] == ref[j-1]) ? MATCH : MISMATCH;
+
+					if ((c + 1 < width) && (score[cell - width + 1] + 1 < best))
+					{
+						best = score[cell - width + 1] + 1;
+						move = INSERT;
+					}
+
+					if ((c > 0) && (score[cell - 1] + 1 < best))
+					{
+						best = score[cell - 1] + 1;
+						move = DELETE;
+					}
+
+					score[cell] = best;
+					moves[cell] = move;
+				}
+			}
+
+			if (ops.length < m + n) { ops = new byte[2 * (m + n)]; }
+
+			// the longest read prefix with the fewest edits that ends on the last reference base
+			int end = m;
+			if (atend)
+			{
+				for (int i = m - 1; (i >= 0) && (n - i <= band); i--)
+				{
+					if ((i - n <= band) && (score[i * width + (n - i + band)] < score[end * width + (n - end + band)]))
+					{
+						end = i;
+					}
+				}
+			}
+
+			// walk back from (end, n), the ops come out last first
+			int len = 0;
+			for (int i = end; i < m; i++) { ops[len++] = CLIP; }
+
+			for (int i = end, j = n; (i > 0) || (j > 0); )
+			{
+				byte move = moves[i * width + (j - i + band)];
+				ops[len++] = move;
+
+				if      (move == INSERT) { i--; }
+				else if (move == DELETE) { j--; }
+				else                     { i--; j--; }
+			}
+
+			for (int a = 0, b = len - 1; a < b; a++, b--)
+			{
+				byte t = ops[a]; ops[a] = ops[b]; ops[b] = t;
+			}
+
+			return cigar(len);
+		}
+
+		//------------------------- cigar --------------------------
+		private String cigar(int len)
+		{
+			builder.setLength(0);
+
+			for (int i = 0; i < len; )
+			{
+				int j = i;
+				while ((j < len) && (ops[j] == ops[i])) { j++; }
+
+				builder.append(j - i);
+				builder.append((char) ops[i]);
+				i = j;
+			}
+
+			return builder.toString();
+		}
+	}
+
+
+	//------------------------- run --------------------------
+	// Setup and run the hadoop job for the transcripts of the alignments in
+	// alignpath. The reference is packed into flankpath, unless the alignment
+	// job of this run just wrote it there (-refpointers)
+
+	public static void run(String refpath,
+			               String qrypath,
+			               String alignpath,
+			               String outpath,
+			               String flankpath,
+			               int ALLOW_DIFFERENCES,
+			               int NUM_MAP_TASKS,
+			               int NUM_REDUCE_TASKS,
+			               String READ_COPIES,
+			               boolean FLANKS_WRITTEN) throws IOException
+	{
+		System.out.println("DETAILS_PATH: "      + outpath);
+		System.out.println("REF_FLANKS_PATH: "   + flankpath);
+		System.out.println("FLANKS_WRITTEN: "    + FLANKS_WRITTEN);
+
+		JobConf conf = new JobConf(AlignmentDetails.class);
+		conf.setJobName("AlignmentDetails");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(NUM_REDUCE_TASKS);
+
+		// an older file at flankpath may be from another reference
+		Path fPath = new Path(flankpath);
+
+		if (!FLANKS_WRITTEN)
+		{
+			RefFlanks.write(conf, refpath, fPath);
+		}
+
+		CacheFiles.add(conf, fPath);
+
+		FileInputFormat.addInputPath(conf, new Path(qrypath));
+		FileInputFormat.addInputPath(conf, new Path(alignpath));
+
+		conf.set("qrypath",           qrypath);
+		conf.set("REF_FLANKS_PATH",   flankpath);
+		conf.set("ALLOW_DIFFERENCES", Integer.toString(ALLOW_DIFFERENCES));
+
+		CloudBurst.setReadCopies(conf, READ_COPIES);
+
+		conf.setMapperClass(DetailMapClass.class);
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(BytesWritable.class);
+
+		conf.setReducerClass(DetailReduceClass.class);
+		conf.setOutputKeyClass(Text.class);
+		conf.setOutputValueClass(Text.class);
+		conf.setOutputFormat(TextOutputFormat.class);
+
+		Path oPath = new Path(outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old results");
+		FileSystem.get(conf).delete(oPath, true);
+
+		JobClient.runJob(conf);
+
+		System.err.println("AlignmentDetails Finished");
+	}
+
+
+	//------------------------- main --------------------------
+	// Work out the transcripts of an earlier run
+
+	public static void main(String[] args) throws IOException
+	{
+		if ((args.length != 5) && (args.length != 6))
+		{
+			System.err.println("Usage: AlignmentDetails refpath qrypath alignpath outpath allowdifferences [copies]");
+			return;
+		}
+
+		Timer t = new Timer();
+		run(args[0], args[1], args[2], args[3], args[3] + "-refflanks", Integer.parseInt(args[4]), 1, 1,
+			(args.length == 6) ? args[5] : null, false);
+		System.err.println("Total Running time was " + t.get());
+	}
+}
@@ -12,10 +12,6 @@ public class AlignmentRecord
 	public int     m_differences = 0;
 	public boolean m_isRC = false;
 	
-	private static final StringBuilder builder = new StringBuilder();
-	private static final BytesWritable bytes = new BytesWritable();
-	private static final byte [] sbuffer = new byte[17];
-	
 	AlignmentRecord()
 	{
 		
@@ -61,7 +57,7 @@ public class AlignmentRecord
 	
 	public String toString()
 	{
-		builder.setLength(0);
+		StringBuilder builder = new StringBuilder();
 	
 		builder.append(m_refID);              builder.append('\t');
 		builder.append(m_isRC ? 1 : 0);       builder.append('\t');
@@ -74,7 +70,7 @@ public class AlignmentRecord
 	
 	public String toAlignment(int readid)
 	{
-		builder.setLength(0);
+		StringBuilder builder = new StringBuilder();
 		
 		builder.append(m_refID);              builder.append('\t');
 		builder.append(m_refStart);           builder.append('\t');
@@ -99,8 +95,14 @@ public class AlignmentRecord
 		return this;
 	}
 	
-	public BytesWritable toBytes() //throws IOException
+	// Serialize into bytes, which the caller owns, so records don't each
+	// carry a buffer and a thread can reuse one for all of its records
+	
+	public BytesWritable toBytes(BytesWritable bytes)
 	{
+		bytes.setSize(17);
+		byte [] sbuffer = bytes.get();
+		
 		sbuffer[0] = (byte) (m_isRC ? 1 : 0);
 		
 		sbuffer[1] = (byte) ((m_refID & 0xFF000000) >> 24);
@@ -123,7 +125,6 @@ public class AlignmentRecord
 		sbuffer[15] = (byte) ((m_differences & 0x0000FF00) >> 8);
 		sbuffer[16] = (byte) ((m_differences & 0x000000FF));
 		
-		bytes.set(sbuffer, 0, 17);
 		return bytes;
 	}
 	
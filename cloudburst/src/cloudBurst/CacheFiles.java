@@ -0,0 +1,85 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+
+/// The side files a job ships to its tasks with the DistributedCache: the
+/// RefIndex for MapAlign, the ReadCopies table, the RefFlanks and the
+/// ReadSeedFilter. add() puts a file in the cache of a job, and load() reads
+/// it in a task from the localized copy, once per task JVM, so all of the
+/// threads of a multithreaded task share one read-only copy.
+
+public class CacheFiles {
+
+	// what load() read, by the path the job was given
+	private static Map<String, Object> loaded = new HashMap<String, Object>();
+
+
+	//------------------------- Loader --------------------------
+	// Reads one kind of side file from a qualified path
+
+	public interface Loader<T>
+	{
+		public T read(FileSystem fs, Path p) throws IOException;
+	}
+
+
+	//------------------------- add --------------------------
+	public static void add(JobConf conf, Path p) throws IOException
+	{
+		FileSystem fs = p.getFileSystem(conf);
+		DistributedCache.addCacheFile(fs.makeQualified(p).toUri(), conf);
+	}
+
+
+	//------------------------- find --------------------------
+	// The local DistributedCache copy of path if there is one, otherwise path
+	// itself (the local runner doesn't localize). Qualified either way, so
+	// its getFileSystem is the one it is on
+
+	public static Path find(JobConf conf, String path) throws IOException
+	{
+		String name = new Path(path).getName();
+		Path [] local = DistributedCache.getLocalCacheFiles(conf);
+
+		if (local != null)
+		{
+			for (Path p : local)
+			{
+				if (p.getName().equals(name))
+				{
+					return FileSystem.getLocal(conf).makeQualified(p);
+				}
+			}
+		}
+
+		Path p = new Path(path);
+		return p.getFileSystem(conf).makeQualified(p);
+	}
+
+
+	//------------------------- load --------------------------
+	// Read path with loader the first time, then return the same copy
+
+	@SuppressWarnings("unchecked")
+	public static synchronized <T> T load(JobConf conf, String path, Loader<T> loader) throws IOException
+	{
+		T value = (T) loaded.get(path);
+
+		if (value == null)
+		{
+			Path p = find(conf, path);
+			value = loader.read(p.getFileSystem(conf), p);
+			loaded.put(path, value);
+		}
+
+		return value;
+	}
+}
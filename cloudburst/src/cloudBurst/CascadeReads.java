@@ -0,0 +1,156 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+
+/// The reads left for the next pass of an alignment cascade (CloudBurst -cascade).
+///
+/// A pass at a small k seeds with long seeds, so it has far fewer candidates
+/// than a pass at the full K, and it finds every alignment with up to k
+/// differences. A read with a unique best alignment in that pass has the same
+/// unique best at K, since nothing with fewer differences was missed. Only
+/// the other reads, with no alignment or a tie, are aligned again at the next
+/// k. This job joins the reads with the filtered alignments of the pass by
+/// read id, and writes the reads that have none in the .br format.
+///
+/// That only holds when the seeds find every alignment, so the cascade is
+/// k-mismatch only, and the reads with an N skip the early passes. An N
+/// matches an N in the reference, but no seed covers either, so a read with
+/// an N can be missing alignments at any k. The last pass at K then finds
+/// exactly what a single pass would for those reads.
+
+public class CascadeReads {
+
+	private static final byte READ_TAG    = 0;
+	private static final byte ALIGNED_TAG = 1;
+
+
+	//------------------------- CascadeMapClass --------------------------
+	// Send the reads and their unique best alignments to the reducer of their read id
+
+	public static class CascadeMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		private boolean ISREAD;
+		private BytesWritable tagged = new BytesWritable();
+		private byte [] buffer = new byte[1024];
+
+		public void configure(JobConf conf)
+		{
+			ISREAD = (conf.get("map.input.file").indexOf(conf.get("qrypath")) != -1);
+		}
+
+		public void map(IntWritable id, BytesWritable value,
+				OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException
+		{
+			if (!ISREAD)
+			{
+				buffer[0] = ALIGNED_TAG;
+				tagged.set(buffer, 0, 1);
+				output.collect(id, tagged);
+				return;
+			}
+
+			int len = value.getSize();
+			if (len + 1 > buffer.length) { buffer = new byte[2 * (len + 1)]; }
+
+			buffer[0] = READ_TAG;
+			System.arraycopy(value.get(), 0, buffer, 1, len);
+			tagged.set(buffer, 0, len + 1);
+
+			output.collect(id, tagged);
+		}
+	}
+
+
+	//------------------------- CascadeReduceClass --------------------------
+	// Pass the read on if it has no unique best alignment yet
+
+	public static class CascadeReduceClass extends MapReduceBase implements
+			Reducer<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		private BytesWritable read = new BytesWritable();
+
+		public void reduce(IntWritable readid, Iterator<BytesWritable> values,
+				OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException
+		{
+			boolean haveread = false;
+
+			while (values.hasNext())
+			{
+				BytesWritable v = values.next();
+
+				if (v.get()[0] == ALIGNED_TAG) { return; }
+
+				read.set(v.get(), 1, v.getSize() - 1);
+				haveread = true;
+			}
+
+			if (haveread)
+			{
+				output.collect(readid, read);
+			}
+		}
+	}
+
+
+	//------------------------- run --------------------------
+	// Setup and run the hadoop job for the reads in qrypath without an
+	// alignment in filteredpath
+
+	public static void run(String qrypath,
+			               String filteredpath,
+			               String outpath,
+			               int NUM_MAP_TASKS,
+			               int NUM_REDUCE_TASKS) throws IOException
+	{
+		System.out.println("CASCADE_READS_PATH: " + outpath);
+
+		JobConf conf = new JobConf(CascadeReads.class);
+		conf.setJobName("CascadeReads");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(NUM_REDUCE_TASKS);
+
+		FileInputFormat.addInputPath(conf, new Path(qrypath));
+		FileInputFormat.addInputPath(conf, new Path(filteredpath));
+
+		conf.set("qrypath", qrypath);
+
+		conf.setMapperClass(CascadeMapClass.class);
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(BytesWritable.class);
+
+		conf.setReducerClass(CascadeReduceClass.class);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(BytesWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		Path oPath = new Path(outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old results");
+		FileSystem.get(conf).delete(oPath, true);
+
+		JobClient.runJob(conf);
+
+		System.err.println("CascadeReads Finished");
+	}
+}
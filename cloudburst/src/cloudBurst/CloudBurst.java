@@ -14,7 +14,9 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.lib.MultithreadedMapRunner;
 
+import cloudBurst.MapAlign.AlignMapClass;
 import cloudBurst.MerReduce.MapClass;
 import cloudBurst.MerReduce.ReduceClass;
 
@@ -31,69 +33,185 @@ public class CloudBurst {
 	//------------------------- alignall --------------------------
 	// Setup and run the hadoop job for running the alignment
 
-	public static RunningJob alignall(String refpath, 
-			                          String qrypath,
-			                          String outpath,
-			                          int MIN_READ_LEN,
-			                          int MAX_READ_LEN,
-			                          int K,
-			                          int ALLOW_DIFFERENCES,
-			                          boolean FILTER_ALIGNMENTS,
-			                          int NUM_MAP_TASKS,
-			                          int NUM_REDUCE_TASKS,
-			                          int BLOCK_SIZE,
-			                          int REDUNDANCY) throws IOException, Exception
+	public static RunningJob alignall(AlignOptions opts) throws IOException, Exception
 	{
-		int SEED_LEN   = MIN_READ_LEN / (K+1);
-		int FLANK_LEN  = MAX_READ_LEN-SEED_LEN+K;
-		
-		System.out.println("refath: "            + refpath);
-		System.out.println("qrypath: "           + qrypath);
-		System.out.println("outpath: "           + outpath);
-		System.out.println("MIN_READ_LEN: "      + MIN_READ_LEN);
-		System.out.println("MAX_READ_LEN: "      + MAX_READ_LEN);
-		System.out.println("K: "                 + K);
+		int SEED_LEN   = opts.MIN_READ_LEN / (opts.K+1);
+		
+		// a spaced seed spans its mask, and seeds the reads at the windows that guarantee a hit
+		String SPACED_OFFSETS = null;
+		if (opts.SPACED_SEED != null)
+		{
+			SpacedSeed spaced = new SpacedSeed(opts.SPACED_SEED);
+			int [] offsets = spaced.readOffsets(opts.MIN_READ_LEN, opts.K);
+			
+			if (offsets == null)
+			{
+				throw new IOException("Spaced seed " + opts.SPACED_SEED + " can't guarantee a hit with " + opts.K + 
+						              " mismatches in " + opts.MIN_READ_LEN + " bp reads");
+			}
+			
+			SEED_LEN       = spaced.span();
+			SPACED_OFFSETS = SpacedSeed.offsetsString(offsets);
+		}
+		
+		int FLANK_LEN  = opts.MAX_READ_LEN-SEED_LEN+opts.K;
+		
+		System.out.println("refath: "            + opts.refpath);
+		System.out.println("qrypath: "           + opts.qrypath);
+		System.out.println("outpath: "           + opts.outpath);
+		System.out.println("MIN_READ_LEN: "      + opts.MIN_READ_LEN);
+		System.out.println("MAX_READ_LEN: "      + opts.MAX_READ_LEN);
+		System.out.println("K: "                 + opts.K);
 		System.out.println("SEED_LEN: "          + SEED_LEN);
 		System.out.println("FLANK_LEN: "         + FLANK_LEN);
-		System.out.println("ALLOW_DIFFERENCES: " + ALLOW_DIFFERENCES);
-		System.out.println("FILTER_ALIGNMENTS: " + FILTER_ALIGNMENTS);
-		System.out.println("NUM_MAP_TASKS: "     + NUM_MAP_TASKS);
-		System.out.println("NUM_REDUCE_TASKS: "  + NUM_REDUCE_TASKS);
-		System.out.println("BLOCK_SIZE: "        + BLOCK_SIZE);
-		System.out.println("REDUNDANCY: "        + REDUNDANCY);
+		System.out.println("ALLOW_DIFFERENCES: " + opts.ALLOW_DIFFERENCES);
+		System.out.println("FILTER_ALIGNMENTS: " + opts.FILTER_ALIGNMENTS);
+		System.out.println("NUM_MAP_TASKS: "     + opts.NUM_MAP_TASKS);
+		System.out.println("NUM_REDUCE_TASKS: "  + opts.NUM_REDUCE_TASKS);
+		System.out.println("BLOCK_SIZE: "        + opts.BLOCK_SIZE);
+		System.out.println("REDUNDANCY: "        + opts.REDUNDANCY);
+		System.out.println("DIFF_ENGINE: "       + opts.DIFF_ENGINE);
+		System.out.println("REDUCE_THREADS: "    + opts.REDUCE_THREADS);
+		System.out.println("PARALLEL_MIN_PAIRS: " + opts.PARALLEL_MIN_PAIRS);
+		System.out.println("MAP_THREADS: "       + opts.MAP_THREADS);
+		System.out.println("HOT_MIN: "           + opts.HOT_MIN);
+		System.out.println("HOT_SAMPLE: "        + opts.HOT_SAMPLE);
+		System.out.println("SEED_STORE: "        + opts.SEED_STORE);
+		System.out.println("SPILL_MB: "          + opts.SPILL_MB);
+		System.out.println("FLANK_CACHE: "       + opts.FLANK_CACHE);
+		System.out.println("CANONICAL: "         + opts.CANONICAL);
+		System.out.println("MINIMIZER_W: "       + opts.MINIMIZER_W);
+		System.out.println("SPACED_SEED: "       + opts.SPACED_SEED);
+		System.out.println("SPACED_OFFSETS: "    + SPACED_OFFSETS);
+		System.out.println("REF_POINTERS: "      + opts.REF_POINTERS);
+		System.out.println("RECORD_V2: "         + opts.RECORD_V2);
+		System.out.println("GROUP_REFS: "        + opts.GROUP_REFS);
+		System.out.println("READ_FILTER_MB: "    + opts.READ_FILTER_MB);
+		System.out.println("READ_COPIES: "       + opts.READ_COPIES);
+		System.out.println("SKIP_N_READS: "      + opts.SKIP_N_READS);
+		
+		// find the high copy seeds to split across reducers
+		String hotpath = null;
+		if (opts.HOT_MIN > 0)
+		{
+			hotpath = opts.outpath + "-hotseeds";
+			
+			Timer thot = new Timer();
+			HotSeeds.run(opts.refpath, hotpath, SEED_LEN, opts.HOT_SAMPLE, opts.HOT_MIN, opts.NUM_REDUCE_TASKS, opts.NUM_MAP_TASKS, opts.NUM_REDUCE_TASKS, opts.CANONICAL);
+			System.err.println("Hot seed sampling time: " + thot.get());
+		}
 		
 		JobConf conf = new JobConf(MerReduce.class);
 		conf.setJobName("CloudBurst");
-		conf.setNumMapTasks(NUM_MAP_TASKS);
-		conf.setNumReduceTasks(NUM_REDUCE_TASKS);
+		conf.setNumMapTasks(opts.NUM_MAP_TASKS);
+		conf.setNumReduceTasks(opts.NUM_REDUCE_TASKS);
+		
+		if (opts.SEED_STORE != null)
+		{
+			// write the reference seeds the first time, then only map the reads
+			if (!SeedStore.exists(conf, opts.SEED_STORE))
+			{
+				Timer tstore = new Timer();
+				SeedStore.build(opts);
+				System.err.println("Seed store build time: " + tstore.get());
+			}
+			
+			// each reducer merges with one partition of the store
+			conf.setNumReduceTasks(SeedStore.checkParams(conf, opts, SEED_LEN, FLANK_LEN));
+			conf.set("SEED_STORE_PATH", opts.SEED_STORE);
+		}
+		else
+		{
+			FileInputFormat.addInputPath(conf, new Path(opts.refpath));
+		}
 		
-		FileInputFormat.addInputPath(conf, new Path(refpath));
-		FileInputFormat.addInputPath(conf, new Path(qrypath));
+		FileInputFormat.addInputPath(conf, new Path(opts.qrypath));
 
-		conf.set("refpath",           refpath);
-		conf.set("qrypath",           qrypath);
-		conf.set("MIN_READ_LEN",      Integer.toString(MIN_READ_LEN));
-		conf.set("MAX_READ_LEN",      Integer.toString(MAX_READ_LEN));
-		conf.set("K",                 Integer.toString(K));
+		conf.set("refpath",           opts.refpath);
+		conf.set("qrypath",           opts.qrypath);
+		conf.set("MIN_READ_LEN",      Integer.toString(opts.MIN_READ_LEN));
+		conf.set("MAX_READ_LEN",      Integer.toString(opts.MAX_READ_LEN));
+		conf.set("K",                 Integer.toString(opts.K));
 		conf.set("SEED_LEN",          Integer.toString(SEED_LEN));
 		conf.set("FLANK_LEN",         Integer.toString(FLANK_LEN));
-		conf.set("ALLOW_DIFFERENCES", Integer.toString(ALLOW_DIFFERENCES));
-		conf.set("BLOCK_SIZE",        Integer.toString(BLOCK_SIZE));
-		conf.set("REDUNDANCY",        Integer.toString(REDUNDANCY));
-		conf.set("FILTER_ALIGNMENTS", (FILTER_ALIGNMENTS ? "1" : "0"));
+		conf.set("ALLOW_DIFFERENCES", Integer.toString(opts.ALLOW_DIFFERENCES));
+		conf.set("BLOCK_SIZE",        Integer.toString(opts.BLOCK_SIZE));
+		conf.set("REDUNDANCY",        Integer.toString(opts.REDUNDANCY));
+		conf.set("FILTER_ALIGNMENTS", (opts.FILTER_ALIGNMENTS ? "1" : "0"));
+		conf.set("DIFF_ENGINE",       Integer.toString(opts.DIFF_ENGINE));
+		conf.set("REDUCE_THREADS",    Integer.toString(opts.REDUCE_THREADS));
+		conf.set("PARALLEL_MIN_PAIRS", Long.toString(opts.PARALLEL_MIN_PAIRS));
+		conf.set("SPILL_MB",          Integer.toString(opts.SPILL_MB));
+		conf.set("FLANK_CACHE",       (opts.FLANK_CACHE ? "1" : "0"));
+		conf.set("CANONICAL",         (opts.CANONICAL ? "1" : "0"));
+		conf.set("MINIMIZER_W",       Integer.toString(opts.MINIMIZER_W));
+		conf.set("RECORD_V2",         (opts.RECORD_V2 ? "1" : "0"));
+		conf.set("GROUP_REFS",        (opts.GROUP_REFS ? "1" : "0"));
+		conf.set("SKIP_N_READS",      (opts.SKIP_N_READS ? "1" : "0"));
+		
+		if (opts.SPACED_SEED != null)
+		{
+			conf.set("SPACED_SEED",    opts.SPACED_SEED);
+			conf.set("SPACED_OFFSETS", SPACED_OFFSETS);
+		}
+		
+		if (hotpath != null)
+		{
+			conf.set("HOT_SEEDS_PATH", hotpath);
+		}
+		
+		if (opts.REF_POINTERS)
+		{
+			// the reducers cut the reference flanks from a packed copy of the reference
+			Timer tflanks = new Timer();
+			Path fPath = new Path(opts.outpath + "-refflanks");
+			RefFlanks.write(conf, opts.refpath, fPath);
+			
+			CacheFiles.add(conf, fPath);
+			conf.set("REF_FLANKS_PATH", fPath.toString());
+			conf.set("REF_POINTERS", "1");
+			
+			System.err.println("Reference flank file time: " + tflanks.get());
+		}
+		
+		setReadCopies(conf, opts.READ_COPIES);
+		
+		if (opts.READ_FILTER_MB > 0)
+		{
+			// only send the reference seeds that some read might have
+			Timer tfilter = new Timer();
+			String filterpath = opts.outpath + "-readfilter";
+			ReadSeedFilter.run(conf, opts.qrypath, filterpath, opts.READ_FILTER_MB, opts.NUM_MAP_TASKS, opts.NUM_REDUCE_TASKS);
+			conf.set("READ_FILTER_PATH", filterpath);
+			CacheFiles.add(conf, new Path(filterpath));
+			System.err.println("Read seed filter time: " + tfilter.get());
+		}
 		
 		conf.setMapperClass(MapClass.class);
 		
+		if (opts.MAP_THREADS > 1)
+		{
+			// split the chunks into seeds on several threads in each map task
+			conf.setMapRunnerClass(MultithreadedMapRunner.class);
+			conf.setInt("mapred.map.multithreadedrunner.threads", opts.MAP_THREADS);
+		}
+		
 		conf.setInputFormat(SequenceFileInputFormat.class);			
-		conf.setMapOutputKeyClass(BytesWritable.class);
+		conf.setMapOutputKeyClass(SeedKey.class);
 		conf.setMapOutputValueClass(BytesWritable.class);
 		
+		// spread the replicas of split seeds over different reducers
+		conf.setPartitionerClass(SeedPartitioner.class);
+		
+		// reduce the reference and query tuples of a seed together, references first
+		conf.setOutputValueGroupingComparator(SeedKey.GroupComparator.class);
+		
 		conf.setReducerClass(ReduceClass.class);		
 		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(BytesWritable.class);
 		conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-		Path oPath = new Path(outpath);
+		Path oPath = new Path(opts.outpath);
 		FileOutputFormat.setOutputPath(conf, oPath);
 		System.err.println("  Removing old results");
 		FileSystem.get(conf).delete(oPath);
@@ -104,23 +222,125 @@ public class CloudBurst {
 	}
 	
 	
+	//------------------------- alignmap --------------------------
+	// Setup and run the map only alignment job for small references: index the
+	// reference seeds, ship the index to every mapper, and align the reads there
+	
+	public static RunningJob alignmap(AlignOptions opts) throws IOException, Exception
+	{
+		int SEED_LEN   = opts.MIN_READ_LEN / (opts.K+1);
+		int FLANK_LEN  = opts.MAX_READ_LEN-SEED_LEN+opts.K;
+		
+		String indexpath = opts.outpath + "-refindex";
+		
+		System.out.println("refath: "            + opts.refpath);
+		System.out.println("qrypath: "           + opts.qrypath);
+		System.out.println("outpath: "           + opts.outpath);
+		System.out.println("REF_INDEX_PATH: "    + indexpath);
+		System.out.println("MIN_READ_LEN: "      + opts.MIN_READ_LEN);
+		System.out.println("MAX_READ_LEN: "      + opts.MAX_READ_LEN);
+		System.out.println("K: "                 + opts.K);
+		System.out.println("SEED_LEN: "          + SEED_LEN);
+		System.out.println("FLANK_LEN: "         + FLANK_LEN);
+		System.out.println("ALLOW_DIFFERENCES: " + opts.ALLOW_DIFFERENCES);
+		System.out.println("FILTER_ALIGNMENTS: " + opts.FILTER_ALIGNMENTS);
+		System.out.println("NUM_MAP_TASKS: "     + opts.NUM_MAP_TASKS);
+		System.out.println("DIFF_ENGINE: "       + opts.DIFF_ENGINE);
+		System.out.println("MAP_THREADS: "       + opts.MAP_THREADS);
+		System.out.println("READ_COPIES: "       + opts.READ_COPIES);
+		System.out.println("SKIP_N_READS: "      + opts.SKIP_N_READS);
+		
+		JobConf conf = new JobConf(MapAlign.class);
+		conf.setJobName("CloudBurst-MapAlign");
+		conf.setNumMapTasks(opts.NUM_MAP_TASKS);
+		conf.setNumReduceTasks(0);
+		
+		// build the reference index on the client and put it in the cache
+		Timer tindex = new Timer();
+		RefIndex index = RefIndex.build(conf, opts.refpath, SEED_LEN);
+		
+		Path iPath = new Path(indexpath);
+		FileSystem fs = iPath.getFileSystem(conf);
+		index.write(fs, iPath);
+		CacheFiles.add(conf, iPath);
+		
+		System.err.println("Indexed " + index.numHits() + " reference seeds in " + tindex.get());
+		
+		FileInputFormat.addInputPath(conf, new Path(opts.qrypath));
+
+		conf.set("refpath",           opts.refpath);
+		conf.set("qrypath",           opts.qrypath);
+		conf.set("REF_INDEX_PATH",    indexpath);
+		conf.set("MIN_READ_LEN",      Integer.toString(opts.MIN_READ_LEN));
+		conf.set("MAX_READ_LEN",      Integer.toString(opts.MAX_READ_LEN));
+		conf.set("K",                 Integer.toString(opts.K));
+		conf.set("SEED_LEN",          Integer.toString(SEED_LEN));
+		conf.set("FLANK_LEN",         Integer.toString(FLANK_LEN));
+		conf.set("ALLOW_DIFFERENCES", Integer.toString(opts.ALLOW_DIFFERENCES));
+		conf.set("FILTER_ALIGNMENTS", (opts.FILTER_ALIGNMENTS ? "1" : "0"));
+		conf.set("DIFF_ENGINE",       Integer.toString(opts.DIFF_ENGINE));
+		conf.set("SKIP_N_READS",      (opts.SKIP_N_READS ? "1" : "0"));
+		
+		setReadCopies(conf, opts.READ_COPIES);
+		
+		conf.setMapperClass(AlignMapClass.class);
+		
+		if (opts.MAP_THREADS > 1)
+		{
+			// align reads on several threads in each map task, sharing one index
+			conf.setMapRunnerClass(MultithreadedMapRunner.class);
+			conf.setInt("mapred.map.multithreadedrunner.threads", opts.MAP_THREADS);
+		}
+		
+		conf.setInputFormat(SequenceFileInputFormat.class);			
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(BytesWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		Path oPath = new Path(opts.outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old results");
+		FileSystem.get(conf).delete(oPath, true);
+		
+		RunningJob rj = JobClient.runJob(conf);
+		System.err.println("CloudBurst MapAlign Finished");
+		return rj;
+	}
+	
+	
+	//------------------------- setReadCopies --------------------------
+	// Have the job report the alignments of collapsed reads for all of their
+	// copies too (see ReadCopies), only set for the last job of the run
+	
+	static void setReadCopies(JobConf conf, String copiespath) throws IOException
+	{
+		if (copiespath == null) { return; }
+		
+		conf.set("READ_COPIES_PATH", copiespath);
+		CacheFiles.add(conf, new Path(copiespath));
+	}
+	
+	
 	//------------------------- filter --------------------------
 	// Setup and run the hadoop job for filtering the alignments to just report unambiguous bests
 	
 	public static void filter(String alignpath, 
 			                  String outpath,
                               int nummappers,
-                              int numreducers) throws IOException, Exception
+                              int numreducers,
+                              String READ_COPIES) throws IOException, Exception
     {
 		System.out.println("NUM_FMAP_TASKS: "     + nummappers);
 		System.out.println("NUM_FREDUCE_TASKS: "  + numreducers);
+		System.out.println("READ_COPIES: "        + READ_COPIES);
 		
 		JobConf conf = new JobConf(FilterAlignments.class);
 		conf.setJobName("FilterAlignments");
 		conf.setNumMapTasks(nummappers);
 		conf.setNumReduceTasks(numreducers);
 		
-		FileInputFormat.addInputPath(conf, new Path(alignpath));
+		// a comma separated list with -cascade
+		FileInputFormat.setInputPaths(conf, alignpath);
 		
 		conf.setMapperClass(FilterMapClass.class);
 		
@@ -130,6 +350,8 @@ public class CloudBurst {
 		
 		conf.setCombinerClass(FilterCombinerClass.class);
 		
+		setReadCopies(conf, READ_COPIES);
+		
 		conf.setReducerClass(FilterReduceClass.class);		
 		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(BytesWritable.class);
@@ -165,6 +387,26 @@ public class CloudBurst {
 		int numfreducers = 1;
 		int blocksize    = 128;
 		int redundancy   = 1;
+		int diffengine   = LandauVishkin.ENGINE_LANDAU_VISHKIN;
+		int reducethreads = 1;
+		long parallelmin  = 1000000;
+		int mapthreads    = 1;
+		long hotmin       = 0;
+		int hotsample     = 100;
+		int mapalign      = 0;
+		String seedstore  = null;
+		int spillmb       = -1;
+		String copies     = null;
+		int canonical     = 0;
+		int minimizerw    = 0;
+		String spaced     = null;
+		int refpointers   = 0;
+		int v2            = 0;
+		int readfiltermb  = 0;
+		int details       = 0;
+		int grouprefs     = 0;
+		int flankcache    = 0;
+		int [] cascade    = new int[0];
 		
 		boolean filteralignments = false;
 		
@@ -184,7 +426,28 @@ public class CloudBurst {
 		}
 		else if (args.length < 13)
 		{
-			System.err.println("Usage: CloudBurst refpath qrypath outpath readlen k allowdifferences filteralignments #mappers #reduces #fmappers #freducers blocksize redundancy");
+			System.err.println("Usage: CloudBurst refpath qrypath outpath readlen k allowdifferences filteralignments #mappers #reduces #fmappers #freducers blocksize redundancy [options]");
+			System.err.println("Options:");
+			System.err.println("  -engine lv|bitvector   k-difference engine (default lv)");
+			System.err.println("  -reducethreads n       threads for aligning large seed groups in each reducer (default 1)");
+			System.err.println("  -parallelmin n         min ref x query pairs in a seed group to use the threads (default 1000000)");
+			System.err.println("  -mapthreads n          threads for emitting seeds in each mapper (default 1)");
+			System.err.println("  -hotseeds n            split reference seeds with about n or more copies across reducers (default 0, off)");
+			System.err.println("  -hotsample n           sample 1 in n reference positions to find the hot seeds (default 100)");
+			System.err.println("  -mapalign 0|1          align in the mappers against an index of a small reference (default 0)");
+			System.err.println("  -seedstore path        reuse the reference seeds stored at path, building it if missing (default none)");
+			System.err.println("  -spillmb n             MB of reference tuples per seed to keep in memory before spilling to disk (default -1, a quarter of the task heap)");
+			System.err.println("  -flankcache 0|1        extend each read once per distinct reference flank pair of a seed (default 0)");
+			System.err.println("  -canonical 0|1         send each read seed once, keyed by the smaller of it and its reverse complement (default 0)");
+			System.err.println("  -minimizer w           only send the reference seeds that are the minimizer of a window of w seeds (default 0, off)");
+			System.err.println("  -spaced mask           seed with a spaced seed like 11101101110111, k-mismatch only (default none)");
+			System.err.println("  -refpointers 0|1       send the reference flanks as pointers into a cached copy of the reference (default 0)");
+			System.err.println("  -v2 0|1                send the tuples with the flanks packed 4 bases / byte (default 0)");
+			System.err.println("  -grouprefs 0|1         send one record per distinct seed of each reference chunk (default 0)");
+			System.err.println("  -readfilter mb         only send the reference seeds in an mb MB Bloom filter of the read seeds (default 0, off)");
+			System.err.println("  -cascade k1,k2,..      align at each smaller k first, then only the reads without a unique best at the next (default none)");
+			System.err.println("  -details 0|1           also write the mismatch and indel positions of the reported alignments (default 0)");
+			System.err.println("  -copies path           report alignments for the reads collapsed by ConvertFastaForCloud -dedup (default none)");
 			return;
 		}
 		else
@@ -202,9 +465,145 @@ public class CloudBurst {
 			numfreducers     = Integer.parseInt(args[10]);
 			blocksize        = Integer.parseInt(args[11]);
 			redundancy       = Integer.parseInt(args[12]);
+			
+			// optional settings follow the positional arguments
+			for (int i = 13; i < args.length; i++)
+			{
+				String opt = args[i];
+				
+				if (i+1 == args.length)
+				{
+					System.err.println("Missing value for " + opt); return;
+				}
+				
+				String val = args[++i];
+				
+				if (opt.equals("-engine"))
+				{
+					if      (val.equals("lv"))        { diffengine = LandauVishkin.ENGINE_LANDAU_VISHKIN; }
+					else if (val.equals("bitvector")) { diffengine = LandauVishkin.ENGINE_BIT_VECTOR; }
+					else { System.err.println("Unknown engine: " + val); return; }
+				}
+				else if (opt.equals("-reducethreads"))
+				{
+					reducethreads = Integer.parseInt(val);
+				}
+				else if (opt.equals("-parallelmin"))
+				{
+					parallelmin = Long.parseLong(val);
+				}
+				else if (opt.equals("-mapthreads"))
+				{
+					mapthreads = Integer.parseInt(val);
+				}
+				else if (opt.equals("-hotseeds"))
+				{
+					hotmin = Long.parseLong(val);
+				}
+				else if (opt.equals("-hotsample"))
+				{
+					hotsample = Integer.parseInt(val);
+				}
+				else if (opt.equals("-mapalign"))
+				{
+					mapalign = Integer.parseInt(val);
+				}
+				else if (opt.equals("-seedstore"))
+				{
+					seedstore = val;
+				}
+				else if (opt.equals("-spillmb"))
+				{
+					spillmb = Integer.parseInt(val);
+				}
+				else if (opt.equals("-canonical"))
+				{
+					canonical = Integer.parseInt(val);
+				}
+				else if (opt.equals("-minimizer"))
+				{
+					minimizerw = Integer.parseInt(val);
+				}
+				else if (opt.equals("-spaced"))
+				{
+					spaced = val;
+				}
+				else if (opt.equals("-refpointers"))
+				{
+					refpointers = Integer.parseInt(val);
+				}
+				else if (opt.equals("-v2"))
+				{
+					v2 = Integer.parseInt(val);
+				}
+				else if (opt.equals("-flankcache"))
+				{
+					flankcache = Integer.parseInt(val);
+				}
+				else if (opt.equals("-grouprefs"))
+				{
+					grouprefs = Integer.parseInt(val);
+				}
+				else if (opt.equals("-readfilter"))
+				{
+					readfiltermb = Integer.parseInt(val);
+				}
+				else if (opt.equals("-cascade"))
+				{
+					String [] ks = val.split(",");
+					cascade = new int[ks.length];
+					for (int c = 0; c < ks.length; c++) { cascade[c] = Integer.parseInt(ks[c]); }
+				}
+				else if (opt.equals("-details"))
+				{
+					details = Integer.parseInt(val);
+				}
+				else if (opt.equals("-copies"))
+				{
+					copies = val;
+				}
+				else
+				{
+					System.err.println("Unknown option: " + opt); return;
+				}
+			}
 		}
 		
 		if (redundancy < 1) { System.err.println("minimum redundancy is 1"); return; }
+		if (reducethreads < 1) { System.err.println("minimum reducethreads is 1"); return; }
+		if (mapthreads < 1) { System.err.println("minimum mapthreads is 1"); return; }
+		if (hotsample < 1) { System.err.println("minimum hotsample is 1"); return; }
+		if (spillmb < -1) { System.err.println("minimum spillmb is -1"); return; }
+		if ((seedstore != null) && (hotmin > 0)) { System.err.println("-hotseeds can't be used with -seedstore"); return; }
+		if ((seedstore != null) && (readfiltermb > 0)) { System.err.println("-readfilter can't be used with -seedstore"); return; }
+		if ((readfiltermb < 0) || (readfiltermb > ReadSeedFilter.MAX_MB)) { System.err.println("-readfilter must be 0 to " + ReadSeedFilter.MAX_MB); return; }
+		if ((minimizerw > 1) && (canonical == 1)) { System.err.println("-minimizer can't be used with -canonical"); return; }
+		if ((minimizerw > 1) && (hotmin > 0)) { System.err.println("-minimizer can't be used with -hotseeds"); return; }
+		if ((minimizerw > 1) && (minimizerw >= readlen / (K+1))) { System.err.println("-minimizer must be less than the seed length " + readlen / (K+1)); return; }
+		if ((spaced != null) && (allowdifferences != 0)) { System.err.println("-spaced only works for k-mismatch alignments"); return; }
+		if ((spaced != null) && ((canonical == 1) || (minimizerw > 1) || (hotmin > 0) || (mapalign == 1)))
+		{
+			System.err.println("-spaced can't be used with -canonical, -minimizer, -hotseeds or -mapalign"); return;
+		}
+
+		// the map side aligner doesn't shuffle any seeds, so none of the seeding or reduce options apply
+		if ((mapalign == 1) && ((canonical == 1) || (minimizerw > 1) || (hotmin > 0) || (seedstore != null) || (readfiltermb > 0) ||
+				                (grouprefs == 1) || (flankcache == 1) || (refpointers == 1) || (v2 == 1) || (reducethreads > 1)))
+		{
+			System.err.println("-mapalign can't be used with -canonical, -minimizer, -hotseeds, -seedstore, -readfilter, " +
+					           "-grouprefs, -flankcache, -refpointers, -v2 or -reducethreads"); return;
+		}
+
+		if ((cascade.length > 0) && !filteralignments) { System.err.println("-cascade needs filteralignments"); return; }
+		if ((cascade.length > 0) && (allowdifferences != 0)) { System.err.println("-cascade only works for k-mismatch alignments"); return; }
+		if ((cascade.length > 0) && ((seedstore != null) || (spaced != null))) { System.err.println("-cascade can't be used with -seedstore or -spaced"); return; }
+		for (int c = 0; c < cascade.length; c++)
+		{
+			if ((cascade[c] < 0) || (cascade[c] >= K) || ((c > 0) && (cascade[c] <= cascade[c-1])))
+			{
+				System.err.println("-cascade must be increasing k's from 0 to " + (K-1)); return;
+			}
+		}
 		
 		if (readlen > CHUNK_OVERLAP)
 		{
@@ -218,23 +617,103 @@ public class CloudBurst {
 		String alignpath = outpath;
 		if (filteralignments) { alignpath += "-alignments"; }
 		
-		
-		// run the alignments
-		Timer talign = new Timer();
-		alignall(refpath,  qrypath, alignpath, readlen, readlen, K, allowdifferences, filteralignments, 
-				 nummappers, numreducers, blocksize, redundancy);
-		System.err.println("Alignment time: " + talign.get());
+		AlignOptions opts = new AlignOptions();
+		opts.refpath            = refpath;
+		opts.MIN_READ_LEN       = readlen;
+		opts.MAX_READ_LEN       = readlen;
+		opts.ALLOW_DIFFERENCES  = allowdifferences;
+		opts.FILTER_ALIGNMENTS  = filteralignments;
+		opts.NUM_MAP_TASKS      = nummappers;
+		opts.NUM_REDUCE_TASKS   = numreducers;
+		opts.BLOCK_SIZE         = blocksize;
+		opts.REDUNDANCY         = redundancy;
+		opts.DIFF_ENGINE        = diffengine;
+		opts.REDUCE_THREADS     = reducethreads;
+		opts.PARALLEL_MIN_PAIRS = parallelmin;
+		opts.MAP_THREADS        = mapthreads;
+		opts.HOT_MIN            = hotmin;
+		opts.HOT_SAMPLE         = hotsample;
+		opts.SEED_STORE         = seedstore;
+		opts.SPILL_MB           = spillmb;
+		opts.FLANK_CACHE        = (flankcache == 1);
+		opts.CANONICAL          = (canonical == 1);
+		opts.MINIMIZER_W        = minimizerw;
+		opts.SPACED_SEED        = spaced;
+		opts.REF_POINTERS       = (refpointers == 1);
+		opts.RECORD_V2          = (v2 == 1);
+		opts.GROUP_REFS         = (grouprefs == 1);
+		opts.READ_FILTER_MB     = readfiltermb;
+
+		// the copies of collapsed reads are added by the last job
+		opts.READ_COPIES        = filteralignments ? null : copies;
+
+
+		// with a cascade, align at each smaller k first, and only pass on the reads
+		// without a unique best alignment. The last pass is at K. Reads with an N
+		// skip the early passes, see CascadeReads
+		String passqry = qrypath;
+		String filterpaths = alignpath;
+
+		for (int pass = 0; pass <= cascade.length; pass++)
+		{
+			boolean lastpass = (pass == cascade.length);
+
+			AlignOptions passopts = opts.copy();
+			passopts.qrypath      = passqry;
+			passopts.outpath      = lastpass ? alignpath : outpath + "-cascade" + pass + "-alignments";
+			passopts.K            = lastpass ? K : cascade[pass];
+			passopts.SKIP_N_READS = !lastpass;
+
+			// run the alignments
+			Timer talign = new Timer();
+			if (mapalign == 1)
+			{
+				alignmap(passopts);
+			}
+			else
+			{
+				alignall(passopts);
+			}
+			System.err.println("Alignment time: " + talign.get());
+			
+			if (!lastpass)
+			{
+				Timer tcascade = new Timer();
+				String passbest = outpath + "-cascade" + pass;
+				String passreads = passbest + "-reads";
+				
+				filter(passopts.outpath, passbest, numfmappers, numfreducers, null);
+				CascadeReads.run(passqry, passbest, passreads, numfmappers, numfreducers);
+				
+				// the unique bests are final, the last filter merges them with the later passes
+				filterpaths = passbest + "," + filterpaths;
+				passqry = passreads;
+				
+				System.err.println("Cascade " + passopts.K + " time: " + tcascade.get());
+			}
+		}
 		
 		
 		// filter to report best alignments
 		if (filteralignments)
 		{
 			Timer tfilter = new Timer();
-			filter(alignpath, outpath, numfmappers, numfreducers);
+			filter(filterpaths, outpath, numfmappers, numfreducers, copies);
 		
 			System.err.println("Filtering time: " + tfilter.get());
 		}
 		
+		
+		// work out the transcripts of the reported alignments
+		if (details == 1)
+		{
+			Timer tdetails = new Timer();
+			AlignmentDetails.run(refpath, qrypath, outpath, outpath + "-details", alignpath + "-refflanks", allowdifferences,
+					             numfmappers, numfreducers, copies, refpointers == 1);
+			
+			System.err.println("Details time: " + tdetails.get());
+		}
+		
 		System.err.println("Total Running time:  " + all.get());
 	};
 }
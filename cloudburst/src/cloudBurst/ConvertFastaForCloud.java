@@ -7,6 +7,8 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -38,6 +40,128 @@ public class ConvertFastaForCloud {
 		
 	private static IntWritable iw = new IntWritable();
 	
+	// with -dedup, the reads are sorted by sequence on disk with the Hadoop
+	// SequenceFile.Sorter, so only a bit per read is kept in memory: the ids
+	// of the later copies of a sequence, which aren't saved
+	private static final int SORT_MB = 64;
+	private static SequenceFile.Writer keywriter = null; // set while collecting the sort keys
+	private static BitSet copyids = null;
+	private static int numcopies = 0;
+	
+	
+	//------------------------- saveRead --------------------------
+	// Save a sequence, or with -dedup skip it if it is a later copy. While
+	// the copies are being found, only write its sort key
+	
+	public static void saveRead(int id, StringBuilder sequence, Writer writer) throws IOException
+	{
+		if (keywriter != null)
+		{
+			iw.set(id);
+			keywriter.append(dedupKey(id, sequence), iw);
+			return;
+		}
+		
+		if ((copyids != null) && copyids.get(id))
+		{
+			return;
+		}
+		
+		saveSequence(id, sequence, writer);
+	}
+	
+	
+	//------------------------- dedupKey --------------------------
+	// The length and packed bases of a read, then its id, so the sort puts
+	// identical reads together with the first one in front
+	
+	private static BytesWritable dedupKey(int id, StringBuilder sequence)
+	{
+		byte [] dna = DNAString.arrToDNA(DNAString.stringToBytes(sequence.toString()));
+		int len = sequence.length();
+		
+		byte [] key = new byte[dna.length + 8];
+		
+		key[0] = (byte) (len >> 24); key[1] = (byte) (len >> 16); key[2] = (byte) (len >> 8); key[3] = (byte) len;
+		System.arraycopy(dna, 0, key, 4, dna.length);
+		key[key.length-4] = (byte) (id >> 24); key[key.length-3] = (byte) (id >> 16);
+		key[key.length-2] = (byte) (id >> 8);  key[key.length-1] = (byte) id;
+		
+		return new BytesWritable(key);
+	}
+	
+	
+	//------------------------- findCopies --------------------------
+	// Sort the reads of infile by sequence, and write the (first, copy) ids
+	// of the identical ones to copiesfile, sorted by first id for ReadCopies
+	
+	public static void findCopies(String infile, String copiesfile, JobConf config) throws IOException
+	{
+		FileSystem fs = FileSystem.get(config);
+		
+		Path keys   = new Path(copiesfile + ".keys");
+		Path sorted = new Path(copiesfile + ".sorted");
+		Path pairs  = new Path(copiesfile + ".pairs");
+		
+		keywriter = SequenceFile.createWriter(fs, config, keys, BytesWritable.class, IntWritable.class);
+		int count = convertFile(infile, null);
+		keywriter.close();
+		keywriter = null;
+		
+		SequenceFile.Sorter sorter = new SequenceFile.Sorter(fs, BytesWritable.class, IntWritable.class, config);
+		sorter.setMemory(SORT_MB << 20);
+		sorter.sort(new Path[] { keys }, sorted, true);
+		
+		copyids = new BitSet(count + 1);
+		
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, sorted, config);
+		SequenceFile.Writer pairwriter = SequenceFile.createWriter(fs, config, pairs, IntWritable.class, IntWritable.class);
+		
+		BytesWritable key = new BytesWritable();
+		IntWritable id   = new IntWritable();
+		IntWritable rep  = new IntWritable();
+		byte [] seq = new byte[0];
+		
+		while (reader.next(key, id))
+		{
+			// everything but the id
+			int seqlen = key.getSize() - 4;
+			
+			if ((seqlen == seq.length) && equalBytes(key.get(), seq, seqlen))
+			{
+				copyids.set(id.get());
+				pairwriter.append(rep, id);
+				numcopies++;
+			}
+			else
+			{
+				seq = Arrays.copyOf(key.get(), seqlen);
+				rep.set(id.get());
+			}
+		}
+		
+		reader.close();
+		pairwriter.close();
+		fs.delete(sorted, false);
+		
+		SequenceFile.Sorter pairsorter = new SequenceFile.Sorter(fs, IntWritable.class, IntWritable.class, config);
+		pairsorter.setMemory(SORT_MB << 20);
+		pairsorter.sort(new Path[] { pairs }, new Path(copiesfile), true);
+	}
+	
+	
+	//------------------------- equalBytes --------------------------
+	private static boolean equalBytes(byte [] a, byte [] b, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{
+			if (a[i] != b[i]) { return false; }
+		}
+		
+		return true;
+	}
+	
+	
 	public static void saveSequence(int id, StringBuilder sequence, Writer writer) throws IOException
 	{	
 		int fulllength = sequence.length();
@@ -84,7 +208,7 @@ public class ConvertFastaForCloud {
 		}
 	}
 	
-	public static void convertFile(String infile, SequenceFile.Writer writer) throws IOException
+	public static int convertFile(String infile, SequenceFile.Writer writer) throws IOException
 	{
 		String header = "";
 		StringBuilder sequence = null;
@@ -109,7 +233,7 @@ public class ConvertFastaForCloud {
 				{
 					if (count > 0)
 					{
-					  saveSequence(count, sequence, writer);
+					  saveRead(count, sequence, writer);
 					}
 					
 					sequence = new StringBuilder();
@@ -124,7 +248,7 @@ public class ConvertFastaForCloud {
 				}
 			}
 			
-			saveSequence(count, sequence, writer);
+			saveRead(count, sequence, writer);
 			
 		    out.close();
 		} 
@@ -136,6 +260,8 @@ public class ConvertFastaForCloud {
 		}
 		
 		System.err.println("Processed " + count + " sequences");
+		
+		return count;
 	}
 	
 	
@@ -144,8 +270,20 @@ public class ConvertFastaForCloud {
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException {
-		if (args.length != 2) {
-			System.err.println("Usage: ConvertFastaForCloud file.fa outfile.br");
+		String copiesfile = null;
+		boolean usage = (args.length < 2);
+		
+		for (int i = 2; !usage && (i < args.length); i++)
+		{
+			if (args[i].equals("-dedup") && (i+1 < args.length)) { copiesfile = args[++i]; }
+			else if (args[i].equals("-v2"))                      { record.m_v2 = true; }
+			else                                                 { usage = true; }
+		}
+		
+		if (usage) {
+			System.err.println("Usage: ConvertFastaForCloud file.fa outfile.br [-dedup copies.br] [-v2]");
+			System.err.println("  -dedup copies.br  only save the first of identical reads, and their copies to copies.br for CloudBurst -copies");
+			System.err.println("  -v2               pack the sequences 4 bases / byte, with the N's listed separately");
 			System.exit(-1);
 		}
 		
@@ -156,6 +294,12 @@ public class ConvertFastaForCloud {
 		
 		JobConf config = new JobConf();
 		
+		if (copiesfile != null)
+		{
+			findCopies(infile, copiesfile, config);
+			System.err.println("Collapsed " + numcopies + " identical reads into " + copiesfile);
+		}
+		
 		SequenceFile.Writer writer = SequenceFile.createWriter(FileSystem.get(config), config,
 				new Path(outfile), IntWritable.class, BytesWritable.class);
 		
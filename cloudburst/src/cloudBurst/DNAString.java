@@ -21,9 +21,10 @@ public class DNAString {
 	public static byte [] dnaToLetter = initializeDNAToLetter();
 	public static byte [] seedToLetter = initializeSeedToLetter();
 	public static byte [] rcLetter = initializeRC();
+	public static byte [] dnaComplement = initializeDNAComplement();
+	public static final byte [] seedToDNA = { dna_a, dna_c, dna_g, dna_t };
 	
 	public static final byte[] nostr = new byte [0];
-	private static final StringBuilder builder = new StringBuilder();
 	
 	public static String VERSION = "2.0";
 	
@@ -44,6 +45,29 @@ public class DNAString {
 	}
 	
 	
+	//------------------------- initializeDNAComplement --------------------------
+	// complement both packed bases of a byte, N's and spaces stay the same
+	
+	public static byte [] initializeDNAComplement()
+	{
+		byte [] nibble = new byte [16];
+		
+		for (int i = 0; i < 16; i++) { nibble[i] = (byte) i; }
+		
+		nibble[dna_a] = dna_t; nibble[dna_t] = dna_a;
+		nibble[dna_c] = dna_g; nibble[dna_g] = dna_c;
+		
+		byte [] retval = new byte [256];
+		
+		for (int i = 0; i < 256; i++)
+		{
+			retval[i] = (byte) ((nibble[i >> 4] << 4) | nibble[i & 0x0F]);
+		}
+		
+		return retval;
+	}
+	
+	
 	//------------------------- rc --------------------------
 	public static byte rc(byte letter)
 	{
@@ -148,10 +172,16 @@ public class DNAString {
 	//------------------------- dnaArrLen --------------------------
 	public static int dnaArrLen(byte [] arr)
 	{
-		int retval = arr.length * 2;
-		if (arr.length > 0)
+		return dnaArrLen(arr, 0, arr.length);
+	}
+	
+	// number of bases in the len packed bytes at arr[pos]
+	public static int dnaArrLen(byte [] arr, int pos, int len)
+	{
+		int retval = len * 2;
+		if (len > 0)
 		{
-			if ((arr[arr.length-1] & 0x0F) == space)
+			if ((arr[pos+len-1] & 0x0F) == space)
 			{
 				retval--;
 			}
@@ -247,6 +277,232 @@ public class DNAString {
 		return seedlen;
 	}
 	
+	//------------------------- arrToDNA2 --------------------------
+	// Pack len bases of arr from arrpos, last base first if reverse, in the v2
+	// encoding: the number of bases and of N runs, then each N run as the
+	// number of bases since the previous run and its length, all as varints,
+	// then 4 bases / byte with the first base in the high bits and the N's
+	// packed as A's. Returns the number of bytes written, at most dna2MaxLen
+	
+	public static int arrToDNA2(byte[] arr, int arrpos, int len, boolean reverse, byte [] out, int outpos)
+	{
+		int step  = reverse ? -1 : 1;
+		int first = reverse ? arrpos + len - 1 : arrpos;
+		
+		int runs = 0;
+		boolean inrun = false;
+		
+		for (int i = 0, a = first; i < len; i++, a += step)
+		{
+			boolean n = (letterToDNA[arr[a] & 0xFF] == dna_n);
+			if (n && !inrun) { runs++; }
+			inrun = n;
+		}
+		
+		int pos = putVarint(len, out, outpos);
+		pos = putVarint(runs, out, pos);
+		
+		if (runs > 0)
+		{
+			int last = 0;   // end of the previous run
+			int runstart = -1;
+			
+			for (int i = 0, a = first; i <= len; i++, a += step)
+			{
+				boolean n = (i < len) && (letterToDNA[arr[a] & 0xFF] == dna_n);
+				
+				if (n && (runstart < 0)) { runstart = i; }
+				
+				if (!n && (runstart >= 0))
+				{
+					pos = putVarint(runstart - last, out, pos);
+					pos = putVarint(i - runstart, out, pos);
+					last = i;
+					runstart = -1;
+				}
+			}
+		}
+		
+		for (int i = 0, a = first; i < len; i += 4)
+		{
+			int b = 0;
+			
+			for (int j = i; j < i+4; j++, a += step)
+			{
+				b <<= 2;
+				if (j < len) { b |= letterToSeed[arr[a] & 0xFF]; }
+			}
+			
+			out[pos++] = (byte) b;
+		}
+		
+		return pos - outpos;
+	}
+	
+	
+	//------------------------- dna2MaxLen --------------------------
+	// Most bytes arrToDNA2 can write for len bases
+	
+	public static int dna2MaxLen(int len)
+	{
+		// each varint byte of a run covers at least one base
+		return 10 + len + (len+3)/4;
+	}
+	
+	
+	//------------------------- dna2Bases --------------------------
+	// Number of bases in the v2 string at in[inpos]
+	
+	public static int dna2Bases(byte [] in, int inpos)
+	{
+		int v = 0;
+		
+		for (int shift = 0; ; shift += 7)
+		{
+			int b = in[inpos++];
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return v; }
+		}
+	}
+	
+	
+	//------------------------- dna2ToDNA --------------------------
+	// Unpack the v2 string at in[inpos] to 2 bases / byte like arrToDNAStr,
+	// or to ascii if ascii. Returns the position after the v2 string
+	
+	public static int dna2ToDNA(byte [] in, int inpos, byte [] out, int outpos, boolean ascii)
+	{
+		int [] v = new int[1];
+		
+		inpos = getVarint(in, inpos, v); int len  = v[0];
+		inpos = getVarint(in, inpos, v); int runs = v[0];
+		
+		// skip over the runs to the bases, and read the runs as the bases go by
+		int runpos = inpos;
+		for (int r = 0; r < 2*runs; r++)
+		{
+			inpos = getVarint(in, inpos, v);
+		}
+		
+		int nextrun = len; // start of the next N run
+		int runend  = len;
+		
+		if (runs > 0)
+		{
+			runpos = getVarint(in, runpos, v); nextrun = v[0];
+			runpos = getVarint(in, runpos, v); runend  = nextrun + v[0];
+			runs--;
+		}
+		
+		int pending = -1;
+		
+		for (int i = 0; i < len; i++)
+		{
+			int code;
+			
+			if (i >= nextrun)
+			{
+				code = dna_n;
+				
+				if (i == runend - 1)
+				{
+					if (runs > 0)
+					{
+						runpos = getVarint(in, runpos, v); nextrun = runend + v[0];
+						runpos = getVarint(in, runpos, v); runend  = nextrun + v[0];
+						runs--;
+					}
+					else
+					{
+						nextrun = runend = len;
+					}
+				}
+			}
+			else
+			{
+				code = seedToDNA[(in[inpos + (i >> 2)] >> (6 - 2*(i & 3))) & 0x03];
+			}
+			
+			if (ascii)
+			{
+				out[outpos++] = dnaToLetter[code];
+			}
+			else if (pending < 0)
+			{
+				pending = code;
+			}
+			else
+			{
+				out[outpos++] = (byte) ((pending << 4) | code);
+				pending = -1;
+			}
+		}
+		
+		if (pending >= 0) { out[outpos] = (byte) ((pending << 4) | space); }
+		
+		return inpos + (len+3)/4;
+	}
+	
+	
+	//------------------------- putVarint / getVarint --------------------------
+	
+	static int putVarint(int v, byte [] out, int pos)
+	{
+		while ((v & ~0x7F) != 0)
+		{
+			out[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		
+		out[pos++] = (byte) v;
+		return pos;
+	}
+	
+	static int getVarint(byte [] in, int pos, int [] v)
+	{
+		int r = 0;
+		
+		for (int shift = 0; ; shift += 7)
+		{
+			int b = in[pos++];
+			r |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { v[0] = r; return pos; }
+		}
+	}
+	
+	
+	//------------------------- arrToSpacedSeed --------------------------
+	// Same layout as arrToSeed, but only pack the bases at the care offsets
+	// of a spaced seed (see SpacedSeed) from the window at arr[arrpos]
+	
+	public static int arrToSpacedSeed(byte[] arr, int arrpos, int [] care, byte [] seed, int seedpos, int id, int REDUNDANCY)
+	{
+		int weight  = care.length;
+		int seedlen = (weight+3)/4;
+		
+		for (int i = 0; i < weight; i += 4)
+		{
+			int b = 0;
+			
+			for (int j = i; j < i+4; j++)
+			{
+				b <<= 2;
+				if (j < weight) { b |= byteToSeed(arr[arrpos + care[j]]); }
+			}
+			
+			seed[seedpos] = (byte) b;
+			seedpos++;
+		}
+		
+		if (REDUNDANCY > 1)
+		{
+			seed[seedpos] = (byte) ((id % REDUNDANCY) & 0xff);
+			seedlen++;
+		}
+		
+		return seedlen;
+	}
+	
 	public static boolean repseed(byte [] seq, int start, int SEED_LEN)
 	{
 		byte first = seq[start];
@@ -411,6 +667,25 @@ public class DNAString {
 		return arr;
 	}
 
+	//------------------------- dnaToArr --------------------------
+	// Unpack into arr, which must hold dnalen*2 bases. Returns the number of bases
+	
+	public static int dnaToArr(byte [] dna, int dnapos, int dnalen, byte [] arr)
+	{
+		int arrpos = 0;
+		int dnaend = dnapos + dnalen;
+		
+		for (; dnapos < dnaend; dnapos++)
+		{
+			arr[arrpos++] = dnaToLetter[(dna[dnapos] >> 4) & 0x0F];
+			
+			int lo = dna[dnapos] & 0x0F;
+			if (lo != space) { arr[arrpos++] = dnaToLetter[lo]; }
+		}
+		
+		return arrpos;
+	}
+
 	//------------------------- dnaToArr --------------------------
 	public static byte[] dnaToArr(byte [] dna)
 	{
@@ -434,7 +709,7 @@ public class DNAString {
 	//------------------------- bytesToString --------------------------
 	public static String bytesToString(byte [] arr)
 	{
-		builder.setLength(0);
+		StringBuilder builder = new StringBuilder();
 		
 		if (arr != null)
 		{
@@ -450,7 +725,7 @@ public class DNAString {
 	//------------------------- bytesToString --------------------------
 	public static String bytesToString(byte [] arr, int start, int len)
 	{
-		builder.setLength(0);
+		StringBuilder builder = new StringBuilder(len);
 		
 		if (arr != null)
 		{
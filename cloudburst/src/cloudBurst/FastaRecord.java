@@ -9,7 +9,12 @@ public class FastaRecord
 	public boolean  m_lastChunk = false;
 	public int      m_offset = 0;
 	
-	private static final StringBuilder builder = new StringBuilder();
+	// write the v2 encoding: 4 bases / byte and a list of N runs, see DNAString.arrToDNA2
+	public boolean  m_v2 = false;
+	
+	private static final int V2 = 0x80;
+	
+	private final StringBuilder builder = new StringBuilder();
 	
 	FastaRecord()
 	{
@@ -34,6 +39,8 @@ public class FastaRecord
 	
 	public BytesWritable toBytes()
 	{
+		if (m_v2) { return toBytesV2(); }
+		
 		byte [] dna = DNAString.arrToDNA(m_sequence);
 		
 		int len = 1 + // lastChunk
@@ -55,18 +62,44 @@ public class FastaRecord
 	}
 
 	
+	public BytesWritable toBytesV2()
+	{
+		byte [] buf = new byte[5 + DNAString.dna2MaxLen(m_sequence.length)];
+		
+		buf[0] = (byte) ((m_lastChunk ? 1 : 0) | V2);
+		
+		buf[1] = (byte) ((m_offset & 0xFF000000) >> 24);
+		buf[2] = (byte) ((m_offset & 0x00FF0000) >> 16);
+		buf[3] = (byte) ((m_offset & 0x0000FF00) >> 8);
+		buf[4] = (byte) ((m_offset & 0x000000FF));
+		
+		int len = 5 + DNAString.arrToDNA2(m_sequence, 0, m_sequence.length, false, buf, 5);
+		
+		BytesWritable bw = new BytesWritable();
+		bw.set(buf, 0, len);
+		return bw;
+	}
+	
+	
 	public void fromBytes(BytesWritable t)
 	{
 		byte [] raw = t.get();
 		int rawlen = t.getSize();
 		
-		m_lastChunk   = raw[0] == 1;
+		m_lastChunk   = (raw[0] & 0x01) == 1;
 		
 		m_offset =   (raw[1] & 0xFF) << 24 
 		           | (raw[2] & 0xFF) << 16
 		           | (raw[3] & 0xFF) << 8
 		           | (raw[4] & 0xFF);
 		
+		if ((raw[0] & V2) == V2)
+		{
+			m_sequence = new byte[DNAString.dna2Bases(raw, 5)];
+			DNAString.dna2ToDNA(raw, 5, m_sequence, 0, true);
+			return;
+		}
+		
 		int sl = rawlen - 5;
 		m_sequence = DNAString.dnaToArr(raw, 5, sl);
 	}
@@ -82,7 +115,8 @@ public class FastaRecord
 			
 			record.m_lastChunk = false;
 			record.m_offset = 123456;
-			record.m_sequence = DNAString.stringToBytes("ACGTACGTA");
+			record.m_sequence = DNAString.stringToBytes((i & 1) == 0 ? "ACGTACGTA" : "NNACGTNNNACGTTN");
+			record.m_v2 = (i & 2) == 0;
 			
 			BytesWritable bw = record.toBytes();
 			
@@ -5,6 +5,7 @@ import java.util.Iterator;
 
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -35,6 +36,7 @@ public class FilterAlignments
 		private static AlignmentRecord bestAlignment = new AlignmentRecord();
 		private static AlignmentRecord curAlignment  = new AlignmentRecord();
 		private static AlignmentRecord secondBest    = new AlignmentRecord();
+		private static BytesWritable bytes           = new BytesWritable();
 
 		public synchronized void reduce(IntWritable readid, Iterator<BytesWritable> values,
 										OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException 
@@ -62,11 +64,11 @@ public class FilterAlignments
 				}
 			}
 			
-			output.collect(readid, bestAlignment.toBytes());
+			output.collect(readid, bestAlignment.toBytes(bytes));
 			
 			if (recordSecond)
 			{
-				output.collect(readid, secondBest.toBytes());
+				output.collect(readid, secondBest.toBytes(bytes));
 			}
 		}
 	}	
@@ -78,10 +80,36 @@ public class FilterAlignments
 	{
 		private static AlignmentRecord bestAlignment = new AlignmentRecord();
 		private static AlignmentRecord curAlignment = new AlignmentRecord();
+		private static BytesWritable bytes          = new BytesWritable();
+		
+		// reports the alignments of collapsed reads for their copies too, if set
+		private ReadCopies.Collector copies = null;
+		
+		public void configure(JobConf conf)
+		{
+			String copiespath = conf.get("READ_COPIES_PATH");
+			if (copiespath != null)
+			{
+				try
+				{
+					copies = ReadCopies.load(conf, copiespath).collector(null);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't load read copies from " + copiespath + ": " + e.getMessage());
+				}
+			}
+		}
 				
 		public synchronized void reduce(IntWritable readid, Iterator<BytesWritable> values,
 		  			             OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException 
 		{
+			if (copies != null)
+			{
+				copies.setOutput(output);
+				output = copies;
+			}
+			
 			boolean recordBest = true;
 			bestAlignment.fromBytes(values.next());
 						
@@ -107,7 +135,7 @@ public class FilterAlignments
 			
 			if (recordBest)
 			{
-				output.collect(readid, bestAlignment.toBytes());
+				output.collect(readid, bestAlignment.toBytes(bytes));
 			}
 		}
 	}	
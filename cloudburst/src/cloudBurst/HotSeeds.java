@@ -0,0 +1,282 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+
+/// Sampling pre-pass that finds the high copy seeds of the reference
+/// (transposons, rRNA repeats, ...) and how many ways to split each one.
+///
+/// Seeds are counted at 1 in SAMPLE_RATE reference positions, and a seed whose
+/// estimated count is at least HOT_MIN is written out with
+/// ceil(estimate / HOT_MIN) copies, up to MAX_COPIES. The alignment job then
+/// emits the reference tuples of a hot seed once per copy and sends each read
+/// to one of them, the same way REDUNDANCY splits homopolymer seeds.
+
+public class HotSeeds {
+
+	// the replica fits in one byte of the SeedKey
+	public static final int MAX_REPLICAS = 255;
+
+
+	//------------------------- SampleMapClass --------------------------
+	// Emit the seeds starting at the sampled reference positions
+
+	public static class SampleMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, SeedKey, IntWritable>
+	{
+		private FastaRecord record = new FastaRecord();
+		private SeedKey seed = new SeedKey();
+		private IntWritable one = new IntWritable(1);
+		private int SEED_LEN;
+		private int SAMPLE_RATE;
+		private boolean CANONICAL;
+
+		public void configure(JobConf conf)
+		{
+			SEED_LEN    = Integer.parseInt(conf.get("SEED_LEN"));
+			SAMPLE_RATE = Integer.parseInt(conf.get("SAMPLE_RATE"));
+			CANONICAL   = Integer.parseInt(conf.get("CANONICAL", "0")) == 1;
+		}
+
+		public void map(IntWritable id, BytesWritable rawRecord,
+				OutputCollector<SeedKey, IntWritable> output, Reporter reporter) throws IOException
+		{
+			record.fromBytes(rawRecord);
+
+			byte [] seq         = record.m_sequence;
+			int realoffsetstart = record.m_offset;
+			int seqlen = seq.length;
+
+			int startoffset = 0;
+
+			// If I'm not the first chunk, skip the overlap with the previous chunk
+			if (realoffsetstart != 0)
+			{
+				int shift = CloudBurst.CHUNK_OVERLAP + 1 - SEED_LEN;
+				startoffset = shift;
+				realoffsetstart += shift;
+			}
+
+			// stop so the last mer will just fit
+			int end = seqlen - SEED_LEN + 1;
+
+			// sample by reference position, so each copy of a repeat is equally likely to be counted
+			int skip = (SAMPLE_RATE - (realoffsetstart % SAMPLE_RATE)) % SAMPLE_RATE;
+
+			for (int start = startoffset + skip; start < end; start += SAMPLE_RATE)
+			{
+				if (DNAString.arrHasN(seq, start, SEED_LEN)) { continue; }
+
+				// count the seeds under the same keys the alignment job will use
+				if (CANONICAL) { seed.setCanonical(seq, start, SEED_LEN, 0, 1); }
+				else           { seed.set(seq, start, SEED_LEN, 0, 1); }
+
+				output.collect(seed, one);
+			}
+		}
+	}
+
+
+	//------------------------- SumCombinerClass --------------------------
+	// Add up the partial sample counts
+
+	public static class SumCombinerClass extends MapReduceBase implements
+			Reducer<SeedKey, IntWritable, SeedKey, IntWritable>
+	{
+		private IntWritable count = new IntWritable();
+
+		public void reduce(SeedKey seed, Iterator<IntWritable> values,
+				OutputCollector<SeedKey, IntWritable> output, Reporter reporter) throws IOException
+		{
+			int cnt = 0;
+			while (values.hasNext()) { cnt += values.next().get(); }
+
+			count.set(cnt);
+			output.collect(seed, count);
+		}
+	}
+
+
+	//------------------------- HotReduceClass --------------------------
+	// Keep just the hot seeds, with the number of ways to split them
+
+	public static class HotReduceClass extends MapReduceBase implements
+			Reducer<SeedKey, IntWritable, SeedKey, IntWritable>
+	{
+		private IntWritable copies = new IntWritable();
+		private int SAMPLE_RATE;
+		private long HOT_MIN;
+		private int MAX_COPIES;
+
+		public void configure(JobConf conf)
+		{
+			SAMPLE_RATE = Integer.parseInt(conf.get("SAMPLE_RATE"));
+			HOT_MIN     = Long.parseLong(conf.get("HOT_MIN"));
+			MAX_COPIES  = Integer.parseInt(conf.get("MAX_COPIES"));
+		}
+
+		public void reduce(SeedKey seed, Iterator<IntWritable> values,
+				OutputCollector<SeedKey, IntWritable> output, Reporter reporter) throws IOException
+		{
+			long cnt = 0;
+			while (values.hasNext()) { cnt += values.next().get(); }
+
+			long estimate = cnt * SAMPLE_RATE;
+			if (estimate < HOT_MIN) { return; }
+
+			long c = (estimate + HOT_MIN - 1) / HOT_MIN;
+			if (c > MAX_COPIES) { c = MAX_COPIES; }
+			if (c < 2) { return; }
+
+			copies.set((int) c);
+			output.collect(seed, copies);
+		}
+	}
+
+
+	//------------------------- run --------------------------
+	// Setup and run the hadoop job for finding the hot seeds of the reference
+
+	public static void run(String refpath,
+			               String outpath,
+			               int SEED_LEN,
+			               int SAMPLE_RATE,
+			               long HOT_MIN,
+			               int MAX_COPIES,
+			               int NUM_MAP_TASKS,
+			               int NUM_REDUCE_TASKS,
+			               boolean CANONICAL) throws IOException
+	{
+		if (MAX_COPIES > MAX_REPLICAS) { MAX_COPIES = MAX_REPLICAS; }
+
+		System.out.println("HOT_SEEDS_PATH: " + outpath);
+		System.out.println("SAMPLE_RATE: "    + SAMPLE_RATE);
+		System.out.println("HOT_MIN: "        + HOT_MIN);
+		System.out.println("MAX_COPIES: "     + MAX_COPIES);
+		System.out.println("CANONICAL: "      + CANONICAL);
+
+		JobConf conf = new JobConf(HotSeeds.class);
+		conf.setJobName("HotSeeds");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(NUM_REDUCE_TASKS);
+
+		FileInputFormat.addInputPath(conf, new Path(refpath));
+
+		conf.set("SEED_LEN",    Integer.toString(SEED_LEN));
+		conf.set("SAMPLE_RATE", Integer.toString(SAMPLE_RATE));
+		conf.set("HOT_MIN",     Long.toString(HOT_MIN));
+		conf.set("MAX_COPIES",  Integer.toString(MAX_COPIES));
+		conf.set("CANONICAL",   (CANONICAL ? "1" : "0"));
+
+		conf.setMapperClass(SampleMapClass.class);
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(SeedKey.class);
+		conf.setMapOutputValueClass(IntWritable.class);
+
+		conf.setCombinerClass(SumCombinerClass.class);
+
+		conf.setReducerClass(HotReduceClass.class);
+		conf.setOutputKeyClass(SeedKey.class);
+		conf.setOutputValueClass(IntWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		Path oPath = new Path(outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old results");
+		FileSystem.get(conf).delete(oPath, true);
+
+		JobClient.runJob(conf);
+
+		System.err.println("HotSeeds Finished");
+	}
+
+
+	//------------------------- load --------------------------
+	// Read the hot seed table written by run(): seed (without a replica) -> copies
+
+	public static Map<SeedKey, Integer> load(JobConf conf, String path) throws IOException
+	{
+		Map<SeedKey, Integer> hot = new HashMap<SeedKey, Integer>();
+
+		Path dir = new Path(path);
+		FileSystem fs = dir.getFileSystem(conf);
+
+		for (FileStatus status : fs.listStatus(dir))
+		{
+			if (!status.getPath().getName().startsWith("part-")) { continue; }
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, status.getPath(), conf);
+
+			try
+			{
+				SeedKey seed = new SeedKey();
+				IntWritable copies = new IntWritable();
+
+				while (reader.next(seed, copies))
+				{
+					hot.put(seed, copies.get());
+					seed = new SeedKey();
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+
+		return hot;
+	}
+
+
+	//------------------------- main --------------------------
+	// Run the sampling pass on its own and report the hot seeds
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 8)
+		{
+			System.err.println("Usage: HotSeeds refpath outpath seedlen samplerate hotmin maxcopies #mappers #reducers");
+			return;
+		}
+
+		String refpath = args[0];
+		String outpath = args[1];
+
+		Timer t = new Timer();
+		run(refpath, outpath, Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[4]),
+			Integer.parseInt(args[5]), Integer.parseInt(args[6]), Integer.parseInt(args[7]), false);
+		System.err.println("Total Running time was " + t.get());
+
+		Map<SeedKey, Integer> hot = load(new JobConf(HotSeeds.class), outpath);
+		int seedlen = Integer.parseInt(args[2]);
+
+		for (Map.Entry<SeedKey, Integer> e : hot.entrySet())
+		{
+			System.out.println(DNAString.bytesToString(e.getKey().toArr(seedlen)) + "\t" + e.getValue());
+		}
+
+		System.err.println("Num hot seeds: " + hot.size());
+	}
+}
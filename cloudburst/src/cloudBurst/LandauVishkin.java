@@ -14,23 +14,73 @@ import java.io.IOException;
 
 public final class LandauVishkin {
 
-	private static AlignInfo noAlignment   = new AlignInfo(0,  0, null, null, 0);
-	private static AlignInfo badAlignment  = new AlignInfo(-1,-1, null, null, 0);
-	private static AlignInfo goodAlignment = new AlignInfo(0, 0, null, null, 0);
+	// k-difference engines selectable with CloudBurst -engine
+	public static final int ENGINE_LANDAU_VISHKIN = 0;
+	public static final int ENGINE_BIT_VECTOR     = 1;
+
+	// never modified, so safe to share between aligners
+	private static final AlignInfo noAlignment  = new AlignInfo(0,  0, null, null, 0);
+	private static final AlignInfo badAlignment = new AlignInfo(-1,-1, null, null, 0);
+	
+	// each aligner owns its scratch buffers and result, so one can be used per thread
+	private AlignInfo goodAlignment = new AlignInfo(0, 0, null, null, 0);
+	
+	private int [][] L = null;
+	private int [] dist = null;
+	private int [] what = null;	
+	
+	// what score() left for traceback() to fill in, if anything
+	private static final int TRACE_NONE       = 0;
+	private static final int TRACE_MISMATCH   = 1;
+	private static final int TRACE_DIFFERENCE = 2;
+	
+	private int pending = TRACE_NONE;
+	
+	// the last score only kmismatch_bin, to recover the mismatch positions
+	private byte [] tbText, tbPattern;
+	private int tbToff, tbPoff, tbLast, tbLastx, tbMM;
+	
+	// the last score only kdifference: the k it ran with, and its end cell
+	private int tbK, tbE, tbD;
+	
+	private int engine = ENGINE_LANDAU_VISHKIN;
+	private MyersBitVector bitvector = null;
+	
+	// unpacked flanks for kdifference_bin
+	private byte [] textbuf    = new byte [256];
+	private byte [] patternbuf = new byte [256];
+	
+	
+	//------------------------- Constructor --------------------------
+	// aligner for up to k differences using Landau-Vishkin
+	
+	public LandauVishkin(int k)
+	{
+		this(k, ENGINE_LANDAU_VISHKIN);
+	}
+	
 	
-	private static int [][] L = null;
-	private static int [][] B = null;
-	private static int [] dist = null;
-	private static int [] what = null;	
+	//------------------------- Constructor --------------------------
+	// aligner for up to k differences using the chosen k-difference engine
+	
+	public LandauVishkin(int k, int diffengine)
+	{
+		configure(k);
+		engine = diffengine;
+		
+		if (engine == ENGINE_BIT_VECTOR)
+		{
+			bitvector = new MyersBitVector(this);
+		}
+	}
 	
 	
 	//------------------------- configure --------------------------
 	// initialize runtime buffers
 	
-	public static void configure(int k)
+	public void configure(int k)
 	{
 		L    = new int [k*2+1][k+1];
-		B    = new int [k*2+1][k+1];
 		dist = new int [k+1];
 		what = new int [k+1];
 	}
@@ -39,7 +89,7 @@ public final class LandauVishkin {
 	//------------------------- kmismatch --------------------------
 	// count mismatches between ascii strings
 	
-	public static AlignInfo kmismatch(byte [] text, byte [] pattern, int k)
+	public AlignInfo kmismatch(byte [] text, byte [] pattern, int k)
 	{		
 		int m = pattern.length;
 		int n = text.length;
@@ -83,10 +133,44 @@ public final class LandauVishkin {
 	//------------------------- kmismatch_bin --------------------------
 	// count mismatches between 2 bases / byte binary strings
 	
-	public static AlignInfo kmismatch_bin(byte [] text, byte [] pattern, int k)
+	public AlignInfo kmismatch_bin(byte [] text, byte [] pattern, int k)
 	{
-		int m = pattern.length;
-		int n = text.length;
+		return kmismatch_bin(text, 0, text.length, pattern, 0, pattern.length, k);
+	}
+	
+	
+	//------------------------- kmismatch_bin --------------------------
+	// same, for the n text bytes at text[toff] and m pattern bytes at pattern[poff]
+	
+	public AlignInfo kmismatch_bin(byte [] text, int toff, int n, byte [] pattern, int poff, int m, int k)
+	{
+		return kmismatch_bin(text, toff, n, pattern, poff, m, k, true);
+	}
+	
+	
+	//------------------------- kmismatch_bin --------------------------
+	// same, leaving the mismatch positions for traceback() unless traceback.
+	// With the traceback the positions are recorded in the same pass over the
+	// bytes, which is cheaper than walking them again later
+	
+	private AlignInfo kmismatch_bin(byte [] text, int toff, int n, byte [] pattern, int poff, int m, int k, boolean traceback)
+	{
+		if (traceback)
+		{
+			pending = TRACE_NONE;
+			return kmismatch_bin_bytewise(text, toff, n, pattern, poff, m, k);
+		}
+		
+		return kmismatch_bin_score(text, toff, n, pattern, poff, m, k);
+	}
+	
+	
+	//------------------------- kmismatch_bin_score --------------------------
+	// score only kmismatch_bin, leaving the mismatch positions for traceback()
+	
+	private AlignInfo kmismatch_bin_score(byte [] text, int toff, int n, byte [] pattern, int poff, int m, int k)
+	{
+		pending = TRACE_NONE;
 		
 		if (m == 0)
 		{
@@ -99,6 +183,70 @@ public final class LandauVishkin {
 			return badAlignment;
 		}
 		
+		int last = m-1; // check the last position outside of the loop so we can check for a space
+		int mm = 0;
+		
+		for (int pos = 0; pos < last; pos++)
+		{
+			int x = text[toff+pos] ^ pattern[poff+pos];
+			
+			if (x != 0)
+			{
+				if ((x & 0xF0) != 0) { mm++; }
+				if ((x & 0x0F) != 0) { mm++; }
+				if (mm > k) { return badAlignment; }
+			}
+		}
+		
+		int alignlen = last*2+1;
+		
+		// explicitly check the last 2 characters since last 1 may be a space
+		int lastmask = 0xF0;
+		if (((text[toff+last] & 0x0F) != DNAString.space) && ((pattern[poff+last] & 0x0F) != DNAString.space))
+		{
+			alignlen++;
+			lastmask = 0xFF;
+		}
+		
+		int lastx = (text[toff+last] ^ pattern[poff+last]) & lastmask;
+		if ((lastx & 0xF0) != 0) { mm++; }
+		if ((lastx & 0x0F) != 0) { mm++; }
+		
+		if (mm > k)
+		{
+			return badAlignment;
+		}
+		
+		// only recover the mismatch positions if there are <= k mismatches
+		tbText = text;       tbToff = toff;
+		tbPattern = pattern; tbPoff = poff;
+		tbLast = last;       tbLastx = lastx;
+		tbMM = mm;
+		
+		goodAlignment.setVals(alignlen, mm, dist, what, 0);
+		pending = TRACE_MISMATCH;
+		
+		return goodAlignment;
+	}
+	
+	
+	//------------------------- kmismatch_bin_bytewise --------------------------
+	// the original one byte at a time kmismatch_bin, filling in the mismatch
+	// positions as it goes
+	
+	private AlignInfo kmismatch_bin_bytewise(byte [] text, int toff, int n, byte [] pattern, int poff, int m, int k)
+	{
+		if (m == 0)
+		{
+			return noAlignment;
+		}
+		
+		// require the entire query to align
+		if (n < m)
+		{
+			return badAlignment;
+		}
+		
 		int last = (m < n) ? m : n;
 		int mm = 0;
 		int match = 0;
@@ -108,13 +256,13 @@ public final class LandauVishkin {
 		int pos = 0;
 		for (; pos < last; pos++)
 		{
-			if (text[pos] == pattern[pos])
+			if (text[toff+pos] == pattern[poff+pos])
 			{
 				match += 2;
 			}
 			else
 			{
-				if ((text[pos] & 0xF0) != (pattern[pos] & 0xF0))
+				if ((text[toff+pos] & 0xF0) != (pattern[poff+pos] & 0xF0))
 				{
 					dist[mm] = match;
 					match = 0;
@@ -128,7 +276,7 @@ public final class LandauVishkin {
 				
 				match++;
 				
-				if ((text[pos] & 0x0F) != (pattern[pos] & 0x0F))
+				if ((text[toff+pos] & 0x0F) != (pattern[poff+pos] & 0x0F))
 				{
 					dist[mm] = match;
 					match = 0;
@@ -147,17 +295,17 @@ public final class LandauVishkin {
 		int alignlen = last*2+1;
 
 		// explicitly check the last 2 characters since last 1 may be a space
-		if (((text[pos] & 0x0F) != DNAString.space) && ((pattern[pos] & 0x0F) != DNAString.space))
+		if (((text[toff+pos] & 0x0F) != DNAString.space) && ((pattern[poff+pos] & 0x0F) != DNAString.space))
 		{
 			alignlen++;
 			
-			if (text[pos] == pattern[pos])
+			if (text[toff+pos] == pattern[poff+pos])
 			{
 				match += 2;
 			}
 			else
 			{
-				if ((text[pos] & 0xF0) != (pattern[pos] & 0xF0))
+				if ((text[toff+pos] & 0xF0) != (pattern[poff+pos] & 0xF0))
 				{
 					dist[mm] = match;
 					match = 0;
@@ -171,7 +319,7 @@ public final class LandauVishkin {
 
 				match++;
 
-				if ((text[pos] & 0x0F) != (pattern[pos] & 0x0F))
+				if ((text[toff+pos] & 0x0F) != (pattern[poff+pos] & 0x0F))
 				{
 					dist[mm] = match;
 					match = 0;
@@ -188,7 +336,7 @@ public final class LandauVishkin {
 		}
 		else
 		{
-			if ((text[pos] & 0xF0) != (pattern[pos] & 0xF0))
+			if ((text[toff+pos] & 0xF0) != (pattern[poff+pos] & 0xF0))
 			{
 				dist[mm] = match;
 				match = 0;
@@ -215,15 +363,82 @@ public final class LandauVishkin {
 		return goodAlignment;
 	}
 
+
+	//------------------------- mismatchTraceback --------------------------
+	// the mismatch positions of the last score only kmismatch_bin
+	
+	private void mismatchTraceback()
+	{
+		byte [] text = tbText, pattern = tbPattern;
+		int toff = tbToff, poff = tbPoff, last = tbLast, lastx = tbLastx, mm = tbMM;
+		int alignlen = goodAlignment.alignlen;
+		
+		int prev = 0;
+		int d = 0;
+		
+		for (int pos = 0; (d < mm) && (pos <= last); pos++)
+		{
+			int x = text[toff+pos] ^ pattern[poff+pos];
+			if (pos == last) { x = lastx; }
+			
+			if ((x & 0xF0) != 0) { dist[d] = pos*2 - prev;   what[d] = 0; d++; prev = pos*2;   }
+			if ((x & 0x0F) != 0) { dist[d] = pos*2+1 - prev; what[d] = 0; d++; prev = pos*2+1; }
+		}
+		
+		dist[mm] = alignlen - prev;
+		what[mm] = 2;
+				
+		goodAlignment.setVals(alignlen, mm, dist, what, mm+1);	// say how far we reached in the text (reference)
+	}
+
 	
 	
 	//------------------------- kdifference --------------------------
 	// Landau-Vishkin k-difference algorithm to align strings
 	
-	public static AlignInfo kdifference(byte [] text, byte [] pattern, int k)
+	public AlignInfo kdifference(byte [] text, byte [] pattern, int k)
+	{
+		return kdifference(text, text.length, pattern, pattern.length, k);
+	}
+	
+	
+	//------------------------- kdifference_bin --------------------------
+	// kdifference of 2 bases / byte binary strings, unpacked into the scratch buffers
+	
+	public AlignInfo kdifference_bin(byte [] textbin, int toff, int tlen, byte [] patternbin, int poff, int plen, int k)
+	{
+		return kdifference_bin(textbin, toff, tlen, patternbin, poff, plen, k, true);
+	}
+	
+	AlignInfo kdifference_bin(byte [] textbin, int toff, int tlen, byte [] patternbin, int poff, int plen, int k, boolean traceback)
+	{
+		if (textbuf.length < tlen*2)    { textbuf    = new byte[tlen*4]; }
+		if (patternbuf.length < plen*2) { patternbuf = new byte[plen*4]; }
+		
+		int n = DNAString.dnaToArr(textbin, toff, tlen, textbuf);
+		int m = DNAString.dnaToArr(patternbin, poff, plen, patternbuf);
+		
+		return kdifference(textbuf, n, patternbuf, m, k, traceback);
+	}
+	
+	
+	//------------------------- kdifference --------------------------
+	// Landau-Vishkin on the first n bases of text and m bases of pattern
+	
+	public AlignInfo kdifference(byte [] text, int n, byte [] pattern, int m, int k)
+	{
+		return kdifference(text, n, pattern, m, k, true);
+	}
+	
+	
+	//------------------------- kdifference --------------------------
+	// same, leaving the traceback for traceback() unless traceback. Only the
+	// furthest rows L are kept, the traceback works out which of the three
+	// moves each one came from again
+	
+	private AlignInfo kdifference(byte [] text, int n, byte [] pattern, int m, int k, boolean traceback)
 	{	
-		int m = pattern.length;
-		int n = text.length;
+		pending = TRACE_NONE;
 		
 		if (m == 0 || n == 0)
 		{
@@ -242,19 +457,19 @@ public final class LandauVishkin {
 					if (java.lang.Math.abs(d) < e)
 					{
 						int up = L[k+d][e-1] + 1;
-						if (up > row) { row = up; B[k+d][e] = 0; }
+						if (up > row) { row = up; }
 					}
 					
 					if (d > -(e-1))
 					{
 						int left = L[k+d-1][e-1];
-						if (left > row) { row = left; B[k+d][e] = -1; }
+						if (left > row) { row = left; }
 					}
 					
 					if (d < e-1)
 					{
 						int right = L[k+d+1][e-1]+1;
-						if (right > row) { row = right; B[k+d][e] = +1; }
+						if (right > row) { row = right; }
 					}
 				}
 				else
@@ -273,26 +488,13 @@ public final class LandauVishkin {
 				
 				if ((row+d == n) || (row == m)) // reached the end of the pattern or text
 				{		
-					int distlen = e+1;
-					
-					int E = e;
-					int D = d;
+					goodAlignment.setVals(row+d, e, dist, what, 0);	// say how far we reached in the text (reference)
 					
-					what[E] = 2; // always end at end-of-string
+					tbK = k; tbE = e; tbD = d;
+					pending = TRACE_DIFFERENCE;
 					
-					while (e >= 0)
-					{
-						int b = B[k+d][e];
-						if (e > 0) { what[e-1] = b; }
-						
-						dist[e] = L[k+d][e];	
-						if (e < E) { dist[e+1] -= dist[e]; }
-						
-						d += b;
-						e--;	
-					}
+					if (traceback) { traceback(); }
 					
-					goodAlignment.setVals(row+D, E, dist, what, distlen);	// say how far we reached in the text (reference)			
 					return goodAlignment;				
 				}
 			}
@@ -302,25 +504,134 @@ public final class LandauVishkin {
 	}
 	
 	
+	//------------------------- differenceTraceback --------------------------
+	// walk back from the end cell of the last kdifference, choosing the move
+	// into each cell the same way the forward pass did
+	
+	private void differenceTraceback()
+	{
+		int k = tbK, E = tbE;
+		int e = E, d = tbD;
+		
+		what[E] = 2; // always end at end-of-string
+		
+		while (e >= 0)
+		{
+			int b = 0;
+			
+			if (e > 0)
+			{
+				int row = -1;
+				
+				if (java.lang.Math.abs(d) < e)
+				{
+					int up = L[k+d][e-1] + 1;
+					if (up > row) { row = up; b = 0; }
+				}
+				
+				if (d > -(e-1))
+				{
+					int left = L[k+d-1][e-1];
+					if (left > row) { row = left; b = -1; }
+				}
+				
+				if (d < e-1)
+				{
+					int right = L[k+d+1][e-1]+1;
+					if (right > row) { row = right; b = +1; }
+				}
+				
+				what[e-1] = b;
+			}
+			
+			dist[e] = L[k+d][e];	
+			if (e < E) { dist[e+1] -= dist[e]; }
+			
+			d += b;
+			e--;	
+		}
+		
+		goodAlignment.distlen = E+1;
+	}
+	
+	
+	//------------------------- traceback --------------------------
+	// Fill in dist/what of the alignment the last score() returned. Only the
+	// isBazeaYatesSeed check and the spaced seeds need them
+	
+	public void traceback()
+	{
+		if      (pending == TRACE_MISMATCH)   { mismatchTraceback(); }
+		else if (pending == TRACE_DIFFERENCE) { differenceTraceback(); }
+		
+		pending = TRACE_NONE;
+	}
+	
+	
 	//------------------------- extend --------------------------
 	// align the strings either for either k-mismatch or k-difference
 	
-	public static AlignInfo extend(byte [] refbin, byte [] qrybin, int K, boolean ALLOW_DIFFERENCES) throws IOException
+	public AlignInfo extend(byte [] refbin, byte [] qrybin, int K, boolean ALLOW_DIFFERENCES) throws IOException
+	{
+		return extend(refbin, 0, refbin.length, qrybin, 0, qrybin.length, K, ALLOW_DIFFERENCES);
+	}
+	
+	
+	//------------------------- extend --------------------------
+	// same, reading the reflen and qrylen packed bytes in place
+	
+	public AlignInfo extend(byte [] refbuf, int refoff, int reflen, byte [] qrybuf, int qryoff, int qrylen,
+			                int K, boolean ALLOW_DIFFERENCES) throws IOException
+	{
+		if (ALLOW_DIFFERENCES)
+		{
+			if (engine == ENGINE_BIT_VECTOR)
+			{
+				return bitvector.kdifference_bin(refbuf, refoff, reflen, qrybuf, qryoff, qrylen, K);
+			}
+			
+			return kdifference_bin(refbuf, refoff, reflen, qrybuf, qryoff, qrylen, K);
+		}
+		else
+		{
+			return kmismatch_bin(refbuf, refoff, reflen, qrybuf, qryoff, qrylen, K);
+		}
+	}
+	
+	
+	//------------------------- score --------------------------
+	// Same as extend, but only the alignment length and differences are set.
+	// Call traceback() before the next alignment if dist/what are needed
+	
+	public AlignInfo score(byte [] refbuf, int refoff, int reflen, byte [] qrybuf, int qryoff, int qrylen,
+			               int K, boolean ALLOW_DIFFERENCES) throws IOException
 	{
 		if (ALLOW_DIFFERENCES)
 		{
-			byte [] ref = DNAString.dnaToArr(refbin);
-			byte [] qry = DNAString.dnaToArr(refbin);
+			if (engine == ENGINE_BIT_VECTOR)
+			{
+				return bitvector.kdifference_bin(refbuf, refoff, reflen, qrybuf, qryoff, qrylen, K, false);
+			}
 			
-			return kdifference(ref, qry, K);						
+			return kdifference_bin(refbuf, refoff, reflen, qrybuf, qryoff, qrylen, K, false);
 		}
 		else
 		{
-			return kmismatch_bin(refbin, qrybin, K);
+			return kmismatch_bin(refbuf, refoff, reflen, qrybuf, qryoff, qrylen, K, false);
 		}
 	}
 	
 	
+	//------------------------- resetPattern --------------------------
+	// Forget any state cached for the last query, call when the bytes of a
+	// query buffer are reused for a different query
+	
+	public void resetPattern()
+	{
+		if (bitvector != null) { bitvector.resetPattern(); }
+	}
+	
+	
 	
 	
 	
@@ -333,7 +644,7 @@ public final class LandauVishkin {
 	//------------------------- debugAlignment --------------------------
 	// run an alignment and generate some debugging info
 
-	public static void debugAlignment(byte[] tp, byte[] pp, int k, int kmerlen) throws IOException
+	public void debugAlignment(byte[] tp, byte[] pp, int k, int kmerlen) throws IOException
 	{
 		System.out.println("====   DEBUG  ====");
 		System.out.print("t: "); for (int i = 0; i < tp.length; i++) { System.out.print((char)tp[i]); } System.out.println();
@@ -370,7 +681,7 @@ public final class LandauVishkin {
 	//------------------------- checkBYS --------------------------
 	// check the Bazea-Yates seeds are correct
 		
-	public static void checkBYS(int k, byte [] t, byte [] p, boolean shouldbeseed, String name, int kmerlen) throws IOException
+	public void checkBYS(int k, byte [] t, byte [] p, boolean shouldbeseed, String name, int kmerlen) throws IOException
 	{
 		System.out.println("checking " + name + " (" + shouldbeseed + ")");
 		
@@ -391,7 +702,7 @@ public final class LandauVishkin {
 	//------------------------- checkBY --------------------------
 	// check the Bazea-Yates seeds are correct
 	
-	public static void checkBY() throws IOException
+	public void checkBY() throws IOException
 	{
 		System.out.println("Checking BY");
 		
@@ -426,6 +737,107 @@ public final class LandauVishkin {
 	}
 
 	
+	//------------------------- checkMismatchBin --------------------------
+	// make sure the score only kmismatch_bin matches the bytewise one on random packed flanks, including odd lengths
+	// and mismatched N's
+	
+	public void checkMismatchBin(int trials, int k) throws IOException
+	{
+		java.util.Random r = new java.util.Random(k);
+		byte [] letters = DNAString.stringToBytes("ACGTN");
+		
+		for (int t = 0; t < trials; t++)
+		{
+			int m = 1 + r.nextInt(100);
+			int n = m + r.nextInt(4);
+			
+			byte [] pattern = new byte[m];
+			byte [] text    = new byte[n];
+			
+			for (int i = 0; i < n; i++) { text[i] = letters[r.nextInt(5)]; }
+			System.arraycopy(text, 0, pattern, 0, m);
+			
+			int edits = r.nextInt(k+3);
+			for (int e = 0; e < edits; e++) { pattern[r.nextInt(m)] = letters[r.nextInt(5)]; }
+			
+			byte [] text_b    = DNAString.arrToDNA(text);
+			byte [] pattern_b = DNAString.arrToDNA(pattern);
+			
+			String expected = kmismatch_bin(text_b, pattern_b, k).toString();
+			
+			AlignInfo a = kmismatch_bin_score(text_b, 0, text_b.length, pattern_b, 0, pattern_b.length, k);
+			traceback();
+			String actual = a.toString();
+			
+			if (!expected.equals(actual))
+			{
+				throw new IOException("Mismatch k=" + k +
+						              "\nt: " + DNAString.bytesToString(text) + 
+						              "\np: " + DNAString.bytesToString(pattern) +
+						              "\nbytewise: " + expected + "\nscore only: " + actual);
+			}
+		}
+	}
+
+	
+	//------------------------- benchMismatchBin --------------------------
+	// Time kmismatch_bin with the traceback and score only, on flanks of the
+	// given number of bytes with 2 mismatches. Both are warmed up first, and
+	// each round runs them in a different order, so the JIT doesn't favour
+	// the first one.
+	// Returns the best time of each in seconds
+	
+	public double [] benchMismatchBin(int bytes, int num, int k)
+	{
+		java.util.Random r = new java.util.Random(bytes);
+		byte [] letters = DNAString.stringToBytes("ACGT");
+		
+		byte [] text    = new byte[2*bytes];
+		byte [] pattern = new byte[2*bytes];
+		
+		for (int i = 0; i < text.length; i++) { text[i] = letters[r.nextInt(4)]; }
+		System.arraycopy(text, 0, pattern, 0, text.length);
+		pattern[text.length / 3]     = (text[text.length / 3]     == 'A') ? (byte) 'C' : (byte) 'A';
+		pattern[2 * text.length / 3] = (text[2 * text.length / 3] == 'A') ? (byte) 'C' : (byte) 'A';
+		
+		byte [] text_b    = DNAString.arrToDNA(text);
+		byte [] pattern_b = DNAString.arrToDNA(pattern);
+		
+		int kernels = 2;
+		double [] best = new double[kernels];
+		java.util.Arrays.fill(best, Double.MAX_VALUE);
+		
+		int dd = 0;
+		
+		for (int round = 0; round < 2 + kernels; round++)
+		{
+			for (int j = 0; j < kernels; j++)
+			{
+				int kernel = (round + j) % kernels;
+				
+				Timer t = new Timer();
+				for (int i = 0; i < num; i++)
+				{
+					AlignInfo c;
+					
+					if (kernel == 0) { c = kmismatch_bin(text_b, pattern_b, k); }
+					else             { c = kmismatch_bin_score(text_b, 0, text_b.length, pattern_b, 0, pattern_b.length, k); }
+					
+					dd += c.differences;
+				}
+				double time = t.get();
+				
+				// the first 2 rounds are the warm up
+				if ((round >= 2) && (time < best[kernel])) { best[kernel] = time; }
+			}
+		}
+		
+		if (dd != 2 * num * kernels * (2 + kernels)) { throw new RuntimeException("Wrong differences: " + dd); }
+		
+		return best;
+	}
+	
+	
 	//------------------------- main --------------------------
 	// Make sure alignments are fast and correct
 
@@ -434,7 +846,7 @@ public final class LandauVishkin {
 		//1left-del-3 -> 0;10;10;TTTCTCAACA;ACACAGTATATC;ref;36;TTTCTCAAACACCTATATTTTTTG;ACACAGTATATCGTGTTGTGGACA
 
 		int k = 5;
-		configure(k);
+		LandauVishkin lv = new LandauVishkin(k);
 		
 		
 		byte[] text    = DNAString.stringToBytes("TTTCTCAAACACCTATATTTTTTGT");
@@ -446,48 +858,41 @@ public final class LandauVishkin {
 		byte [] text_b    = DNAString.arrToDNA(text);
 		byte [] pattern_b = DNAString.arrToDNA(pattern);
 		
-		AlignInfo a = kmismatch(text,pattern, k);
+		AlignInfo a = lv.kmismatch(text,pattern, k);
 		System.out.println("ASCII:  " + a.toString());
 		a.printAlignment(text, pattern);
 		
-		AlignInfo b = kmismatch_bin(text_b, pattern_b, k);
+		AlignInfo b = lv.kmismatch_bin(text_b, pattern_b, k);
 		System.out.println("Binary: " + b.toString());
 		b.printAlignment(text, pattern);
 
 
 		int num = 10000000;
 		
-		int dd = 0;
 		Timer ta = new Timer();
 		for (int i = 0; i < num; i++)
 		{
-			AlignInfo c = kmismatch(text, pattern, k);
-			//dd = c.differences;
+			AlignInfo c = lv.kmismatch(text, pattern, k);
 		}
 		System.out.println("ASCII " + num + " took:" + ta.get());
 		
-
-		Timer tb = new Timer();
-		for (int i = 0; i < num; i++)
+		// the flanks of 36bp reads are about 14 to 30 bytes
+		int [] lengths = { 4, 8, 14, 20, 30, 50, 100, 200, 400 };
+		
+		for (int bytes : lengths)
 		{
-			AlignInfo c = kmismatch_bin(text_b, pattern_b, k);
-//			if (c.differences != dd)
-//			{
-//				System.out.println("WTF: " + dd + " " + c.differences);
-//				return;
-//			}
+			double [] t = lv.benchMismatchBin(bytes, 2000000, 3);
+			System.out.println("Binary " + bytes + " bytes, with traceback: " + t[0] + " score only: " + t[1]);
 		}
-		System.out.println("Binary " + num + " took:" + tb.get());
 		
-		Timer tc = new Timer();
-		for (int i = 0; i < num; i++)
+		for (int kk = 0; kk <= k; kk++)
 		{
-			AlignInfo c = kmismatch(text, pattern, k);
+			lv.checkMismatchBin(200000, kk);
 		}
-		System.out.println("ASCII " + num + " took:" + tc.get());
+		System.out.println("Score only kmismatch_bin matches the bytewise version");
 
-		//debugAlignment(text, pattern, k, 10);
+		//lv.debugAlignment(text, pattern, k, 10);
 		
-		//checkBY();
+		//lv.checkBY();
 	}
 }
@@ -0,0 +1,309 @@
+package cloudBurst;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+
+/// Map-side alignment for small references. Each mapper loads the RefIndex
+/// of the reference (shipped with the DistributedCache), looks up the seeds of
+/// its reads, and extends them right away, so the reference is never shuffled
+/// and there is no reduce phase. The output is the same as the alignall job.
+
+public class MapAlign {
+
+	//------------------------- loadIndex --------------------------
+	// The index shipped with the DistributedCache, see CacheFiles
+
+	public static RefIndex loadIndex(JobConf conf, String indexpath) throws IOException
+	{
+		return CacheFiles.load(conf, indexpath, new CacheFiles.Loader<RefIndex>()
+		{
+			public RefIndex read(FileSystem fs, Path p) throws IOException
+			{
+				return RefIndex.read(fs, p);
+			}
+		});
+	}
+
+
+	//------------------------- AlignMapClass --------------------------
+
+	public static class AlignMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		//------------------------- MapState --------------------------
+		// Scratch records for one map thread
+
+		private class MapState
+		{
+			FastaRecord record  = new FastaRecord();
+			MerRecord   qry     = new MerRecord();
+			MerRecord   ref     = new MerRecord();
+			IntWritable qryid   = new IntWritable();
+			Aligner     aligner = new Aligner(K, SEED_LEN, ALLOW_DIFFERENCES, DIFF_ENGINE);
+
+			ReadCopies.Collector copies = (readcopies == null) ? null : readcopies.collector(null);
+			
+			AlignmentRecord best   = new AlignmentRecord();
+			AlignmentRecord second = new AlignmentRecord();
+			BytesWritable   bytes  = new BytesWritable();
+
+			// the ref flanks, indexed by their packed length
+			byte [][] leftflanks  = new byte[DNAString.arrToDNALen(FLANK_LEN)+1][];
+			byte [][] rightflanks = new byte[DNAString.arrToDNALen(FLANK_LEN)+1][];
+
+			byte [] flank(byte [][] flanks, int len)
+			{
+				int bytes = DNAString.arrToDNALen(len);
+				if (flanks[bytes] == null) { flanks[bytes] = new byte[bytes]; }
+				return flanks[bytes];
+			}
+		}
+
+		private ThreadLocal<MapState> state = new ThreadLocal<MapState>()
+		{
+			protected MapState initialValue()
+			{
+				return new MapState();
+			}
+		};
+
+		private int MIN_READ_LEN;
+		private int MAX_READ_LEN;
+		private int SEED_LEN;
+		private int FLANK_LEN;
+		private int K;
+		private boolean ALLOW_DIFFERENCES;
+		private boolean FILTER_ALIGNMENTS;
+		private int DIFF_ENGINE;
+		private boolean SKIP_N_READS; // leave the reads with an N to the last pass of a cascade
+		private String curfile;
+
+		private RefIndex index;
+		private ReadCopies readcopies = null;
+
+
+		//------------------------- configure --------------------------
+		// Set runtime parameters and load the reference index
+
+		public void configure(JobConf conf)
+		{
+			curfile = conf.get("map.input.file");
+
+			MIN_READ_LEN      = Integer.parseInt(conf.get("MIN_READ_LEN"));
+			MAX_READ_LEN      = Integer.parseInt(conf.get("MAX_READ_LEN"));
+			SEED_LEN          = Integer.parseInt(conf.get("SEED_LEN"));
+			FLANK_LEN         = Integer.parseInt(conf.get("FLANK_LEN"));
+			K                 = Integer.parseInt(conf.get("K"));
+			ALLOW_DIFFERENCES = Integer.parseInt(conf.get("ALLOW_DIFFERENCES")) == 1;
+			FILTER_ALIGNMENTS = Integer.parseInt(conf.get("FILTER_ALIGNMENTS")) == 1;
+			DIFF_ENGINE       = Integer.parseInt(conf.get("DIFF_ENGINE"));
+			SKIP_N_READS      = Integer.parseInt(conf.get("SKIP_N_READS", "0")) == 1;
+
+			String indexpath = conf.get("REF_INDEX_PATH");
+
+			try
+			{
+				index = loadIndex(conf, indexpath);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Can't load reference index from " + indexpath + ": " + e.getMessage());
+			}
+
+			String copiespath = conf.get("READ_COPIES_PATH");
+			if (copiespath != null)
+			{
+				try
+				{
+					readcopies = ReadCopies.load(conf, copiespath);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't load read copies from " + copiespath + ": " + e.getMessage());
+				}
+			}
+			
+			if (index.getSeedLen() != SEED_LEN)
+			{
+				throw new RuntimeException("Reference index has SEED_LEN=" + index.getSeedLen() + " not " + SEED_LEN);
+			}
+		}
+
+
+		//------------------------- map --------------------------
+		public void map(IntWritable id, BytesWritable rawRecord,
+				        OutputCollector<IntWritable, BytesWritable> output,
+				        Reporter reporter) throws IOException
+		{
+			MapState st = state.get();
+			
+			if (st.copies != null)
+			{
+				st.copies.setOutput(output);
+				output = st.copies;
+			}
+
+			FastaRecord record = st.record;
+			MerRecord qry      = st.qry;
+			MerRecord ref      = st.ref;
+
+			record.fromBytes(rawRecord);
+
+			byte [] seq = record.m_sequence;
+			int seqlen  = seq.length;
+
+			qry.id          = id.get();
+			qry.isReference = false;
+			qry.isRC        = false;
+			ref.isReference = true;
+
+			st.qryid.set(qry.id);
+
+			if (seqlen < MIN_READ_LEN)
+			{
+				throw new IOException("ERROR: seqlen=" + seqlen + " < MIN_READ_LEN=" + MIN_READ_LEN + " in " + curfile);
+			}
+
+			if (seqlen > MAX_READ_LEN)
+			{
+				throw new IOException("ERROR: seqlen=" + seqlen + " > MAX_READ_LEN=" + MAX_READ_LEN + " in " + curfile);
+			}
+
+			// Skip reads that can't possibly align end-to-end with <= K differences
+			int numN = 0;
+			for (int i = 0; i < seqlen; i++)
+			{
+				if (seq[i] == 'N') { numN++; }
+			}
+
+			if (numN > K) { return; }
+			if ((numN > 0) && SKIP_N_READS) { return; }
+
+			for (int rc = 0; rc < 2; rc++)
+			{
+				if (rc == 1)
+				{
+					// reverse complement the sequence
+					DNAString.rcarr_inplace(seq);
+					qry.isRC = true;
+				}
+
+				// look up the non-overlapping mers, the same ones MapClass emits
+				for (int i = 0; i + SEED_LEN <= seqlen; i += SEED_LEN)
+				{
+					if (DNAString.arrHasN(seq, i, SEED_LEN)) { continue; }
+
+					long code = RefIndex.seedCode(seq, i, SEED_LEN);
+					int hit = index.firstHit(code);
+					if (hit == -1) { continue; }
+
+					qry.offset = i;
+					qry.leftFlank  = flank(seq, 0, i, true);
+					qry.rightFlank = flank(seq, i+SEED_LEN, seqlen-i-SEED_LEN, false);
+
+					alignHits(st, hit, code, output);
+				}
+
+				reporter.progress();
+			}
+		}
+
+
+		//------------------------- flank --------------------------
+		// Pack a read flank the way MerRecord.toBytes does
+
+		private byte [] flank(byte [] seq, int start, int len, boolean reverse)
+		{
+			if (len == 0) { return DNAString.nostr; }
+
+			byte [] retval = new byte[DNAString.arrToDNALen(len)];
+
+			if (reverse) { DNAString.arrToDNAStrRev(seq, start, len, retval, 0); }
+			else         { DNAString.arrToDNAStr(seq, start, len, retval, 0); }
+
+			return retval;
+		}
+
+
+		//------------------------- alignHits --------------------------
+		// Extend the query seed at every reference position sharing it, and
+		// report the alignments the same way the ReduceClass does for one query
+
+		private void alignHits(MapState st, int hit, long code,
+				               OutputCollector<IntWritable, BytesWritable> output) throws IOException
+		{
+			MerRecord qry = st.qry;
+			MerRecord ref = st.ref;
+
+			int bestk = K+1;
+			boolean recordsecond = false;
+
+			for (int numhits = index.numHits(); (hit < numhits) && (index.seedAt(hit) == code); hit++)
+			{
+				// when filtering, only look for alignments that can still change the best
+				int maxk = Math.min(K, recordsecond ? bestk - 1 : bestk);
+				if (FILTER_ALIGNMENTS && (maxk < 0)) { break; }
+				
+				int pos = index.positionAt(hit);
+				int r   = index.refIndex(pos);
+
+				int refoffset = pos - index.refStart(r);
+
+				// the flanks are only clipped at the ends of the reference sequence
+				int leftlen  = Math.min(FLANK_LEN, refoffset);
+				int rightlen = Math.min(FLANK_LEN, index.refLen(r) - refoffset - SEED_LEN);
+
+				ref.id         = index.refId(r);
+				ref.offset     = refoffset;
+				ref.leftFlank  = st.flank(st.leftflanks, leftlen);
+				ref.rightFlank = st.flank(st.rightflanks, rightlen);
+
+				index.flank(pos - leftlen, leftlen, true, ref.leftFlank);
+				index.flank(pos + SEED_LEN, rightlen, false, ref.rightFlank);
+
+				AlignmentRecord rec = st.aligner.extend(qry, ref, FILTER_ALIGNMENTS ? maxk : K);
+
+				if (rec.m_differences == -1) continue;
+
+				if (FILTER_ALIGNMENTS)
+				{
+					if (rec.m_differences < bestk)
+					{
+						bestk = rec.m_differences;
+						st.best.set(rec);
+						recordsecond = false;
+					}
+					else if (rec.m_differences == bestk)
+					{
+						st.second.set(rec);
+						recordsecond = true;
+					}
+				}
+				else
+				{
+					output.collect(st.qryid, rec.toBytes(st.bytes));
+				}
+			}
+
+			if (FILTER_ALIGNMENTS && (bestk <= K))
+			{
+				output.collect(st.qryid, st.best.toBytes(st.bytes));
+
+				if (recordsecond)
+				{
+					output.collect(st.qryid, st.second.toBytes(st.bytes));
+				}
+			}
+		}
+	}
+}
@@ -10,13 +10,37 @@ public class MerRecord
 	public int     offset = 0;
 	public int     id;
 	
+	// with canonical seeds: the strand of this tuple's seed that was used for
+	// the key (SeedKey.FORWARD, REVERSE or PALINDROME), and for reads which
+	// strands of the read seed at this window (READ_FWD | READ_RC)
+	public int     seedStrand = SeedKey.FORWARD;
+	public int     readStrands = 0;
+	
+	public static final int READ_FWD = 0x01;
+	public static final int READ_RC  = 0x02;
+	
+	// flag of a reference tuple that only points at its flanks, see RefFlanks
+	public static final int POINTER = 0x08;
+	
+	// flag of the v2 encoding: the flanks are packed 4 bases / byte with a list
+	// of N runs (DNAString.arrToDNA2) instead of 2 bases / byte and a hardstop
+	public static final int V2 = 0x80;
+	
+	// flag byte of a group of reference tuples with the same seed, see
+	// SeedGroups. Only reads set the readStrands bits, so no tuple has it
+	public static final int REFERENCE_GROUP = 0x01 | 0x60;
+	
+	// write the v2 encoding
+	public boolean v2 = false;
+	
 	public byte[]  leftFlank;  // only set in the reduce phase
 	public byte[]  rightFlank; // only set in the reduce phase
 	
-	private static StringBuilder builder = new StringBuilder();
-	private static BytesWritable bytes   = new BytesWritable();
+	// serialization buffers, only allocated by the records that are written out
+	private StringBuilder builder = null;
+	private BytesWritable bytes   = null;
 	
-	private static byte[] sbuffer = new byte [1024];
+	private byte[] sbuffer = null;
 	
 	//------------------------- Constructor --------------------------
 	MerRecord()
@@ -36,6 +60,8 @@ public class MerRecord
 	
 	public BytesWritable toBytes(byte [] seq, int leftstart, int leftlen, int rightstart, int rightlen) //throws IOException
 	{
+		if (v2) { return toBytesV2(seq, leftstart, leftlen, rightstart, rightlen); }
+		
 		int len = 1 + // isReference, isRC
 		          4 + // offset
 		          4 + // id
@@ -51,12 +77,17 @@ public class MerRecord
 			len += DNAString.arrToDNALen(rightlen); 
 		}
 		
-		if (len > sbuffer.length)
+		if (sbuffer == null)
+		{
+			sbuffer = new byte [(len > 1024) ? len*2 : 1024];
+			bytes   = new BytesWritable();
+		}
+		else if (len > sbuffer.length)
 		{
 			sbuffer = new byte[len*2];
 		}
 		
-		sbuffer[0] = (byte) ((isReference ? 0x01 : 0x00) | (isRC ? 0x10 : 0x00));
+		sbuffer[0] = (byte) ((isReference ? 0x01 : 0x00) | (isRC ? 0x10 : 0x00) | (seedStrand << 1) | (readStrands << 5));
 		
 		sbuffer[1] = (byte) ((offset & 0xFF000000) >> 24);
 		sbuffer[2] = (byte) ((offset & 0x00FF0000) >> 16);
@@ -94,6 +125,156 @@ public class MerRecord
 	}
 
 	
+	//------------------------- toBytesV2 --------------------------
+	// Same, in the v2 encoding: the header, then both flanks as v2 strings,
+	// the left one reversed
+	
+	private BytesWritable toBytesV2(byte [] seq, int leftstart, int leftlen, int rightstart, int rightlen)
+	{
+		int maxlen = 9 + DNAString.dna2MaxLen(leftlen) + DNAString.dna2MaxLen(rightlen);
+		
+		if (sbuffer == null)
+		{
+			sbuffer = new byte [(maxlen > 1024) ? maxlen*2 : 1024];
+			bytes   = new BytesWritable();
+		}
+		else if (maxlen > sbuffer.length)
+		{
+			sbuffer = new byte[maxlen*2];
+		}
+		
+		sbuffer[0] = (byte) ((isReference ? 0x01 : 0x00) | (isRC ? 0x10 : 0x00) | (seedStrand << 1) | (readStrands << 5) | V2);
+		
+		sbuffer[1] = (byte) ((offset & 0xFF000000) >> 24);
+		sbuffer[2] = (byte) ((offset & 0x00FF0000) >> 16);
+		sbuffer[3] = (byte) ((offset & 0x0000FF00) >> 8);
+		sbuffer[4] = (byte) ((offset & 0x000000FF));
+		
+		sbuffer[5] = (byte) ((id & 0xFF000000) >> 24);
+		sbuffer[6] = (byte) ((id & 0x00FF0000) >> 16);
+		sbuffer[7] = (byte) ((id & 0x0000FF00) >> 8);
+		sbuffer[8] = (byte) ((id & 0x000000FF));
+		
+		int pos = 9;
+		pos += DNAString.arrToDNA2(seq, leftstart, leftlen, true, sbuffer, pos);
+		pos += DNAString.arrToDNA2(seq, rightstart, rightlen, false, sbuffer, pos);
+		
+		bytes.set(sbuffer, 0, pos);
+		return bytes;
+	}
+	
+	
+	//------------------------- isV2 --------------------------
+	public static boolean isV2(byte [] raw, int start)
+	{
+		return (raw[start] & V2) == V2;
+	}
+	
+	
+	//------------------------- toV1 --------------------------
+	// Rewrite the v2 record at raw[start] into out in the original encoding.
+	// out needs room for maxV1Len of the v2 length. Returns the length
+	
+	public static int toV1(byte [] raw, int start, byte [] out)
+	{
+		out[0] = (byte) (raw[start] & ~V2);
+		System.arraycopy(raw, start+1, out, 1, 8);
+		
+		int pos = 9;
+		int in = start + 9;
+		
+		int leftbases = DNAString.dna2Bases(raw, in);
+		in = DNAString.dna2ToDNA(raw, in, out, pos, false);
+		pos += DNAString.arrToDNALen(leftbases);
+		
+		out[pos++] = DNAString.hardstop;
+		
+		int rightbases = DNAString.dna2Bases(raw, in);
+		DNAString.dna2ToDNA(raw, in, out, pos, false);
+		pos += DNAString.arrToDNALen(rightbases);
+		
+		return pos;
+	}
+	
+	
+	//------------------------- maxV1Len --------------------------
+	// Most bytes a v2 record of rawlen bytes takes in the original encoding
+	
+	public static int maxV1Len(int rawlen)
+	{
+		// every base takes at least a quarter byte in v2 and half a byte in v1
+		return 10 + 2 * rawlen;
+	}
+	
+	
+	//------------------------- toPointer --------------------------
+	// Pack a reference tuple without its flanks: the left flank is the leftlen
+	// bases before offset, and the right flank the rightlen bases from
+	// offset+rightoff. The reducer fills them in with RefFlanks.expand
+	
+	public BytesWritable toPointer(int leftlen, int rightoff, int rightlen)
+	{
+		int len = 1 + 4 + 4 + 6;
+		
+		if (sbuffer == null)
+		{
+			sbuffer = new byte [1024];
+			bytes   = new BytesWritable();
+		}
+		
+		sbuffer[0] = (byte) ((isReference ? 0x01 : 0x00) | (isRC ? 0x10 : 0x00) | (seedStrand << 1) | (readStrands << 5) | POINTER);
+		
+		sbuffer[1] = (byte) ((offset & 0xFF000000) >> 24);
+		sbuffer[2] = (byte) ((offset & 0x00FF0000) >> 16);
+		sbuffer[3] = (byte) ((offset & 0x0000FF00) >> 8);
+		sbuffer[4] = (byte) ((offset & 0x000000FF));
+		
+		sbuffer[5] = (byte) ((id & 0xFF000000) >> 24);
+		sbuffer[6] = (byte) ((id & 0x00FF0000) >> 16);
+		sbuffer[7] = (byte) ((id & 0x0000FF00) >> 8);
+		sbuffer[8] = (byte) ((id & 0x000000FF));
+		
+		sbuffer[9]  = (byte) (leftlen >> 8);  sbuffer[10] = (byte) leftlen;
+		sbuffer[11] = (byte) (rightoff >> 8); sbuffer[12] = (byte) rightoff;
+		sbuffer[13] = (byte) (rightlen >> 8); sbuffer[14] = (byte) rightlen;
+		
+		bytes.set(sbuffer, 0, len);
+		return bytes;
+	}
+	
+	
+	//------------------------- isPointer --------------------------
+	public static boolean isPointer(BytesWritable t)
+	{
+		return (t.get()[0] & POINTER) == POINTER;
+	}
+	
+	
+	//------------------------- isGroup --------------------------
+	public static boolean isGroup(BytesWritable t)
+	{
+		return (t.get()[0] & 0xFF) == REFERENCE_GROUP;
+	}
+	
+	
+	//------------------------- isReference --------------------------
+	// Check the reference flag of a packed record without unpacking it
+	
+	public static boolean isReference(BytesWritable t)
+	{
+		return (t.get()[0] & 0x01) == 0x01;
+	}
+	
+	
+	//------------------------- readStrands --------------------------
+	// The readStrands of a packed record without unpacking it
+	
+	public static int readStrands(BytesWritable t)
+	{
+		return (t.get()[0] >> 5) & 0x03;
+	}
+	
+	
 	//------------------------- fromBytes --------------------------
 	// Unpack the raw bytes and set the MerRecord fields
 
@@ -102,10 +283,19 @@ public class MerRecord
 		byte [] raw = t.get();
 		int rawlen = t.getSize();
 		
+		if (isV2(raw, 0))
+		{
+			byte [] v1 = new byte[maxV1Len(rawlen)];
+			rawlen = toV1(raw, 0, v1);
+			raw = v1;
+		}
+		
 		//sbuffer[0] = (byte) ((isReference ? 0x01 : 0x00) | (isRC ? 0x10 : 0x00));
 		
 		isReference = (raw[0] & 0x01) == 0x01;
 		isRC        = (raw[0] & 0x10) == 0x10;
+		seedStrand  = (raw[0] >> 1) & 0x03;
+		readStrands = (raw[0] >> 5) & 0x03;
 		
 		offset = (raw[1] & 0xFF) << 24 
 		       | (raw[2] & 0xFF) << 16
@@ -143,6 +333,7 @@ public class MerRecord
 	
 	public String toString()
 	{
+		if (builder == null) { builder = new StringBuilder(); }
 		builder.setLength(0);
 		
 		builder.append(isReference?'1':'0');                 builder.append(';');
@@ -200,5 +391,25 @@ public class MerRecord
 		}
 		
 		System.out.println(num + " took:" + t.get());
+		
+		// the v2 encoding has to read back the same flanks, N runs included
+		byte[] nseq = DNAString.stringToBytes("NNACGTNACGTTGCANNNNACGTACGGACTACGTACGNN");
+		for (int l = 0; l <= 20; l++)
+		{
+			for (int r = 0; l + r <= nseq.length; r += 3)
+			{
+				mr.v2 = false;
+				String expected = new MerRecord(mr.toBytes(nseq, 0, l, nseq.length-r, r)).toString();
+				mr.v2 = true;
+				BytesWritable bw = mr.toBytes(nseq, 0, l, nseq.length-r, r);
+				
+				if (!new MerRecord(bw).toString().equals(expected))
+				{
+					throw new IOException("v2 mismatch " + l + " " + r + ": " + new MerRecord(bw) + " != " + expected);
+				}
+			}
+		}
+		
+		System.out.println("v2 matches");
 	}
 }
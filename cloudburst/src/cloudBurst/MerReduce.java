@@ -3,7 +3,15 @@ package cloudBurst;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
@@ -35,12 +43,27 @@ public class MerReduce {
 	//------------------------- MapClass --------------------------
 	
 	public static class MapClass extends MapReduceBase implements
-			Mapper<IntWritable, BytesWritable, BytesWritable, BytesWritable> 
+			Mapper<IntWritable, BytesWritable, SeedKey, BytesWritable> 
 	{
-		private FastaRecord record = new FastaRecord();
-		private BytesWritable seed = new BytesWritable();
-		private MerRecord seedInfo = new MerRecord();
+		//------------------------- MapState --------------------------
+		// Scratch records for one map thread, so MapClass can run under the
+		// MultithreadedMapRunner
 		
+		private static class MapState
+		{
+			FastaRecord record   = new FastaRecord();
+			SeedKey     seed     = new SeedKey();
+			MerRecord   seedInfo = new MerRecord();
+			SeedGroups  groups   = null;
+		}
+		
+		private ThreadLocal<MapState> state = new ThreadLocal<MapState>()
+		{
+			protected MapState initialValue()
+			{
+				return new MapState();
+			}
+		};
 		
 		private int MIN_READ_LEN;
 		private int MAX_READ_LEN;
@@ -48,9 +71,25 @@ public class MerReduce {
 		private int FLANK_LEN;
 		private int K;
 		private int REDUNDANCY;
+		private boolean CANONICAL;
+		private int MINIMIZER_W;
+		private int KEY_LEN; // bp in the shuffle key, SEED_LEN or the minimizer length
+		
+		// spaced seed mask spanning SEED_LEN bp, and the read windows to seed with it
+		private SpacedSeed SPACED = null;
+		private int [] SPACED_OFFSETS = null;
+		private boolean REF_POINTERS; // send the reference flanks as pointers into RefFlanks
+		private boolean RECORD_V2;    // write the tuples in the v2 encoding, see MerRecord.V2
+		private boolean GROUP_REFS;   // send one record per distinct seed of a reference chunk, see SeedGroups
+		private boolean SKIP_N_READS; // leave the reads with an N to the last pass of a cascade
 		private String curfile;
 		private String refpath;
-		private byte [] seedbuffer = null;
+		
+		// seed -> number of reducers to split it across, from the HotSeeds pre-pass
+		private Map<SeedKey, Integer> hotseeds = null;
+		
+		// the seeds the reads have, from the ReadSeedFilter pre-pass
+		private ReadSeedFilter readfilter = null;
 		
 		boolean ISREF;
 
@@ -69,16 +108,107 @@ public class MerReduce {
 			FLANK_LEN    = Integer.parseInt(conf.get("FLANK_LEN"));
 			K            = Integer.parseInt(conf.get("K"));
 			REDUNDANCY   = Integer.parseInt(conf.get("REDUNDANCY"));
+			CANONICAL    = Integer.parseInt(conf.get("CANONICAL", "0")) == 1;
+			MINIMIZER_W  = Integer.parseInt(conf.get("MINIMIZER_W", "0"));
+			KEY_LEN      = (MINIMIZER_W > 1) ? SEED_LEN - MINIMIZER_W + 1 : SEED_LEN;
+			REF_POINTERS = Integer.parseInt(conf.get("REF_POINTERS", "0")) == 1;
+			RECORD_V2    = Integer.parseInt(conf.get("RECORD_V2", "0")) == 1;
+			GROUP_REFS   = Integer.parseInt(conf.get("GROUP_REFS", "0")) == 1;
+			SKIP_N_READS = Integer.parseInt(conf.get("SKIP_N_READS", "0")) == 1;
+			
+			String mask = conf.get("SPACED_SEED");
+			if (mask != null)
+			{
+				SPACED = new SpacedSeed(mask);
+				
+				String offsets = conf.get("SPACED_OFFSETS");
+				if (offsets != null) { SPACED_OFFSETS = SpacedSeed.parseOffsets(offsets); }
+			}
+			
+			String hotpath = conf.get("HOT_SEEDS_PATH");
+			if (hotpath != null)
+			{
+				try
+				{
+					hotseeds = HotSeeds.load(conf, hotpath);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't load hot seeds from " + hotpath + ": " + e.getMessage());
+				}
+			}
+			
+			String filterpath = conf.get("READ_FILTER_PATH");
+			if ((filterpath != null) && ISREF)
+			{
+				try
+				{
+					readfilter = ReadSeedFilter.load(conf, filterpath);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't load read seed filter from " + filterpath + ": " + e.getMessage());
+				}
+			}
+		}
+		
+		
+		//------------------------- copies --------------------------
+		// How many reducers the seed at seq[start] is split across. Homopolymers
+		// use REDUNDANCY, and high copy seeds the count from the hot seed table
+		
+		private int copies(byte [] seq, int start, SeedKey seed)
+		{
+			if ((REDUNDANCY > 1) && ((SPACED != null) ? SPACED.repseed(seq, start) : DNAString.repseed(seq, start, KEY_LEN)))
+			{
+				return REDUNDANCY;
+			}
+			
+			if (hotseeds != null)
+			{
+				// the table is keyed by the bases alone
+				int replica = seed.getReplica();
+				int tag     = seed.getTag();
+				seed.setReplica(-1);
+				seed.setTag(-1);
+				Integer c = hotseeds.get(seed);
+				seed.setReplica(replica);
+				seed.setTag(tag);
+				
+				if (c != null) { return c; }
+			}
 			
-			seedbuffer   = new byte[DNAString.arrToSeedLen(SEED_LEN, REDUNDANCY)];
+			return 1;
 		}
 
 		
+		//------------------------- refTuple --------------------------
+		// Pack a reference tuple for the seed at seq[start], with its flanks or
+		// just a pointer to them
+		
+		private BytesWritable refTuple(MerRecord seedInfo, byte [] seq, int start, 
+				                       int leftstart, int leftlen, int rightstart, int rightlen)
+		{
+			if (REF_POINTERS)
+			{
+				return seedInfo.toPointer(leftlen, rightstart - start, rightlen);
+			}
+			
+			return seedInfo.toBytes(seq, leftstart, leftlen, rightstart, rightlen);
+		}
+		
+		
 		//------------------------- map --------------------------
 		public void map(IntWritable id, BytesWritable rawRecord,
-				        OutputCollector<BytesWritable, BytesWritable> output, 
+				        OutputCollector<SeedKey, BytesWritable> output, 
 				        Reporter reporter) throws IOException 
 		{
+			MapState st = state.get();
+			
+			FastaRecord record   = st.record;
+			SeedKey     seed     = st.seed;
+			MerRecord   seedInfo = st.seedInfo;
+			
 			record.fromBytes(rawRecord);
 			
 			byte [] seq         = record.m_sequence;
@@ -88,6 +218,7 @@ public class MerReduce {
 			seedInfo.id          = id.get();
 			seedInfo.isReference = ISREF;
 			seedInfo.isRC        = false;
+			seedInfo.v2          = RECORD_V2;
 			
 			int seqlen = seq.length;
 				
@@ -95,60 +226,16 @@ public class MerReduce {
 			{
 				//---------------------- Sequence is a chunk of the reference -----------
 				
-				int startoffset = 0;
-
-				// If I'm not the first chunk, shift over so there is room for the left flank
-				if (realoffsetstart != 0)
+				if (GROUP_REFS)
 				{
-					startoffset = CloudBurst.CHUNK_OVERLAP + 1 - FLANK_LEN - SEED_LEN;
-					realoffsetstart += startoffset;
+					if (st.groups == null) { st.groups = new SeedGroups(); }
+					
+					mapRef(seq, realoffsetstart, isLast, seed, seedInfo, st.groups);
+					st.groups.flush(output);
 				}
-
-				// stop so the last mer will just fit
-				int end = seqlen - SEED_LEN + 1;
-
-				// if I'm not the last chunk, stop so the right flank will fit as well
-				if (!isLast)
+				else
 				{
-					end -= FLANK_LEN;
-				}
-
-				// emit the mers starting at every position in the range
-				for (int start = startoffset, realoffset = realoffsetstart; start < end; start++, realoffset++)
-				{						
-					if (DNAString.arrHasN(seq, start, SEED_LEN)) { continue; } // don't bother with seeds with n's
-					
-					seedInfo.offset = realoffset;
-
-                    // figure out the ranges for the flanking sequence
-					int leftstart = start-FLANK_LEN;
-					if (leftstart < 0) { leftstart = 0; }
-					int leftlen = start-leftstart;
-					
-					int rightstart = start+SEED_LEN;
-					int rightend = rightstart + FLANK_LEN;
-					if (rightend > seqlen) { rightend = seqlen; }
-					int rightlen = rightend-rightstart;
-					
-					BytesWritable seedbinary = seedInfo.toBytes(seq, leftstart, leftlen, rightstart, rightlen);
-					
-					if ((REDUNDANCY > 1) && (DNAString.repseed(seq, start, SEED_LEN)))
-					{
-						for (int r = 0; r < REDUNDANCY; r++)
-						{
-							DNAString.arrToSeed(seq, start, SEED_LEN, seedbuffer, 0, r, REDUNDANCY);
-							seed.set(seedbuffer, 0, seedbuffer.length);
-
-							output.collect(seed, seedbinary);
-						}
-					}
-					else
-					{
-						DNAString.arrToSeed(seq, start, SEED_LEN, seedbuffer, 0, 0, REDUNDANCY);
-						seed.set(seedbuffer, 0, seedbuffer.length);
-
-						output.collect(seed, seedbinary);						
-					}
+					mapRef(seq, realoffsetstart, isLast, seed, seedInfo, output);
 				}
 			}
 			else
@@ -176,6 +263,19 @@ public class MerReduce {
 				}
 				
 				if (numN > K) { return; }
+				if ((numN > 0) && SKIP_N_READS) { return; }
+				
+				if (CANONICAL)
+				{
+					mapCanonical(seq, seed, seedInfo, output);
+					return;
+				}
+				
+				if (SPACED != null)
+				{
+					mapSpaced(seq, seed, seedInfo, output);
+					return;
+				}
 
 				for (int rc = 0; rc < 2; rc++)
 				{
@@ -191,24 +291,26 @@ public class MerReduce {
 					{
 						if (DNAString.arrHasN(seq, i, SEED_LEN)) { continue; }
 						
-						if ((REDUNDANCY > 1) && (DNAString.repseed(seq, i, SEED_LEN)))
-						{
-							DNAString.arrToSeed(seq, i, SEED_LEN, seedbuffer, 0, seedInfo.id, REDUNDANCY);	
-						}
-						else
+						// with minimizers, the block is keyed and anchored by its minimizer
+						int k = i;
+						if (MINIMIZER_W > 1) { k += Minimizers.windowMin(seq, i, SEED_LEN, KEY_LEN); }
+						
+						seed.set(seq, k, KEY_LEN, 0, REDUNDANCY);
+						seed.setTag(SeedKey.QRY_TAG);
+						int copies = copies(seq, k, seed);
+						
+						if (copies > 1)
 						{
-							DNAString.arrToSeed(seq, i, SEED_LEN, seedbuffer, 0, 0, REDUNDANCY);
+							seed.setReplica(seedInfo.id % copies);	
 						}
-						
-						seed.set(seedbuffer, 0, seedbuffer.length);
 
-						seedInfo.offset = i;
+						seedInfo.offset = k;
 						
 	                    // figure out the ranges for the flanking sequence
 						int leftstart = 0;
-						int leftlen = i;
+						int leftlen = k;
 						
-						int rightstart = i+SEED_LEN;
+						int rightstart = k+KEY_LEN;
 						int rightlen = seqlen-rightstart;
 
 						output.collect(seed, seedInfo.toBytes(seq, leftstart, leftlen, rightstart, rightlen));
@@ -216,235 +318,896 @@ public class MerReduce {
 				}
 			}
 		}
+		
+		
+		//------------------------- mapRef --------------------------
+		// Emit the reference seeds of a chunk, and their flanks
+		
+		private void mapRef(byte [] seq, int chunkoffset, boolean isLast, SeedKey seed, MerRecord seedInfo,
+				            OutputCollector<SeedKey, BytesWritable> output) throws IOException
+		{
+			int seqlen = seq.length;
+			int startoffset = 0;
+			int realoffsetstart = chunkoffset;
+
+			// If I'm not the first chunk, shift over so there is room for the left flank
+			if (realoffsetstart != 0)
+			{
+				startoffset = CloudBurst.CHUNK_OVERLAP + 1 - FLANK_LEN - SEED_LEN;
+				realoffsetstart += startoffset;
+			}
+
+			// stop so the last mer will just fit
+			int end = seqlen - SEED_LEN + 1;
+
+			// if I'm not the last chunk, stop so the right flank will fit as well
+			if (!isLast)
+			{
+				end -= FLANK_LEN;
+			}
+			
+			if (MINIMIZER_W > 1)
+			{
+				mapRefMinimizers(seq, startoffset, end, chunkoffset, isLast, seed, seedInfo, output);
+				return;
+			}
+
+			// emit the mers starting at every position in the range
+			for (int start = startoffset, realoffset = realoffsetstart; start < end; start++, realoffset++)
+			{						
+				// don't bother with seeds with n's
+				if ((SPACED != null) ? SPACED.hasN(seq, start) : DNAString.arrHasN(seq, start, SEED_LEN)) { continue; }
+				
+				seedInfo.offset = realoffset;
+
+                    // figure out the ranges for the flanking sequence
+				int leftstart = start-FLANK_LEN;
+				if (leftstart < 0) { leftstart = 0; }
+				int leftlen = start-leftstart;
+				
+				int rightstart = start+SEED_LEN;
+				int rightend = rightstart + FLANK_LEN;
+				
+				// the reducer checks the don't care positions of a spaced seed with the right flank
+				if (SPACED != null) { rightstart = start; }
+				if (rightend > seqlen) { rightend = seqlen; }
+				int rightlen = rightend-rightstart;
+				
+				if (CANONICAL)
+				{
+					seedInfo.seedStrand = seed.setCanonical(seq, start, SEED_LEN, 0, REDUNDANCY);
+				}
+				else if (SPACED != null)
+				{
+					seed.setSpaced(seq, start, SPACED.care(), 0, REDUNDANCY);
+				}
+				else
+				{
+					seed.set(seq, start, SEED_LEN, 0, REDUNDANCY);
+				}
+				
+				// no read has this seed
+				if ((readfilter != null) && !readfilter.mightContain(seed)) { continue; }
+				
+				seed.setTag(SeedKey.REF_TAG);
+				
+				BytesWritable seedbinary = refTuple(seedInfo, seq, start, leftstart, leftlen, rightstart, rightlen);
+				
+				int copies = copies(seq, start, seed);
+				
+				if (copies > 1)
+				{
+					for (int r = 0; r < copies; r++)
+					{
+						seed.setReplica(r);
+
+						output.collect(seed, seedbinary);
+					}
+				}
+				else
+				{
+					output.collect(seed, seedbinary);						
+				}
+			}
+		}
+		
+		
+		//------------------------- mapRefMinimizers --------------------------
+		// Emit the reference m-mers that are the minimizer of a SEED_LEN window.
+		// The chunk emits the minimizers at positions in [startoffset, end), or up
+		// to the last m-mer for the last chunk, so each is emitted once even when
+		// its windows start in the previous chunk. The flanks are long enough for
+		// every window the m-mer is the minimizer of: w-1 more bp on the left, and
+		// the rest of the window on the right.
+		
+		private void mapRefMinimizers(byte [] seq, int startoffset, int end, int chunkoffset, boolean isLast,
+				                      SeedKey seed, MerRecord seedInfo,
+				                      OutputCollector<SeedKey, BytesWritable> output) throws IOException
+		{
+			int seqlen = seq.length;
+			int w = MINIMIZER_W;
+			
+			int qend = isLast ? seqlen - KEY_LEN + 1 : end;
+			
+			// the windows whose minimizer can be in [startoffset, qend)
+			int first = startoffset - (w - 1);
+			if (first < 0) { first = 0; }
+			int last = Math.min(qend - 1, seqlen - SEED_LEN);
+			
+			if ((startoffset > 0) && (first - FLANK_LEN < 0))
+			{
+				throw new IOException("CHUNK_OVERLAP is too small for minimizer windows of " + w + " in " + curfile);
+			}
+			
+			if (last < first) { return; }
+			
+			Minimizers.Scanner scanner = new Minimizers.Scanner(SEED_LEN, KEY_LEN);
+			scanner.reset(seq, first, last + 1);
+			
+			int lastq = -1;
+			
+			for (int pos = first; pos <= last; pos++)
+			{
+				if (DNAString.arrHasN(seq, pos, SEED_LEN)) { scanner.skip(); continue; }
+				
+				int q = scanner.next(pos);
+				
+				if ((q == lastq) || (q < startoffset) || (q >= qend)) { continue; }
+				lastq = q;
+				
+				seedInfo.offset = chunkoffset + q;
+				
+				int leftstart = q - (w - 1) - FLANK_LEN;
+				if (leftstart < 0) { leftstart = 0; }
+				int leftlen = q - leftstart;
+				
+				int rightstart = q + KEY_LEN;
+				int rightend = q + SEED_LEN + FLANK_LEN;
+				if (rightend > seqlen) { rightend = seqlen; }
+				int rightlen = rightend - rightstart;
+				
+				seed.set(seq, q, KEY_LEN, 0, REDUNDANCY);
+				if ((readfilter != null) && !readfilter.mightContain(seed)) { continue; }
+				
+				BytesWritable seedbinary = refTuple(seedInfo, seq, q, leftstart, leftlen, rightstart, rightlen);
+				
+				seed.setTag(SeedKey.REF_TAG);
+				int copies = copies(seq, q, seed);
+				
+				if (copies > 1)
+				{
+					for (int r = 0; r < copies; r++)
+					{
+						seed.setReplica(r);
+						output.collect(seed, seedbinary);
+					}
+				}
+				else
+				{
+					output.collect(seed, seedbinary);
+				}
+			}
+		}
+		
+		
+		//------------------------- mapSpaced --------------------------
+		// Emit the spaced seeds of both strands of a read at SPACED_OFFSETS. The
+		// right flank starts at the window, so the reducer can check its don't
+		// care positions along with the rest of the read
+		
+		private void mapSpaced(byte [] seq, SeedKey seed, MerRecord seedInfo,
+				               OutputCollector<SeedKey, BytesWritable> output) throws IOException
+		{
+			int seqlen = seq.length;
+			
+			for (int rc = 0; rc < 2; rc++)
+			{
+				if (rc == 1) 
+				{
+					DNAString.rcarr_inplace(seq);
+					seedInfo.isRC = true;
+				}
+				
+				for (int i : SPACED_OFFSETS)
+				{
+					if (SPACED.hasN(seq, i)) { continue; }
+					
+					seed.setSpaced(seq, i, SPACED.care(), 0, REDUNDANCY);
+					seed.setTag(SeedKey.QRY_TAG);
+					int copies = copies(seq, i, seed);
+					
+					if (copies > 1)
+					{
+						seed.setReplica(seedInfo.id % copies);	
+					}
+					
+					seedInfo.offset = i;
+					
+					output.collect(seed, seedInfo.toBytes(seq, 0, i, i, seqlen-i));
+				}
+			}
+		}
+		
+		
+		//------------------------- mapCanonical --------------------------
+		// Emit each read window once under its canonical seed, instead of the
+		// seeds of both strands. The forward strand seeds the windows at multiples
+		// of SEED_LEN, and the reverse complement the windows that are multiples of
+		// SEED_LEN from the other end. When SEED_LEN divides the read length those
+		// are the same windows, and the read is shuffled once instead of twice.
+		// The reducer pairs the reverse complement strand of a window with the
+		// references that have the other strand of the seed.
+		
+		private void mapCanonical(byte [] seq, SeedKey seed, MerRecord seedInfo,
+				                  OutputCollector<SeedKey, BytesWritable> output) throws IOException
+		{
+			int seqlen = seq.length;
+			
+			for (int i = 0; i + SEED_LEN <= seqlen; i++)
+			{
+				int strands = 0;
+				if (i % SEED_LEN == 0)                      { strands |= MerRecord.READ_FWD; }
+				if ((seqlen - i - SEED_LEN) % SEED_LEN == 0) { strands |= MerRecord.READ_RC; }
+				
+				if (strands == 0) { continue; }
+				if (DNAString.arrHasN(seq, i, SEED_LEN)) { continue; }
+				
+				seedInfo.seedStrand  = seed.setCanonical(seq, i, SEED_LEN, 0, REDUNDANCY);
+				seedInfo.readStrands = strands;
+				seed.setTag(SeedKey.QRY_TAG);
+				
+				int copies = copies(seq, i, seed);
+				
+				if (copies > 1)
+				{
+					seed.setReplica(seedInfo.id % copies);	
+				}
+				
+				seedInfo.offset = i;
+				
+				output.collect(seed, seedInfo.toBytes(seq, 0, i, i+SEED_LEN, seqlen-i-SEED_LEN));
+			}
+		}
 	}
 	
 	
 	
 	//------------------------- ReduceClass --------------------------
 	public static class ReduceClass extends MapReduceBase implements
-			Reducer<BytesWritable, BytesWritable, IntWritable, BytesWritable> 
+			Reducer<SeedKey, BytesWritable, IntWritable, BytesWritable> 
 	{
-		private static AlignmentRecord noalignment = new AlignmentRecord(-1, -1, -1, -1, true);
-		private static AlignmentRecord fullalignment = new AlignmentRecord();
-		private static IntWritable qryid = new IntWritable();
+		private int K;
+		private int SEED_LEN;
+		private int BLOCK_SIZE;
+		private int REDUNDANCY;
+		private boolean ALLOW_DIFFERENCES = false;
+		private boolean FILTER_ALIGNMENTS = false;
+		private int DIFF_ENGINE;
+		private int REDUCE_THREADS;
+		private long PARALLEL_MIN_PAIRS;
+		private long SPILL_BYTES;
+		private boolean CANONICAL = false;
+		private int MINIMIZER_W = 0;
+		private int FLANK_LEN;
+		private SpacedSeed SPACED = null;
+		private int [] SPACED_OFFSETS = null;
+		private boolean FLANK_CACHE = false; // extend each read once per distinct reference flank pair
+		
+		private Aligner aligner;
+		
+		// the reference tuples of the current seed, the reads are streamed past them
+		private TupleBuffer refs;
+		
+		// the stored reference seeds of this partition, if the reference wasn't mapped
+		private SeedStore.Reader store = null;
+		
+		// reports the alignments of collapsed reads for their copies too, if set
+		private ReadCopies.Collector copies = null;
+		
+		// reused for every query block on the single threaded path
+		private QueryBlock serialblock;
+		
+		// query blocks handed to the thread pool, in the order to write their output,
+		// and the finished blocks to reuse
+		private LinkedList<Future<BufferedOutput>> pending = new LinkedList<Future<BufferedOutput>>();
+		private LinkedList<QueryBlock> pendingblocks = new LinkedList<QueryBlock>();
+		private LinkedList<QueryBlock> freeblocks = new LinkedList<QueryBlock>();
+		
+		// when the refs are spilled, this many query blocks share each pass over them
+		private static final int SPILL_BATCH_BLOCKS = 1024;
+		private List<QueryBlock> spillblocks = new ArrayList<QueryBlock>();
+		private TupleArena refblock = new TupleArena();
+		
+		// aligns the query blocks of large seed groups, one Aligner per thread
+		private ExecutorService pool = null;
+		private ThreadLocal<Aligner> threadaligner = new ThreadLocal<Aligner>()
+		{
+			protected Aligner initialValue()
+			{
+				return newAligner();
+			}
+		};
+		
+		
+		//------------------------- newAligner --------------------------
+		private Aligner newAligner()
+		{
+			Aligner a = new Aligner(K, SEED_LEN, ALLOW_DIFFERENCES, DIFF_ENGINE);
+			
+			if (MINIMIZER_W > 1) { a.setMinimizer(SEED_LEN - MINIMIZER_W + 1, FLANK_LEN); }
+			if (SPACED != null)  { a.setSpaced(SPACED, SPACED_OFFSETS); }
+			
+			return a;
+		}
+		
+		
+		//------------------------- BufferedOutput --------------------------
+		// Hold on to the output of a query block until it can be written in order
+		
+		private static class BufferedOutput implements OutputCollector<IntWritable, BytesWritable>
+		{
+			private List<Integer> ids  = new ArrayList<Integer>();
+			private List<byte []> recs = new ArrayList<byte []>();
+			
+			public void collect(IntWritable id, BytesWritable rec)
+			{
+				byte [] copy = new byte[rec.getSize()];
+				System.arraycopy(rec.get(), 0, copy, 0, copy.length);
+				
+				ids.add(id.get());
+				recs.add(copy);
+			}
+			
+			public void replay(OutputCollector<IntWritable, BytesWritable> output) throws IOException
+			{
+				IntWritable id = new IntWritable();
+				BytesWritable rec = new BytesWritable();
 				
-		private static int K;
-		private static int SEED_LEN;
-		private static int BLOCK_SIZE;
-		private static int REDUNDANCY;
-		private static boolean ALLOW_DIFFERENCES = false;
-		private static boolean FILTER_ALIGNMENTS = false;
+				for (int i = 0; i < ids.size(); i++)
+				{
+					byte [] r = recs.get(i);
+					
+					id.set(ids.get(i));
+					rec.set(r, 0, r.length);
+					output.collect(id, rec);
+				}
+			}
+		}
 		
-		private static List<MerRecord> reftuples = new ArrayList<MerRecord>();
-		private static List<MerRecord> qrytuples = new ArrayList<MerRecord>();
 		
-		private static AlignmentRecord [] bestalignments;
-		private static AlignmentRecord [] secondalignments;
-		private static boolean [] recordsecond;
-		private static int [] bestk;
+		//------------------------- QueryBlock --------------------------
+		// Align a block of up to BLOCK_SIZE queries to every reference tuple. Each
+		// block owns its best and second best alignments, so blocks can run concurrently
+		
+		private class QueryBlock implements Callable<BufferedOutput>
+		{
+			private TupleArena queries = new TupleArena();
+			
+			private IntWritable qryid = new IntWritable();
+			private BytesWritable alignbytes = new BytesWritable();
+			
+			private AlignmentRecord [] bestalignments;
+			private AlignmentRecord [] secondalignments;
+			private boolean [] recordsecond;
+			private int [] bestk;
+			
+			QueryBlock()
+			{
+				if (FILTER_ALIGNMENTS)
+				{
+					// with canonical seeds each read tuple may be aligned on both strands
+					int maxq = CANONICAL ? 2 * BLOCK_SIZE : BLOCK_SIZE;
+					
+					bestalignments   = new AlignmentRecord[maxq];
+					secondalignments = new AlignmentRecord[maxq];
+					recordsecond     = new boolean[maxq];
+					bestk            = new int[maxq];
+					
+					for (int i = 0; i < maxq; i++)
+					{
+						bestalignments[i]   = new AlignmentRecord();
+						secondalignments[i] = new AlignmentRecord();
+					}
+				}
+			}
+			
+			public BufferedOutput call() throws IOException
+			{
+				BufferedOutput buffer = new BufferedOutput();
+				align(threadaligner.get(), buffer);
+				return buffer;
+			}
+			
+			public void align(Aligner aligner, OutputCollector<IntWritable, BytesWritable> output) throws IOException
+			{
+				TupleArena reftuples = refs.arena();
+				int numr = reftuples.size();
+				
+				begin();
+				
+				// define a ref block between [startr, lastr)
+				for (int startr = 0; startr < numr; startr += BLOCK_SIZE)
+				{
+					int lastr = startr + BLOCK_SIZE;
+					if (lastr > numr) { lastr = numr; }
+					
+					alignRefs(aligner, reftuples, startr, lastr, output);
+				}
+				
+				finish(output);
+			}
+			
+			//------------------------- begin --------------------------
+			// Reset the best alignments before the first ref block
+			
+			public void begin()
+			{
+				if (FILTER_ALIGNMENTS)
+				{
+				  java.util.Arrays.fill(bestk, K+1);
+				  java.util.Arrays.fill(recordsecond, false);
+				}
+			}
+			
+			//------------------------- alignRefs --------------------------
+			// Align the block of queries to the reference tuples in [startr, lastr)
+			
+			public void alignRefs(Aligner aligner, TupleArena reftuples, int startr, int lastr,
+					              OutputCollector<IntWritable, BytesWritable> output) throws IOException
+			{
+				int numq = queries.size();
+				
+				// for each query in the block
+				for (int qidx = 0; qidx < numq; qidx++)
+				{
+					// for each element in [startr, lastr)
+					for (int curr = startr; curr < lastr; curr++)
+					{
+						// the tuples with the same flanks as an earlier one were aligned with it
+						if (!reftuples.firstFlanks(curr)) { continue; }
+						
+						if (CANONICAL && !queries.sharesSeed(qidx, reftuples, curr)) { continue; }
+						
+						int maxk = maxk(qidx);
+						if (maxk < 0) { break; }
+						
+						AlignmentRecord rec;
+						
+						if      (SPACED != null)  { rec = aligner.extendSpaced(queries, qidx, reftuples, curr, maxk); }
+						else if (MINIMIZER_W > 1) { rec = aligner.extendMinimizer(queries, qidx, reftuples, curr, maxk); }
+						else                      { rec = aligner.extend(queries, qidx, reftuples, curr, maxk); }
+						
+						if (rec.m_differences == -1) continue;
+						
+						record(qidx, rec, output);
+						
+						// the same alignment at the other copies of the flanks, the ones a
+						// later tuple could no longer have found are left out like before
+						int refStart = rec.m_refStart - reftuples.offset(curr);
+						int refEnd   = rec.m_refEnd   - reftuples.offset(curr);
+						
+						for (int same = reftuples.nextFlanks(curr); same != -1; same = reftuples.nextFlanks(same))
+						{
+							if (rec.m_differences > maxk(qidx)) { break; }
+							
+							rec.m_refID    = reftuples.id(same);
+							rec.m_refStart = refStart + reftuples.offset(same);
+							rec.m_refEnd   = refEnd   + reftuples.offset(same);
+							
+							record(qidx, rec, output);
+						}
+					}
+				}
+			}
+			
+			//------------------------- maxk --------------------------
+			// when filtering, only look for alignments that can still change the best:
+			// a tie until there is a second best, then only a better one
+			
+			private int maxk(int qidx)
+			{
+				if (!FILTER_ALIGNMENTS) { return K; }
+				
+				return Math.min(K, recordsecond[qidx] ? bestk[qidx] - 1 : bestk[qidx]);
+			}
+			
+			//------------------------- record --------------------------
+			// Keep or write an alignment of query qidx
+			
+			private void record(int qidx, AlignmentRecord rec, OutputCollector<IntWritable, BytesWritable> output)
+			                    throws IOException
+			{
+				if (FILTER_ALIGNMENTS)
+				{
+					if (rec.m_differences < bestk[qidx])
+					{ 
+						bestk[qidx] = rec.m_differences;
+						bestalignments[qidx].set(rec);
+						recordsecond[qidx] = false;
+					}
+					else if (rec.m_differences == bestk[qidx])
+					{	
+						secondalignments[qidx].set(rec);
+						recordsecond[qidx] = true;
+					}
+				}
+				else
+				{
+					qryid.set(queries.id(qidx));
+					output.collect(qryid, rec.toBytes(alignbytes));
+				}
+			}
+			
+			//------------------------- finish --------------------------
+			// Write the best alignments after the last ref block
+			
+			public void finish(OutputCollector<IntWritable, BytesWritable> output) throws IOException
+			{
+				int numq = queries.size();
+				
+				if (FILTER_ALIGNMENTS)
+				{
+					for (int qidx = 0; qidx < numq; qidx++)
+					{
+						if (bestk[qidx] <= K)
+						{
+							qryid.set(queries.id(qidx));
+							output.collect(qryid, bestalignments[qidx].toBytes(alignbytes));
+							
+							if (recordsecond[qidx])
+							{
+								output.collect(qryid, secondalignments[qidx].toBytes(alignbytes));
+							}
+						}
+					}
+				}
+			}
+		}
+		
 		
 		//------------------------- configure --------------------------	
 		// Get the runtime parameters
 		
 		public void configure(JobConf conf) 
 		{				
-			K                 = Integer.parseInt(conf.get("K"));
-			SEED_LEN          = Integer.parseInt(conf.get("SEED_LEN"));
-			ALLOW_DIFFERENCES = Integer.parseInt(conf.get("ALLOW_DIFFERENCES")) == 1;
-			BLOCK_SIZE        = Integer.parseInt(conf.get("BLOCK_SIZE"));
-			REDUNDANCY        = Integer.parseInt(conf.get("REDUNDANCY"));
-			FILTER_ALIGNMENTS = Integer.parseInt(conf.get("FILTER_ALIGNMENTS")) == 1;
+			K                  = Integer.parseInt(conf.get("K"));
+			SEED_LEN           = Integer.parseInt(conf.get("SEED_LEN"));
+			ALLOW_DIFFERENCES  = Integer.parseInt(conf.get("ALLOW_DIFFERENCES")) == 1;
+			BLOCK_SIZE         = Integer.parseInt(conf.get("BLOCK_SIZE"));
+			REDUNDANCY         = Integer.parseInt(conf.get("REDUNDANCY"));
+			FILTER_ALIGNMENTS  = Integer.parseInt(conf.get("FILTER_ALIGNMENTS")) == 1;
+			DIFF_ENGINE        = Integer.parseInt(conf.get("DIFF_ENGINE"));
+			REDUCE_THREADS     = Integer.parseInt(conf.get("REDUCE_THREADS", "1"));
+			PARALLEL_MIN_PAIRS = Long.parseLong(conf.get("PARALLEL_MIN_PAIRS", "1000000"));
+			SPILL_BYTES        = Long.parseLong(conf.get("SPILL_MB", "-1")) << 20;
+			CANONICAL          = Integer.parseInt(conf.get("CANONICAL", "0")) == 1;
+			MINIMIZER_W        = Integer.parseInt(conf.get("MINIMIZER_W", "0"));
+			FLANK_LEN          = Integer.parseInt(conf.get("FLANK_LEN"));
+			FLANK_CACHE        = Integer.parseInt(conf.get("FLANK_CACHE", "0")) == 1;
 			
-			if (FILTER_ALIGNMENTS)
+			if (conf.get("SPACED_SEED") != null)
 			{
-				bestalignments   = new AlignmentRecord[BLOCK_SIZE];
-				secondalignments = new AlignmentRecord[BLOCK_SIZE];
-				recordsecond     = new boolean[BLOCK_SIZE];
-				bestk            = new int[BLOCK_SIZE];
-				
-				for (int i = 0; i < BLOCK_SIZE; i++)
+				SPACED         = new SpacedSeed(conf.get("SPACED_SEED"));
+				SPACED_OFFSETS = SpacedSeed.parseOffsets(conf.get("SPACED_OFFSETS"));
+			}
+			
+			aligner     = newAligner();
+			serialblock = new QueryBlock();
+			refs        = new TupleBuffer((SPILL_BYTES < 0) ? TupleBuffer.heapBytes() : SPILL_BYTES);
+			
+			String flankpath = conf.get("REF_FLANKS_PATH");
+			if (flankpath != null)
+			{
+				try
+				{
+					refs.setFlanks(RefFlanks.load(conf, flankpath), 2 * (SEED_LEN + FLANK_LEN) + 16);
+				}
+				catch (IOException e)
 				{
-					bestalignments[i]   = new AlignmentRecord();
-					secondalignments[i] = new AlignmentRecord();
+					throw new RuntimeException("Can't load reference flanks from " + flankpath + ": " + e.getMessage());
 				}
 			}
 			
-			LandauVishkin.configure(K);
+			String storepath = conf.get("SEED_STORE_PATH");
+			if (storepath != null)
+			{
+				try
+				{
+					store = new SeedStore.Reader(conf, storepath, conf.getInt("mapred.task.partition", 0));
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't open seed store " + storepath + ": " + e.getMessage());
+				}
+			}
+			
+			String copiespath = conf.get("READ_COPIES_PATH");
+			if (copiespath != null)
+			{
+				try
+				{
+					copies = ReadCopies.load(conf, copiespath).collector(null);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Can't load read copies from " + copiespath + ": " + e.getMessage());
+				}
+			}
+			
+			if (REDUCE_THREADS > 1)
+			{
+				pool = Executors.newFixedThreadPool(REDUCE_THREADS, new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						// don't keep the task JVM alive if close() is never called
+						Thread t = new Thread(r, "CloudBurst-align");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		
+		
+		//------------------------- close --------------------------	
+		
+		public void close() throws IOException
+		{
+			if (pool != null) { pool.shutdown(); }
+			if (store != null) { store.close(); }
+			refs.close();
+		}
+		
+		
+		//------------------------- addQuery --------------------------
+		// Add a read tuple to a block, with canonical seeds once for each strand
+		// of the read that seeds this window
+		
+		private void addQuery(QueryBlock block, BytesWritable value)
+		{
+			if (!CANONICAL)
+			{
+				block.queries.add(value);
+				return;
+			}
+			
+			int strands = MerRecord.readStrands(value);
+			
+			if ((strands & MerRecord.READ_FWD) != 0) { block.queries.add(value); }
+			if ((strands & MerRecord.READ_RC)  != 0) { block.queries.addRC(value); }
 		}
+		
+		
+		//------------------------- alignBlock --------------------------
+		// Align a full block of queries, on this thread or on the pool. Returns
+		// the block to collect the next queries in
+		
+		private QueryBlock alignBlock(QueryBlock block, boolean parallel,
+				                      OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
+		                              throws IOException
+		{
+			if (!parallel)
+			{
+				// Align reads to the references in blocks of BLOCK_SIZE x BLOCK_SIZE to improve cache locality
+				block.align(aligner, output);
+				block.queries.clear();
 				
+				return block;
+			}
+			
+			pending.add(pool.submit(block));
+			pendingblocks.add(block);
+			
+			// bound how much finished output is buffered waiting for an earlier block
+			if (pending.size() >= REDUCE_THREADS * 4)
+			{
+				replayNext(output, reporter);
+			}
+			
+			QueryBlock next = freeblocks.isEmpty() ? new QueryBlock() : freeblocks.removeFirst();
+			next.queries.clear();
+			
+			return next;
+		}
+		
+		
+		//------------------------- spillBlock --------------------------
+		// The block for the i'th query of a spilled batch
+		
+		private QueryBlock spillBlock(int i)
+		{
+			int b = i / BLOCK_SIZE;
+			
+			if (b == spillblocks.size()) { spillblocks.add(new QueryBlock()); }
+			
+			QueryBlock qb = spillblocks.get(b);
+			if (i % BLOCK_SIZE == 0) { qb.queries.clear(); }
+			
+			return qb;
+		}
 		
-		//------------------------- extend --------------------------
-		// Given an exact shared seed, try to extend to a full length alignment
 		
-		public static AlignmentRecord extend(MerRecord qrytuple, MerRecord reftuple,
-						                     OutputCollector<IntWritable, BytesWritable> output, 
-						                     Reporter reporter) throws IOException 
+		//------------------------- alignSpilled --------------------------
+		// Align the first numq queries of the spill blocks to refs that didn't fit
+		// in memory: read the refs back BLOCK_SIZE at a time, and align each ref
+		// block to every query block, so the refs are only read once per batch
+		
+		private void alignSpilled(int numq, OutputCollector<IntWritable, BytesWritable> output, 
+				                  Reporter reporter) throws IOException
 		{
-			int refStart    = reftuple.offset;
-			int refEnd      = reftuple.offset + SEED_LEN;
-			int differences = 0;
+			int numblocks = (numq + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			
+			for (int b = 0; b < numblocks; b++)
+			{
+				spillblocks.get(b).begin();
+			}
+			
+			TupleBuffer.Cursor cursor = refs.cursor();
 			
 			try
-			{				
-				if (qrytuple.leftFlank.length != 0)
+			{
+				while (cursor.next(refblock, BLOCK_SIZE) > 0)
 				{
-					// at least 1 read base on the left needs to be aligned
-					int realleftflanklen = DNAString.dnaArrLen(qrytuple.leftFlank);
-					
-					// aligned the pre-reversed strings!
-					AlignInfo a = cloudBurst.LandauVishkin.extend(reftuple.leftFlank, 
-							                                       qrytuple.leftFlank, 
-							                                       K, ALLOW_DIFFERENCES);
+					if (FLANK_CACHE) { refblock.groupFlanks(); }
 					
-					if (a.alignlen == -1) { return noalignment; } // alignment failed
-					if (!a.isBazeaYatesSeed(realleftflanklen, SEED_LEN)) { return noalignment; }
+					for (int b = 0; b < numblocks; b++)
+					{
+						spillblocks.get(b).alignRefs(aligner, refblock, 0, refblock.size(), output);
+					}
 					
-					refStart    -= a.alignlen;
-					differences = a.differences;
+					reporter.progress();
 				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+			
+			for (int b = 0; b < numblocks; b++)
+			{
+				spillblocks.get(b).finish(output);
+			}
+		}
+		
+		
+		//------------------------- replayNext --------------------------
+		// Wait for the oldest block on the pool and write its output, so the
+		// output is in the same order as the single threaded path
+		
+		private void replayNext(OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
+		                        throws IOException
+		{
+			try
+			{
+				pending.removeFirst().get().replay(output);
+				reporter.progress();
 				
-				if (qrytuple.rightFlank.length != 0)
-				{
-					AlignInfo b = cloudBurst.LandauVishkin.extend(reftuple.rightFlank, 
-							                                       qrytuple.rightFlank, 
-							                                       K - differences, 
-							                                       ALLOW_DIFFERENCES);
-				
-					if (b.alignlen == -1) {	return noalignment;	} // alignment failed
-				
-					refEnd      += b.alignlen;
-					differences += b.differences;
-				}
-
-				fullalignment.m_refID       = reftuple.id;
-				fullalignment.m_refStart    = refStart;
-				fullalignment.m_refEnd      = refEnd;
-				fullalignment.m_differences = differences;
-				fullalignment.m_isRC        = qrytuple.isRC;
-				
-				return fullalignment;
+				QueryBlock done = pendingblocks.removeFirst();
+				if (done != serialblock) { freeblocks.add(done); }
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException("Interrupted while aligning: " + e.getMessage());
 			}
-			catch (Exception e)
+			catch (ExecutionException e)
 			{
-				throw new IOException("Problem with read:" + qrytuple.id + " :" + e.getMessage() + "\n" + getStackTrace(e));	
+				throw new IOException(e.getCause().getMessage() + "\n" + getStackTrace(e.getCause()));
 			}
 		}
 		
 		
 		//------------------------- reduce --------------------------
-		public synchronized void reduce(BytesWritable mer, Iterator<BytesWritable> values,
+		// The reference tuples of a seed sort before the queries (SeedKey.REF_TAG),
+		// so only they are buffered, and the queries are aligned a block at a time
+		// as they arrive
+		
+		public synchronized void reduce(SeedKey mer, Iterator<BytesWritable> values,
 										OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
 										throws IOException 
 		{
 			Timer timer = new Timer();
 			
-			reftuples.clear();
-			qrytuples.clear();
-			
-			// Do alignments in two passes: first pass collects reference & query tuples, second pass does the join
-			while (values.hasNext()) 
+			if (copies != null)
 			{
-				MerRecord merIn = new MerRecord(values.next());
-				
-				//System.out.println("Got: " + merIn.toString());
-
-				// just save away the tuples
-				if (merIn.isReference) { reftuples.add(merIn); }	
-				else                   { qrytuples.add(merIn); }
+				copies.setOutput(output);
+				output = copies;
 			}
 			
-			int numq = qrytuples.size();
-			int numr = reftuples.size();
+			refs.clear();
 			
-			boolean verbose = false;
-			String seedstr = "";
+			// with a seed store the reference tuples aren't shuffled, and all the values are queries
+			if (store != null) { store.collect(mer, refs); }
 			
-			if (verbose)
-			{
-				seedstr = DNAString.bytesToString(DNAString.seedToArr(mer.get(), SEED_LEN, REDUNDANCY));
-				System.out.print(seedstr + " " + numr + " x " + numq + " = " + numr*numq + " " + mer.getSize() + " " + mer.toString());
-			}
+			QueryBlock block = serialblock;
+			block.queries.clear();
 			
-			// join together the query-ref shared mers
-			if ((numr != 0) && (numq != 0))
-			{		
-				// Align reads to the references in blocks of BLOCK_SIZE x BLOCK_SIZE to improve cache locality
-				// define a qry block between [startq, lastq)
-				for (int startq = 0; startq < numq; startq += BLOCK_SIZE)
+			int numq = 0;
+			int spillq = 0;
+			boolean parallel = false;
+			
+			try
+			{
+				while (values.hasNext()) 
 				{
-					int lastq = startq + BLOCK_SIZE;
-					if (lastq > numq) { lastq = numq; }
+					BytesWritable value = values.next();
 					
-					if (FILTER_ALIGNMENTS)
+					if (MerRecord.isReference(value))
 					{
-					  java.util.Arrays.fill(bestk, K+1);
+						if (numq != 0) { throw new IOException("Reference tuple after the queries of " + mer); }
+						
+						refs.add(value);
+						continue;
 					}
 					
-					// define a ref block between [startr, lastr)
-					for (int startr = 0; startr < numr; startr += BLOCK_SIZE)
+					// nothing to join with, just skip the rest of the queries
+					if (refs.size() == 0) { numq++; continue; }
+					
+					// the refs are all in before the first query, group them before any block shares them
+					if ((numq == 0) && FLANK_CACHE && !refs.isSpilled()) { refs.arena().groupFlanks(); }
+					
+					numq++;
+					
+					if (refs.isSpilled())
 					{
-						int lastr = startr + BLOCK_SIZE;
-						if (lastr > numr) { lastr = numr; }
-
-						// for each element in [startq, lastq)
-						for (int curq = startq; curq < lastq; curq++)
+						// too many refs to keep on the heap, align the queries in big batches
+						if (spillq == BLOCK_SIZE * SPILL_BATCH_BLOCKS)
 						{
-							MerRecord qry = qrytuples.get(curq);
-							
-							// for each element in [startr, lastr)
-							for (int curr = startr; curr < lastr; curr++)
-							{
-								AlignmentRecord rec = extend(qry, reftuples.get(curr), output, reporter);
-								
-								if (rec.m_differences == -1) continue;
-								
-								if (FILTER_ALIGNMENTS)
-								{
-									int qidx = curq - startq;
-									if (rec.m_differences < bestk[qidx])
-									{ 
-										bestk[qidx] = rec.m_differences;
-										bestalignments[qidx].set(rec);
-										recordsecond[qidx] = false;
-									}
-									else if (rec.m_differences == bestk[qidx])
-									{	
-										secondalignments[qidx].set(rec);
-										recordsecond[qidx] = true;
-									}
-								}
-								else
-								{
-									qryid.set(qry.id);
-									output.collect(qryid, fullalignment.toBytes());
-								}
-							}
+							alignSpilled(spillq, output, reporter);
+							spillq = 0;
 						}
+						
+						addQuery(spillBlock(spillq), value);
+						spillq++;
+						continue;
 					}
 					
-					if (FILTER_ALIGNMENTS)
+					if (block.queries.size() >= BLOCK_SIZE)
 					{
-						for (int qidx = 0; qidx < lastq - startq; qidx++)
+						// once the group is big enough, hand the rest of the blocks to the threads
+						if (!parallel && (pool != null) && ((long) refs.size() * numq >= PARALLEL_MIN_PAIRS))
 						{
-							if (bestk[qidx] <= K)
-							{
-								qryid.set(qrytuples.get(qidx+startq).id);
-								output.collect(qryid, bestalignments[qidx].toBytes());
-								
-								if (recordsecond[qidx])
-								{
-									output.collect(qryid, secondalignments[qidx].toBytes());
-								}
-							}
+							parallel = true;
 						}
+						
+						block = alignBlock(block, parallel, output, reporter);
 					}
+					
+					addQuery(block, value);
+				}
+				
+				if (spillq > 0)
+				{
+					alignSpilled(spillq, output, reporter);
+				}
+				else if (block.queries.size() > 0)
+				{
+					block = alignBlock(block, parallel, output, reporter);
+				}
+				
+				if ((block != serialblock) && !pendingblocks.contains(block)) { freeblocks.add(block); }
+				
+				while (!pending.isEmpty())
+				{
+					replayNext(output, reporter);
 				}
 			}
-
+			finally
+			{
+				for (Future<BufferedOutput> f : pending) { f.cancel(true); }
+				pending.clear();
+				pendingblocks.clear();
+			}
+			
+			int numr = refs.size();
+			
+			boolean verbose = false;
+			
 			if (verbose)
 			{
+				String seedstr = DNAString.bytesToString(mer.toArr(SEED_LEN));
+				System.out.println(seedstr + " " + numr + " x " + numq + " = " + numr*numq + " " + mer.toString() + " " + timer.get());
 				reporter.setStatus(seedstr + " " + numr + " x " + numq + " = " + numr*numq + " " + timer.get());			
-				System.out.println(" " + timer.get());
 			}
 		}
 	}
@@ -0,0 +1,205 @@
+package cloudBurst;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+
+/// (w,m)-minimizers of the SEED_LEN windows used for seeding.
+///
+/// A window of SEED_LEN bp holds w = SEED_LEN-m+1 m-mers, and its minimizer is
+/// the leftmost one with the smallest rank. The reference only emits the
+/// m-mers that are the minimizer of some window, and each read seed block is
+/// keyed by its own minimizer. A block that occurs exactly in the reference
+/// has the same minimizer at the same offset there, so every exact seed hit of
+/// the exhaustive seeding is still found and K-difference sensitivity doesn't
+/// change. The reducer checks the rest of the block before extending, since
+/// the m-mers alone also match elsewhere.
+///
+/// The rank only has to be the same for the same m-mer, so it is a hash of
+/// the first 32 bp. Hashing avoids the poly-A bias of lexicographic order.
+
+public class Minimizers {
+
+	//------------------------- rank --------------------------
+	// rank of the m-mer at seq[start]
+
+	public static long rank(byte [] seq, int start, int m)
+	{
+		int n = (m < 32) ? m : 32;
+		long code = m;
+
+		for (int i = 0; i < n; i++)
+		{
+			code = (code << 2) | DNAString.byteToSeed(seq[start+i]);
+		}
+
+		// murmur3 finalizer
+		code ^= code >>> 33;
+		code *= 0xff51afd7ed558ccdL;
+		code ^= code >>> 33;
+		code *= 0xc4ceb9fe1a85ec53L;
+		code ^= code >>> 33;
+
+		return code;
+	}
+
+
+	//------------------------- windowMin --------------------------
+	// Offset in the window of seedlen bp at seq[start] of its minimizer
+
+	public static int windowMin(byte [] seq, int start, int seedlen, int m)
+	{
+		int best = 0;
+		long bestrank = rank(seq, start, m);
+
+		for (int i = 1; i + m <= seedlen; i++)
+		{
+			long r = rank(seq, start+i, m);
+			if (r < bestrank) { best = i; bestrank = r; }
+		}
+
+		return best;
+	}
+
+
+	//------------------------- Scanner --------------------------
+	// Slide over consecutive windows and report the minimizer of each one
+
+	public static class Scanner
+	{
+		private int SEED_LEN;
+		private int M;
+
+		private long [] ranks = new long[1024];
+		private int first;    // ranks[i] is the rank of the m-mer at first+i
+		private int cur = -1; // current minimizer, -1 to rescan
+
+		public Scanner(int seedlen, int m)
+		{
+			SEED_LEN = seedlen;
+			M = m;
+		}
+
+		//------------------------- reset --------------------------
+		// Rank the m-mers of the windows starting in [from, to)
+
+		public void reset(byte [] seq, int from, int to)
+		{
+			int n = to - from + SEED_LEN - M;
+			if (n > ranks.length) { ranks = new long[n * 2]; }
+
+			for (int i = 0; i < n; i++)
+			{
+				ranks[i] = rank(seq, from+i, M);
+			}
+
+			first = from;
+			cur = -1;
+		}
+
+		//------------------------- skip --------------------------
+		// The caller skipped a window (it had N's), rescan at the next one
+
+		public void skip()
+		{
+			cur = -1;
+		}
+
+		//------------------------- next --------------------------
+		// Minimizer position of the window at pos. Windows have to be asked
+		// for in increasing order, so the positions returned never decrease
+
+		public int next(int pos)
+		{
+			int w = SEED_LEN - M + 1;
+			int last = pos + w - 1;
+
+			if (cur < pos)
+			{
+				cur = pos;
+				for (int i = pos+1; i <= last; i++)
+				{
+					if (ranks[i-first] < ranks[cur-first]) { cur = i; }
+				}
+			}
+			else if (ranks[last-first] < ranks[cur-first])
+			{
+				cur = last;
+			}
+
+			return cur;
+		}
+	}
+
+
+	//------------------------- main --------------------------
+	// Compare the number of reference seeds emitted by exhaustive and
+	// minimizer seeding, and check the Scanner against windowMin
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 3)
+		{
+			System.err.println("Usage: Minimizers ref.br seedlen w");
+			System.exit(-1);
+		}
+
+		int seedlen = Integer.parseInt(args[1]);
+		int w       = Integer.parseInt(args[2]);
+		int m       = seedlen - w + 1;
+
+		JobConf conf = new JobConf(Minimizers.class);
+		Path p = new Path(args[0]);
+		FileSystem fs = p.getFileSystem(conf);
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, p, conf);
+
+		IntWritable id = new IntWritable();
+		BytesWritable raw = new BytesWritable();
+		FastaRecord record = new FastaRecord();
+		Scanner scanner = new Scanner(seedlen, m);
+
+		long windows = 0;
+		long minimizers = 0;
+		Timer t = new Timer();
+
+		while (reader.next(id, raw))
+		{
+			record.fromBytes(raw);
+			byte [] seq = record.m_sequence;
+			int end = seq.length - seedlen + 1;
+			if (end <= 0) { continue; }
+
+			scanner.reset(seq, 0, end);
+			int lastq = -1;
+
+			for (int pos = 0; pos < end; pos++)
+			{
+				if (DNAString.arrHasN(seq, pos, seedlen)) { scanner.skip(); continue; }
+
+				int q = scanner.next(pos);
+
+				if (q != pos + windowMin(seq, pos, seedlen, m))
+				{
+					throw new IOException("Scanner minimizer " + q + " != " + (pos + windowMin(seq, pos, seedlen, m)) + " at " + pos);
+				}
+
+				windows++;
+				if (q != lastq) { minimizers++; lastq = q; }
+			}
+		}
+
+		reader.close();
+
+		System.out.println("seedlen=" + seedlen + " w=" + w + " m=" + m);
+		System.out.println("exhaustive seeds: " + windows);
+		System.out.println("minimizer seeds:  " + minimizers + " (" + String.format("%.3f", (double) minimizers / windows) +
+				           ", expected about " + String.format("%.3f", 2.0 / (w + 1)) + ")");
+		System.err.println("took " + t.get());
+	}
+}
@@ -0,0 +1,461 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.Random;
+
+
+/// Myers/Hyyro bit-vector edit distance over the 4-bit packed flanks.
+///
+/// Each column of the dynamic programming matrix is held as vertical delta
+/// vectors (Pv/Mv), one bit per pattern position, 64 positions per word. This
+/// computes the same score and end point as LandauVishkin.kdifference, and
+/// only replays kdifference (with k set to the final score) to build the
+/// dist/what traceback when the alignment succeeds.
+
+public final class MyersBitVector {
+
+	private static final AlignInfo noAlignment  = new AlignInfo(0,  0, null, null, 0);
+	private static final AlignInfo badAlignment = new AlignInfo(-1,-1, null, null, 0);
+
+	private static final int NUM_CODES = 16; // one match vector per nibble code
+
+	// how often (in columns) to test whether the alignment can still succeed
+	private static final int CUTOFF_STRIDE = 4;
+
+	private long [] Pv  = null;
+	private long [] Mv  = null;
+	private long [] Peq = null; // [code * words + block]
+	private int  words = 0;
+
+	// pattern the match vectors were last built for, since a query flank is
+	// extended against a whole block of reference flanks in a row
+	private byte [] peqPattern = null;
+	private int peqOffset = 0;
+	private int peqLength = 0;
+
+	// builds the traceback for successful alignments
+	private LandauVishkin lv;
+
+
+	//------------------------- Constructor --------------------------
+	// the buffers are sized on the first alignment
+
+	public MyersBitVector(LandauVishkin traceback)
+	{
+		lv = traceback;
+	}
+
+
+	//------------------------- configure --------------------------
+	// initialize runtime buffers for patterns up to patternlen bases
+
+	public void configure(int patternlen)
+	{
+		words = (patternlen + 63) / 64;
+		if (words == 0) { words = 1; }
+
+		Pv  = new long [words];
+		Mv  = new long [words];
+		Peq = new long [NUM_CODES * words];
+		peqPattern = null;
+	}
+
+
+	//------------------------- bandMin --------------------------
+	// smallest value of the current column between rows lo and hi, given
+	// its top cell D[0][j]. Cells outside the band around the diagonal
+	// are already known to be too far from the origin.
+
+	private int bandMin(int top, int lo, int hi)
+	{
+		if (lo > hi) { return Integer.MAX_VALUE; }
+
+		// D[lo][j] from the vertical changes above it
+		int cur = top;
+		int b = 0;
+		for (; b < (lo >> 6); b++)
+		{
+			cur += Long.bitCount(Pv[b]) - Long.bitCount(Mv[b]);
+		}
+
+		long mask = (1L << (lo & 63)) - 1;
+		cur += Long.bitCount(Pv[b] & mask) - Long.bitCount(Mv[b] & mask);
+
+		int min = cur;
+
+		for (int i = lo; i < hi; i++)
+		{
+			long bit = 1L << (i & 63);
+			if      ((Pv[i >> 6] & bit) != 0) { cur++; }
+			else if ((Mv[i >> 6] & bit) != 0) { cur--; }
+
+			// cur is now D[i+1][j]
+			if (cur < min) { min = cur; }
+		}
+
+		return min;
+	}
+
+
+	//------------------------- base --------------------------
+	// extract the nibble code of base i from a 4-bit packed string
+
+	private static int base(byte [] bin, int off, int i)
+	{
+		byte b = bin[off + (i >> 1)];
+		return ((i & 1) == 0) ? ((b >> 4) & 0x0F) : (b & 0x0F);
+	}
+
+
+	//------------------------- kdifference_bin --------------------------
+	// k-difference alignment of 2 bases / byte binary strings. Returns the same
+	// AlignInfo as LandauVishkin.kdifference on the unpacked strings.
+
+	public AlignInfo kdifference_bin(byte [] textbin, byte [] patternbin, int k)
+	{
+		return kdifference_bin(textbin, 0, textbin.length, patternbin, 0, patternbin.length, k);
+	}
+
+
+	//------------------------- resetPattern --------------------------
+	// Rebuild the match vectors on the next call, even for the same pattern bytes
+
+	public void resetPattern()
+	{
+		peqPattern = null;
+	}
+
+
+	//------------------------- kdifference_bin --------------------------
+	// same, for the tlen text bytes at textbin[toff] and plen pattern bytes at patternbin[poff]
+
+	public AlignInfo kdifference_bin(byte [] textbin, int toff, int tlen, byte [] patternbin, int poff, int plen, int k)
+	{
+		return kdifference_bin(textbin, toff, tlen, patternbin, poff, plen, k, true);
+	}
+
+
+	//------------------------- kdifference_bin --------------------------
+	// same, leaving the traceback to LandauVishkin.traceback() unless traceback
+
+	AlignInfo kdifference_bin(byte [] textbin, int toff, int tlen, byte [] patternbin, int poff, int plen, int k, boolean traceback)
+	{
+		int m = DNAString.dnaArrLen(patternbin, poff, plen);
+		int n = DNAString.dnaArrLen(textbin, toff, tlen);
+
+		if (m == 0 || n == 0)
+		{
+			return noAlignment;
+		}
+
+		int w = (m + 63) / 64;
+		if (w > words) { configure(m); }
+
+		int lastblock = w-1;
+		long lastbit  = 1L << ((m-1) & 63);
+
+		// build the match vectors for the pattern
+		if ((patternbin != peqPattern) || (poff != peqOffset) || (plen != peqLength))
+		{
+			java.util.Arrays.fill(Peq, 0, NUM_CODES * words, 0L);
+			for (int i = 0; i < m; i++)
+			{
+				Peq[base(patternbin, poff, i) * words + (i >> 6)] |= 1L << (i & 63);
+			}
+
+			peqPattern = patternbin;
+			peqOffset  = poff;
+			peqLength  = plen;
+		}
+
+		// score in the last row of the current column, D[m][0] = m
+		int score = m;
+
+		// best boundary cell seen so far
+		int bestscore = score;
+
+		// cells past column m+k on the last row, or anywhere in the last column
+		// when n > m+k, are more than k from the origin and can't be used
+		int lastcol = n;
+		if (lastcol > m + k) { lastcol = m + k; }
+
+		boolean cutoff = false;
+
+		if (w == 1)
+		{
+			// reads up to 64bp: keep the column in registers
+			long pv = -1L; // first column: D[i][0] = i
+			long mv = 0L;
+
+			for (int j = 1; j <= lastcol; j++)
+			{
+				long eq = Peq[base(textbin, toff, j-1) * words];
+
+				long xv = eq | mv;
+				long xh = (((eq & pv) + pv) ^ pv) | eq;
+				long ph = mv | ~(xh | pv);
+				long mh = pv & xh;
+
+				if      ((ph & lastbit) != 0) { score++; }
+				else if ((mh & lastbit) != 0) { score--; }
+
+				ph = (ph << 1) | 1L; // D[0][j] = j
+				mh <<= 1;
+
+				pv = mh | ~(xv | ph);
+				mv = ph & xv;
+
+				if (score < bestscore)
+				{
+					bestscore = score;
+					if (bestscore == 0) { cutoff = true; break; } // can't do better
+				}
+
+				// every path to a later boundary cell crosses this column, so stop once
+				// nothing in it can beat the best so far or stay within k
+				int limit = (bestscore <= k) ? bestscore : k+1;
+
+				if ((limit <= j) && (j % CUTOFF_STRIDE == 0))
+				{
+					Pv[0] = pv;
+					Mv[0] = mv;
+
+					if (bandMin(j, j-limit+1, Math.min(m, j+limit-1)) >= limit) { cutoff = true; break; }
+				}
+			}
+
+			Pv[0] = pv;
+			Mv[0] = mv;
+		}
+		else
+		{
+			// first column: D[i][0] = i
+			for (int b = 0; b < w; b++)
+			{
+				Pv[b] = -1L;
+				Mv[b] = 0L;
+			}
+
+			for (int j = 1; j <= lastcol; j++)
+			{
+				int eqbase = base(textbin, toff, j-1) * words;
+				int hin = 1; // D[0][j] = j
+
+				for (int b = 0; b < w; b++)
+				{
+					long pv = Pv[b];
+					long mv = Mv[b];
+					long eq = Peq[eqbase + b];
+
+					long xv = eq | mv;
+					if (hin < 0) { eq |= 1L; }
+					long xh = (((eq & pv) + pv) ^ pv) | eq;
+					long ph = mv | ~(xh | pv);
+					long mh = pv & xh;
+
+					int hout = 0;
+					if (b == lastblock)
+					{
+						if      ((ph & lastbit) != 0) { score++; }
+						else if ((mh & lastbit) != 0) { score--; }
+					}
+					else
+					{
+						if      (ph < 0) { hout = 1;  }
+						else if (mh < 0) { hout = -1; }
+					}
+
+					ph <<= 1;
+					mh <<= 1;
+					if      (hin < 0) { mh |= 1L; }
+					else if (hin > 0) { ph |= 1L; }
+
+					Pv[b] = mh | ~(xv | ph);
+					Mv[b] = ph & xv;
+
+					hin = hout;
+				}
+
+				if (score < bestscore)
+				{
+					bestscore = score;
+					if (bestscore == 0) { cutoff = true; break; }
+				}
+
+				int limit = (bestscore <= k) ? bestscore : k+1;
+
+				if ((limit <= j) && (j % CUTOFF_STRIDE == 0) && 
+					(bandMin(j, j-limit+1, Math.min(m, j+limit-1)) >= limit))
+				{
+					cutoff = true;
+					break;
+				}
+			}
+		}
+
+		// the rest of the last column, walking up from D[m][n] = score. Only the
+		// rows where D[i][n] >= n-i can still beat the best are of interest.
+		if (!cutoff && (lastcol == n))
+		{
+			int cell = score;
+
+			int top = n - bestscore + 1;
+			if (top < 0) { top = 0; }
+
+			for (int i = m-1; i >= top; i--)
+			{
+				long bit = 1L << (i & 63);
+				if      ((Pv[i >> 6] & bit) != 0) { cell--; }
+				else if ((Mv[i >> 6] & bit) != 0) { cell++; }
+
+				// cell is now D[i][n]
+				if (cell < bestscore) { bestscore = cell; }
+			}
+		}
+
+		if (bestscore > k)
+		{
+			return badAlignment;
+		}
+
+		// replay Landau-Vishkin only up to the known score for the end point and traceback
+		return lv.kdifference_bin(textbin, toff, tlen, patternbin, poff, plen, bestscore, traceback);
+	}
+
+
+
+
+
+
+	/////////////////////////////////////////////////////////////////////
+	//                    Debugging and Test code                      //
+    /////////////////////////////////////////////////////////////////////
+
+
+	//------------------------- randomDNA --------------------------
+
+	private static byte [] randomDNA(Random r, int len)
+	{
+		byte [] letters = DNAString.stringToBytes("ACGTN");
+		byte [] retval = new byte[len];
+
+		for (int i = 0; i < len; i++)
+		{
+			// keep N's rare
+			retval[i] = letters[(r.nextInt(50) == 0) ? 4 : r.nextInt(4)];
+		}
+
+		return retval;
+	}
+
+
+	//------------------------- mutate --------------------------
+	// apply up to edits random substitutions, insertions and deletions
+
+	private static byte [] mutate(Random r, byte [] src, int edits)
+	{
+		StringBuilder sb = new StringBuilder(DNAString.bytesToString(src));
+		byte [] letters = DNAString.stringToBytes("ACGT");
+
+		for (int e = 0; e < edits && sb.length() > 1; e++)
+		{
+			int pos = r.nextInt(sb.length());
+			char c = (char) letters[r.nextInt(4)];
+
+			switch (r.nextInt(3))
+			{
+				case 0:  sb.setCharAt(pos, c); break;
+				case 1:  sb.insert(pos, c);    break;
+				default: sb.deleteCharAt(pos); break;
+			}
+		}
+
+		return DNAString.stringToBytes(sb.toString());
+	}
+
+
+	//------------------------- checkEquivalence --------------------------
+	// compare against kdifference on random flanks, including the traceback
+
+	public void checkEquivalence(LandauVishkin expect, int trials, int k, long seed) throws IOException
+	{
+		Random r = new Random(seed);
+
+		for (int t = 0; t < trials; t++)
+		{
+			int m = 1 + r.nextInt(150);
+			byte [] pattern    = randomDNA(r, m);
+			byte [] patternbin = DNAString.arrToDNA(pattern);
+
+			// a query flank is extended against several reference flanks in a row
+			for (int c = 0; c < 3; c++)
+			{
+				byte [] text = mutate(r, pattern, r.nextInt(k+3));
+
+				// the reference flank usually runs past the end of the read
+				if (r.nextBoolean())
+				{
+					byte [] tail = randomDNA(r, r.nextInt(k+5));
+					byte [] longer = new byte[text.length + tail.length];
+					System.arraycopy(text, 0, longer, 0, text.length);
+					System.arraycopy(tail, 0, longer, text.length, tail.length);
+					text = longer;
+				}
+
+				String expected = expect.kdifference(text, pattern, k).toString();
+				String actual   = kdifference_bin(DNAString.arrToDNA(text), patternbin, k).toString();
+
+				if (!expected.equals(actual))
+				{
+					throw new IOException("Mismatch k=" + k +
+							              "\nt: " + DNAString.bytesToString(text) +
+							              "\np: " + DNAString.bytesToString(pattern) +
+							              "\nlv: " + expected + "\nbv: " + actual);
+				}
+			}
+		}
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the bit-vector results match Landau-Vishkin and compare speed
+
+	public static void main(String[] args) throws IOException
+	{
+		int maxk = 6;
+		LandauVishkin lv = new LandauVishkin(maxk);
+		MyersBitVector bv = new MyersBitVector(new LandauVishkin(maxk));
+
+		for (int k = 0; k <= maxk; k++)
+		{
+			bv.checkEquivalence(lv, 100000, k, k);
+			System.out.println("k=" + k + " matches kdifference");
+		}
+
+		// most candidate pairs from a repetitive seed fail to extend
+		byte[] text    = DNAString.stringToBytes("TTTCTCAAACACCTATATTTTTTGTACGTAGCATCGAT");
+		byte[] pattern = DNAString.stringToBytes("TTGCTCAATCACGTATAAATTTTTACGTACATCGAT");
+
+		byte [] text_b    = DNAString.arrToDNA(text);
+		byte [] pattern_b = DNAString.arrToDNA(pattern);
+
+		int k   = 4;
+		int num = 1000000;
+
+		System.out.println("kdifference: " + lv.kdifference(text, pattern, k));
+
+		Timer ta = new Timer();
+		for (int i = 0; i < num; i++)
+		{
+			lv.kdifference(DNAString.dnaToArr(text_b), DNAString.dnaToArr(pattern_b), k);
+		}
+		System.out.println("Landau-Vishkin " + num + " took:" + ta.get());
+
+		Timer tb = new Timer();
+		for (int i = 0; i < num; i++)
+		{
+			bv.kdifference_bin(text_b, pattern_b, k);
+		}
+		System.out.println("Bit-vector " + num + " took:" + tb.get());
+	}
+}
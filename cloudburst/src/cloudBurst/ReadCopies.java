@@ -0,0 +1,173 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+
+
+/// The reads collapsed by ConvertFastaForCloud -dedup. Only the first copy of
+/// an identical read sequence is aligned, and the table maps its id to the ids
+/// of the other copies, as (IntWritable rep, IntWritable copy) pairs sorted by
+/// rep. The last job of a run reports every alignment of a representative for
+/// all of its copies as well, so the output is the same as aligning them all.
+
+public class ReadCopies {
+
+	// copies[i] is a copy of reps[i], sorted by rep
+	private int [] reps;
+	private int [] copies;
+	private int size = 0;
+
+
+	//------------------------- Constructor --------------------------
+	private ReadCopies()
+	{
+		reps   = new int[1024];
+		copies = new int[1024];
+	}
+
+
+	//------------------------- read --------------------------
+	public static ReadCopies read(FileSystem fs, Path p) throws IOException
+	{
+		ReadCopies table = new ReadCopies();
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, p, fs.getConf());
+		IntWritable rep  = new IntWritable();
+		IntWritable copy = new IntWritable();
+
+		try
+		{
+			while (reader.next(rep, copy))
+			{
+				if ((table.size > 0) && (rep.get() < table.reps[table.size-1]))
+				{
+					throw new IOException("Read copies in " + p + " aren't sorted at " + rep.get());
+				}
+
+				if (table.size == table.reps.length)
+				{
+					table.reps   = Arrays.copyOf(table.reps, 2 * table.size);
+					table.copies = Arrays.copyOf(table.copies, 2 * table.size);
+				}
+
+				table.reps[table.size]   = rep.get();
+				table.copies[table.size] = copy.get();
+				table.size++;
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return table;
+	}
+
+
+	//------------------------- load --------------------------
+	// The table shipped with the DistributedCache, see CacheFiles
+
+	public static ReadCopies load(JobConf conf, String copiespath) throws IOException
+	{
+		return CacheFiles.load(conf, copiespath, new CacheFiles.Loader<ReadCopies>()
+		{
+			public ReadCopies read(FileSystem fs, Path p) throws IOException
+			{
+				return ReadCopies.read(fs, p);
+			}
+		});
+	}
+
+
+	//------------------------- size --------------------------
+	// the number of collapsed copies
+
+	public int size()
+	{
+		return size;
+	}
+
+
+	//------------------------- firstCopy --------------------------
+	// Index of the first copy of rep, or -1 if it wasn't collapsed
+
+	public int firstCopy(int rep)
+	{
+		int i = Arrays.binarySearch(reps, 0, size, rep);
+		if (i < 0) { return -1; }
+
+		while ((i > 0) && (reps[i-1] == rep)) { i--; }
+
+		return i;
+	}
+
+
+	//------------------------- Collector --------------------------
+	// Pass each record on for the read and for all of its copies. Not thread
+	// safe, use one per thread.
+
+	public class Collector implements OutputCollector<IntWritable, BytesWritable>
+	{
+		private OutputCollector<IntWritable, BytesWritable> output;
+		private IntWritable copyid = new IntWritable();
+
+		public void setOutput(OutputCollector<IntWritable, BytesWritable> output)
+		{
+			this.output = output;
+		}
+
+		public void collect(IntWritable readid, BytesWritable rec) throws IOException
+		{
+			output.collect(readid, rec);
+
+			int rep = readid.get();
+			int i = firstCopy(rep);
+			if (i == -1) { return; }
+
+			for (; (i < size) && (reps[i] == rep); i++)
+			{
+				copyid.set(copies[i]);
+				output.collect(copyid, rec);
+			}
+		}
+	}
+
+	public Collector collector(OutputCollector<IntWritable, BytesWritable> output)
+	{
+		Collector c = new Collector();
+		c.setOutput(output);
+		return c;
+	}
+
+
+	//------------------------- main --------------------------
+	// Print the copies of each collapsed read
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: ReadCopies copiesfile");
+			System.exit(-1);
+		}
+
+		JobConf conf = new JobConf(ReadCopies.class);
+		Path p = new Path(args[0]);
+		ReadCopies table = read(p.getFileSystem(conf), p);
+
+		for (int i = 0; i < table.size; i++)
+		{
+			System.out.println(table.reps[i] + "\t" + table.copies[i]);
+		}
+
+		System.err.println(table.size + " copies");
+	}
+}
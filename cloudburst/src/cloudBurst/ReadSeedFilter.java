@@ -0,0 +1,429 @@
+package cloudBurst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+
+/// Bloom filter of the read seeds, so the reference mappers can skip the
+/// seeds that no read has (CloudBurst -readfilter).
+///
+/// Most reference seeds match no read when the reads cover the reference
+/// thinly, but they are still packed, sorted and shuffled before the reducer
+/// drops them. The pre-pass runs the read half of MerReduce.MapClass with the
+/// alignment settings and sets the bits of every key it would emit, so the
+/// filter agrees with the alignment job whatever the seeding mode.
+///
+/// The map tasks don't hold a filter. They emit the 64 bit words they set, as
+/// (word index, bits), ORed together in a small table and again by the
+/// combiner, so each task sends at most one record per word it touched. The
+/// words are range partitioned across the reducers, and run() packs the
+/// reducer outputs into one file that is shipped with the DistributedCache.
+///
+/// A Bloom filter has no false negatives, so every reference seed that some
+/// read has is still sent and the alignments are the same. The false
+/// positives only cost the shuffle they would have cost anyway.
+
+public class ReadSeedFilter {
+
+	public static final int NUM_HASHES = 3;
+
+	// each reference map task holds the whole filter
+	public static final int MAX_MB = 1024;
+
+	private long [] bits;
+	private long numbits;
+
+
+	//------------------------- Constructor --------------------------
+	public ReadSeedFilter(int mb)
+	{
+		bits = new long[numWords(mb)];
+		numbits = 64L * bits.length;
+	}
+
+	private ReadSeedFilter(long [] bits)
+	{
+		this.bits = bits;
+		numbits = 64L * bits.length;
+	}
+
+
+	//------------------------- numWords --------------------------
+	public static int numWords(int mb)
+	{
+		return mb * (1 << 20) / 8;
+	}
+
+
+	//------------------------- bitIndex --------------------------
+	// The i'th of the NUM_HASHES bits of a seed with the given seedHash64, in
+	// a filter of numbits bits
+
+	private static long bitIndex(long hash, int i, long numbits)
+	{
+		long h2 = (hash >>> 32) | (hash << 32) | 1;
+
+		return ((hash + i * h2) & Long.MAX_VALUE) % numbits;
+	}
+
+
+	//------------------------- add --------------------------
+	// Add the bases of seed, ignoring its replica and tag
+
+	public void add(SeedKey seed)
+	{
+		long hash = seed.seedHash64();
+
+		for (int i = 0; i < NUM_HASHES; i++)
+		{
+			long b = bitIndex(hash, i, numbits);
+			bits[(int) (b >>> 6)] |= 1L << (b & 63);
+		}
+	}
+
+
+	//------------------------- mightContain --------------------------
+	// false if no read has the bases of seed
+
+	public boolean mightContain(SeedKey seed)
+	{
+		long hash = seed.seedHash64();
+
+		for (int i = 0; i < NUM_HASHES; i++)
+		{
+			long b = bitIndex(hash, i, numbits);
+			if ((bits[(int) (b >>> 6)] & (1L << (b & 63))) == 0) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- fill --------------------------
+	// Fraction of the bits set, the false positive rate is about fill^NUM_HASHES
+
+	public double fill()
+	{
+		long set = 0;
+		for (long w : bits) { set += Long.bitCount(w); }
+
+		return (double) set / numbits;
+	}
+
+
+	//------------------------- WordTable --------------------------
+	// The words set by one map task since the last flush, ORed together in
+	// an open addressing table of word index -> bits
+
+	private static class WordTable
+	{
+		private static final int CAPACITY = 1 << 16;
+
+		private int [] words = new int[CAPACITY];
+		private long [] values = new long[CAPACITY];
+		private int size = 0;
+
+		private IntWritable word = new IntWritable();
+		private LongWritable value = new LongWritable();
+
+		WordTable()
+		{
+			Arrays.fill(words, -1);
+		}
+
+		// OR bits into word, flushing the table to output first if it's half full
+		void or(int w, long b, OutputCollector<IntWritable, LongWritable> output) throws IOException
+		{
+			int mask = CAPACITY - 1;
+			int h = (w * 0x9E3779B1) & mask;
+
+			while ((words[h] != -1) && (words[h] != w)) { h = (h + 1) & mask; }
+
+			if (words[h] == -1)
+			{
+				if (2 * (size + 1) > CAPACITY)
+				{
+					flush(output);
+					or(w, b, output);
+					return;
+				}
+
+				words[h] = w;
+				values[h] = 0;
+				size++;
+			}
+
+			values[h] |= b;
+		}
+
+		void flush(OutputCollector<IntWritable, LongWritable> output) throws IOException
+		{
+			for (int h = 0; h < CAPACITY; h++)
+			{
+				if (words[h] == -1) { continue; }
+
+				word.set(words[h]);
+				value.set(values[h]);
+				output.collect(word, value);
+
+				words[h] = -1;
+			}
+
+			size = 0;
+		}
+	}
+
+
+	//------------------------- FilterMapClass --------------------------
+	// Emit the filter words set by the read seeds MapClass would emit
+
+	public static class FilterMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, IntWritable, LongWritable>
+	{
+		private MerReduce.MapClass seeder = new MerReduce.MapClass();
+		private WordTable table = new WordTable();
+		private long numbits;
+		private OutputCollector<IntWritable, LongWritable> output = null;
+
+		private OutputCollector<SeedKey, BytesWritable> adder = new OutputCollector<SeedKey, BytesWritable>()
+		{
+			public void collect(SeedKey seed, BytesWritable tuple) throws IOException
+			{
+				long hash = seed.seedHash64();
+
+				for (int i = 0; i < NUM_HASHES; i++)
+				{
+					long b = bitIndex(hash, i, numbits);
+					table.or((int) (b >>> 6), 1L << (b & 63), output);
+				}
+			}
+		};
+
+		public void configure(JobConf conf)
+		{
+			seeder.configure(conf);
+			numbits = 64L * numWords(Integer.parseInt(conf.get("READ_FILTER_MB")));
+		}
+
+		public void map(IntWritable id, BytesWritable rawRecord,
+				OutputCollector<IntWritable, LongWritable> output, Reporter reporter) throws IOException
+		{
+			this.output = output;
+			seeder.map(id, rawRecord, adder, reporter);
+		}
+
+		public void close() throws IOException
+		{
+			if (output != null)
+			{
+				table.flush(output);
+			}
+		}
+	}
+
+
+	//------------------------- OrReduceClass --------------------------
+	// OR together the bits of a word, as the combiner and the reducer
+
+	public static class OrReduceClass extends MapReduceBase implements
+			Reducer<IntWritable, LongWritable, IntWritable, LongWritable>
+	{
+		private LongWritable merged = new LongWritable();
+
+		public void reduce(IntWritable word, Iterator<LongWritable> values,
+				OutputCollector<IntWritable, LongWritable> output, Reporter reporter) throws IOException
+		{
+			long b = 0;
+			while (values.hasNext()) { b |= values.next().get(); }
+
+			merged.set(b);
+			output.collect(word, merged);
+		}
+	}
+
+
+	//------------------------- WordPartitioner --------------------------
+	// Give each reducer a contiguous range of the words
+
+	public static class WordPartitioner implements Partitioner<IntWritable, LongWritable>
+	{
+		private long numwords;
+
+		public void configure(JobConf conf)
+		{
+			numwords = numWords(Integer.parseInt(conf.get("READ_FILTER_MB")));
+		}
+
+		public int getPartition(IntWritable word, LongWritable bits, int numPartitions)
+		{
+			return (int) (word.get() * (long) numPartitions / numwords);
+		}
+	}
+
+
+	//------------------------- run --------------------------
+	// Setup and run the hadoop job for the filter of the reads in qrypath,
+	// seeded with the settings in alignconf, and pack it into the file outpath
+
+	public static void run(JobConf alignconf,
+			               String qrypath,
+			               String outpath,
+			               int FILTER_MB,
+			               int NUM_MAP_TASKS,
+			               int NUM_REDUCE_TASKS) throws IOException
+	{
+		String wordspath = outpath + "-words";
+
+		System.out.println("READ_FILTER_PATH: " + outpath);
+		System.out.println("READ_FILTER_MB: "   + FILTER_MB);
+
+		JobConf conf = new JobConf(alignconf);
+		conf.setJobName("ReadSeedFilter");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(NUM_REDUCE_TASKS);
+
+		FileInputFormat.setInputPaths(conf, new Path(qrypath));
+
+		conf.set("READ_FILTER_MB", Integer.toString(FILTER_MB));
+
+		conf.setMapperClass(FilterMapClass.class);
+		conf.setCombinerClass(OrReduceClass.class);
+		conf.setPartitionerClass(WordPartitioner.class);
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(LongWritable.class);
+
+		conf.setReducerClass(OrReduceClass.class);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(LongWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		Path wPath = new Path(wordspath);
+		FileOutputFormat.setOutputPath(conf, wPath);
+		System.err.println("  Removing old results");
+		FileSystem fs = FileSystem.get(conf);
+		fs.delete(wPath, true);
+
+		JobClient.runJob(conf);
+
+		pack(conf, wPath, new Path(outpath), numWords(FILTER_MB));
+		fs.delete(wPath, true);
+
+		System.err.println("ReadSeedFilter Finished");
+	}
+
+
+	//------------------------- pack --------------------------
+	// Write the words the reducers set into one file: the number of words,
+	// then every word
+
+	private static void pack(JobConf conf, Path wordspath, Path outpath, int numwords) throws IOException
+	{
+		FileSystem fs = wordspath.getFileSystem(conf);
+		long [] bits = new long[numwords];
+
+		IntWritable word = new IntWritable();
+		LongWritable value = new LongWritable();
+
+		for (FileStatus file : fs.listStatus(wordspath))
+		{
+			if (file.isDir() || !file.getPath().getName().startsWith("part-")) { continue; }
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, file.getPath(), conf);
+			while (reader.next(word, value)) { bits[word.get()] |= value.get(); }
+			reader.close();
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(outpath, true)));
+
+		try
+		{
+			out.writeInt(numwords);
+			for (long w : bits) { out.writeLong(w); }
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+
+	//------------------------- read --------------------------
+	public static ReadSeedFilter read(FileSystem fs, Path p) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(p), 1 << 16));
+
+		try
+		{
+			long [] bits = new long[in.readInt()];
+			for (int i = 0; i < bits.length; i++) { bits[i] = in.readLong(); }
+
+			return new ReadSeedFilter(bits);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+
+	//------------------------- load --------------------------
+	// The filter shipped with the DistributedCache, see CacheFiles
+
+	public static ReadSeedFilter load(JobConf conf, String path) throws IOException
+	{
+		return CacheFiles.load(conf, path, new CacheFiles.Loader<ReadSeedFilter>()
+		{
+			public ReadSeedFilter read(FileSystem fs, Path p) throws IOException
+			{
+				return ReadSeedFilter.read(fs, p);
+			}
+		});
+	}
+
+
+	//------------------------- main --------------------------
+	// Report how full a filter is
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: ReadSeedFilter filterpath");
+			return;
+		}
+
+		ReadSeedFilter filter = load(new JobConf(ReadSeedFilter.class), args[0]);
+		double fill = filter.fill();
+
+		System.out.println("bits: " + filter.numbits);
+		System.out.println("fill: " + String.format("%.4f", fill));
+		System.out.println("false positive rate: " + String.format("%.4g", Math.pow(fill, NUM_HASHES)));
+	}
+}
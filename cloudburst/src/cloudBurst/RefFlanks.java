@@ -0,0 +1,438 @@
+package cloudBurst;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+
+/// The reference sequences packed 2 bases / byte, for the reducers to cut the
+/// reference flanks from when the mappers only send pointers to them
+/// (CloudBurst -refpointers).
+///
+/// A reference tuple normally carries up to FLANK_LEN bases on each side, so
+/// every reference base is shuffled about FLANK_LEN times. A pointer tuple
+/// (MerRecord.toPointer) only has the flank lengths, and TupleBuffer fills the
+/// flanks in from this file. It is shipped with the DistributedCache and
+/// memory mapped, so the reducers of a node share one copy in the page cache.
+///
+/// The bases use the same 4-bit code as the flanks, like RefIndex, so N's are
+/// kept and the flanks are exactly the ones the mappers would have sent.
+/// Each sequence starts on a byte. The table of (id, start byte, length) is
+/// at the end of the file, followed by its offset.
+
+public class RefFlanks {
+
+	private static final int MAGIC = 0x4342464c; // "CBFL"
+
+	// mapped a segment at a time, a single mapping is limited to 2GB
+	private static final int SEGMENT_SHIFT = 30;
+
+	private ByteBuffer [] segments;
+
+	// id -> index in starts and lens
+	private Map<Integer, Integer> refs = new HashMap<Integer, Integer>();
+	private long [] starts;
+	private int [] lens;
+
+
+	//------------------------- Constructor --------------------------
+	private RefFlanks()
+	{
+
+	}
+
+
+	//------------------------- write --------------------------
+	// Stream the reference chunks of the .br file(s) at refpath into a packed
+	// file at outpath. The chunks of each sequence have to be in order, as
+	// ConvertFastaForCloud writes them
+
+	public static void write(JobConf conf, String refpath, Path outpath) throws IOException
+	{
+		Path path = new Path(refpath);
+		FileSystem fs = path.getFileSystem(conf);
+
+		List<Path> files = new ArrayList<Path>();
+		if (fs.getFileStatus(path).isDir())
+		{
+			for (FileStatus status : fs.listStatus(path))
+			{
+				if (!status.isDir()) { files.add(status.getPath()); }
+			}
+		}
+		else
+		{
+			files.add(path);
+		}
+
+		FileSystem outfs = outpath.getFileSystem(conf);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outfs.create(outpath), 1 << 20));
+
+		List<Integer> ids = new ArrayList<Integer>();
+		Set<Integer> seen = new HashSet<Integer>();
+		List<Long> starts = new ArrayList<Long>();
+		List<Integer> lens = new ArrayList<Integer>();
+
+		IntWritable id = new IntWritable();
+		BytesWritable raw = new BytesWritable();
+		FastaRecord record = new FastaRecord();
+
+		long pos = 4;   // bytes written
+		int curlen = 0; // bases of the current sequence
+		int pending = -1; // high nibble waiting for its low nibble
+
+		try
+		{
+			out.writeInt(MAGIC);
+
+			for (Path p : files)
+			{
+				SequenceFile.Reader reader = new SequenceFile.Reader(fs, p, conf);
+
+				try
+				{
+					while (reader.next(id, raw))
+					{
+						record.fromBytes(raw);
+						byte [] seq = record.m_sequence;
+
+						if (record.m_offset == 0)
+						{
+							if (!seen.add(id.get())) { throw new IOException("Sequence " + id.get() + " is split up in " + refpath); }
+
+							// finish the previous sequence on a byte
+							if (pending >= 0) { out.write((pending << 4) | DNAString.space); pos++; pending = -1; }
+							if (!ids.isEmpty()) { lens.set(lens.size()-1, curlen); }
+
+							ids.add(id.get());
+							starts.add(pos);
+							lens.add(0);
+							curlen = 0;
+						}
+						else if (ids.isEmpty() || (ids.get(ids.size()-1) != id.get()) || (record.m_offset > curlen))
+						{
+							throw new IOException("Chunk at " + record.m_offset + " of sequence " + id.get() + " is out of order in " + p);
+						}
+
+						// the chunks overlap, only write the new bases
+						for (int i = curlen - record.m_offset; i < seq.length; i++)
+						{
+							int code = DNAString.byteToDNA(seq[i]);
+
+							if (pending < 0) { pending = code; }
+							else             { out.write((pending << 4) | code); pos++; pending = -1; }
+						}
+
+						curlen = Math.max(curlen, record.m_offset + seq.length);
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+
+			if (pending >= 0) { out.write((pending << 4) | DNAString.space); pos++; }
+			if (!ids.isEmpty()) { lens.set(lens.size()-1, curlen); }
+
+			out.writeInt(ids.size());
+			for (int r = 0; r < ids.size(); r++)
+			{
+				out.writeInt(ids.get(r));
+				out.writeLong(starts.get(r));
+				out.writeInt(lens.get(r));
+			}
+
+			out.writeLong(pos);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+
+	//------------------------- load --------------------------
+	// Map the file shipped with the DistributedCache, see CacheFiles. A copy
+	// that isn't on the local file system is copied to a local temp file first
+
+	public static RefFlanks load(JobConf conf, String flankpath) throws IOException
+	{
+		final LocalFileSystem localfs = FileSystem.getLocal(conf);
+
+		return CacheFiles.load(conf, flankpath, new CacheFiles.Loader<RefFlanks>()
+		{
+			public RefFlanks read(FileSystem fs, Path p) throws IOException
+			{
+				if (fs.getUri().getScheme().equals(localfs.getUri().getScheme()))
+				{
+					return map(localfs.pathToFile(p));
+				}
+
+				File file = File.createTempFile("cloudburst-refflanks", ".bin");
+				file.deleteOnExit();
+				fs.copyToLocalFile(p, new Path(file.getAbsolutePath()));
+
+				return map(file);
+			}
+		});
+	}
+
+
+	//------------------------- map --------------------------
+	private static RefFlanks map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+
+			RefFlanks flanks = new RefFlanks();
+
+			int numsegments = (int) ((size + (1L << SEGMENT_SHIFT) - 1) >> SEGMENT_SHIFT);
+			flanks.segments = new ByteBuffer[numsegments];
+
+			for (int s = 0; s < numsegments; s++)
+			{
+				long start = (long) s << SEGMENT_SHIFT;
+				flanks.segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << SEGMENT_SHIFT, size - start));
+			}
+
+			if (flanks.getInt(0) != MAGIC) { throw new IOException(file + " is not a reference flank file"); }
+
+			long table = flanks.getLong(size - 8);
+			int numrefs = flanks.getInt(table);
+
+			flanks.starts = new long[numrefs];
+			flanks.lens   = new int[numrefs];
+
+			for (int r = 0; r < numrefs; r++)
+			{
+				long e = table + 4 + 16L * r;
+
+				flanks.refs.put(flanks.getInt(e), r);
+				flanks.starts[r] = flanks.getLong(e + 4);
+				flanks.lens[r]   = flanks.getInt(e + 12);
+			}
+
+			return flanks;
+		}
+		finally
+		{
+			// the mappings stay valid after the file is closed
+			raf.close();
+		}
+	}
+
+
+	//------------------------- getByte / getInt / getLong --------------------------
+
+	private int getByte(long pos)
+	{
+		return segments[(int) (pos >> SEGMENT_SHIFT)].get((int) (pos & ((1L << SEGMENT_SHIFT) - 1))) & 0xFF;
+	}
+
+	private int getInt(long pos)
+	{
+		return (getByte(pos) << 24) | (getByte(pos+1) << 16) | (getByte(pos+2) << 8) | getByte(pos+3);
+	}
+
+	private long getLong(long pos)
+	{
+		return ((long) getInt(pos) << 32) | (getInt(pos+4) & 0xFFFFFFFFL);
+	}
+
+
+	//------------------------- getBase --------------------------
+	// base i of the sequence starting at byte start
+
+	private int getBase(long start, int i)
+	{
+		int b = getByte(start + (i >> 1));
+		return ((i & 1) == 0) ? (b >> 4) : (b & 0x0F);
+	}
+
+
+	//------------------------- length --------------------------
+	// Length of sequence id, or -1 if it isn't in the file
+
+	public int length(int id)
+	{
+		Integer r = refs.get(id);
+		return (r == null) ? -1 : lens[r];
+	}
+
+
+	//------------------------- bases --------------------------
+	// The len bases of sequence id from start, as 4-bit codes, into out
+
+	public void bases(int id, int start, int len, byte [] out) throws IOException
+	{
+		Integer r = refs.get(id);
+		if (r == null) { throw new IOException("Reference sequence " + id + " isn't in the flank file"); }
+
+		if ((start < 0) || (start + len > lens[r]))
+		{
+			throw new IOException("Bases " + id + ":" + start + "-" + (start + len) + " run off the reference");
+		}
+
+		for (int i = 0; i < len; i++)
+		{
+			out[i] = (byte) getBase(starts[r], start + i);
+		}
+	}
+
+
+	//------------------------- expand --------------------------
+	// Unpack a pointer tuple into out, in the same layout MerRecord.toBytes
+	// would have written from the chunk. Returns the length
+
+	public int expand(BytesWritable pointer, byte [] out) throws IOException
+	{
+		byte [] raw = pointer.get();
+
+		int offset = ((raw[1] & 0xFF) << 24) | ((raw[2] & 0xFF) << 16) | ((raw[3] & 0xFF) << 8) | (raw[4] & 0xFF);
+		int id     = ((raw[5] & 0xFF) << 24) | ((raw[6] & 0xFF) << 16) | ((raw[7] & 0xFF) << 8) | (raw[8] & 0xFF);
+
+		int leftlen  = ((raw[9]  & 0xFF) << 8) | (raw[10] & 0xFF);
+		int rightoff = ((raw[11] & 0xFF) << 8) | (raw[12] & 0xFF);
+		int rightlen = ((raw[13] & 0xFF) << 8) | (raw[14] & 0xFF);
+
+		Integer r = refs.get(id);
+		if (r == null) { throw new IOException("Reference sequence " + id + " isn't in the flank file"); }
+
+		long start = starts[r];
+		if ((offset - leftlen < 0) || (offset + rightoff + rightlen > lens[r]))
+		{
+			throw new IOException("Flanks of " + id + ":" + offset + " run off the reference");
+		}
+
+		out[0] = (byte) (raw[0] & ~MerRecord.POINTER);
+		System.arraycopy(raw, 1, out, 1, 8);
+
+		int pos = 9;
+
+		// the left flank is reversed, so it reads away from the seed
+		pos += pack(start, offset - 1, -1, leftlen, out, pos);
+		out[pos++] = DNAString.hardstop;
+		pos += pack(start, offset + rightoff, 1, rightlen, out, pos);
+
+		return pos;
+	}
+
+
+	//------------------------- pack --------------------------
+	// Pack len bases from base from, stepping by dir, into out at outpos
+
+	private int pack(long start, int from, int dir, int len, byte [] out, int outpos)
+	{
+		int i = 0;
+		int o = outpos;
+
+		for (; i + 1 < len; i += 2, o++)
+		{
+			out[o] = (byte) ((getBase(start, from + dir*i) << 4) | getBase(start, from + dir*(i+1)));
+		}
+
+		if (i < len)
+		{
+			out[o++] = (byte) ((getBase(start, from + dir*i) << 4) | DNAString.space);
+		}
+
+		return o - outpos;
+	}
+
+
+	//------------------------- main --------------------------
+	// Write the flank file of a .br file, and check pointer tuples for every
+	// position expand to the same bytes as the full tuples
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 3)
+		{
+			System.err.println("Usage: RefFlanks ref.br flankfile flanklen");
+			System.exit(-1);
+		}
+
+		JobConf conf = new JobConf(RefFlanks.class);
+		int flanklen = Integer.parseInt(args[2]);
+
+		Timer t = new Timer();
+		Path outpath = new Path(args[1]);
+		write(conf, args[0], outpath);
+		System.out.println("Wrote " + outpath + " in " + t.get());
+
+		RefFlanks flanks = load(conf, args[1]);
+
+		Path p = new Path(args[0]);
+		FileSystem fs = p.getFileSystem(conf);
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, p, conf);
+
+		IntWritable id = new IntWritable();
+		BytesWritable raw = new BytesWritable();
+		FastaRecord record = new FastaRecord();
+		MerRecord full = new MerRecord();
+		MerRecord ptr = new MerRecord();
+		full.isReference = ptr.isReference = true;
+
+		byte [] out = new byte[4 * flanklen + 64];
+		long checked = 0;
+
+		while (reader.next(id, raw))
+		{
+			record.fromBytes(raw);
+			byte [] seq = record.m_sequence;
+
+			if (flanks.length(id.get()) < record.m_offset + seq.length)
+			{
+				throw new IOException("Sequence " + id.get() + " is too short");
+			}
+
+			full.id = ptr.id = id.get();
+
+			for (int i = 0; i < seq.length; i += 7)
+			{
+				int leftstart = Math.max(0, i - flanklen);
+				int rightstart = Math.min(seq.length, i + 3);
+				int rightend = Math.min(seq.length, rightstart + flanklen);
+
+				full.offset = ptr.offset = record.m_offset + i;
+
+				BytesWritable fb = full.toBytes(seq, leftstart, i - leftstart, rightstart, rightend - rightstart);
+				int len = flanks.expand(ptr.toPointer(i - leftstart, rightstart - i, rightend - rightstart), out);
+
+				if ((len != fb.getSize()) || (BytesWritable.Comparator.compareBytes(out, 0, len, fb.get(), 0, len) != 0))
+				{
+					throw new IOException("Expanded pointer differs at " + id.get() + ":" + full.offset);
+				}
+
+				checked++;
+			}
+		}
+
+		reader.close();
+		System.out.println("Checked " + checked + " pointers in " + t.get());
+	}
+}
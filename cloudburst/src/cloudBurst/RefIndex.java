@@ -0,0 +1,455 @@
+package cloudBurst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+
+/// In-memory seed index of a small reference for map-side alignment.
+///
+/// The reference sequences are concatenated and packed 2 bases / byte in the
+/// same 4-bit code as the flanks of a MerRecord, so N's are kept. Every seed
+/// position of the reference (the same positions MerReduce.MapClass emits) is
+/// listed in sorted primitive arrays: the seed packed 2 bits / bp into a long,
+/// and its position in the concatenated reference.
+
+public class RefIndex {
+
+	private static final int MAGIC = 0x43424958; // "CBIX"
+
+	// longest seed that fits in the long seed code
+	public static final int MAX_SEED_LEN = 32;
+
+	private int SEED_LEN;
+
+	private int [] refids;    // id of each reference sequence in the .br file
+	private int [] refstarts; // start of each sequence in the packed reference
+	private int [] reflens;
+	private byte [] packed;   // 4-bit bases, first base in the high nibble
+
+	private long [] seeds;    // sorted
+	private int [] positions; // global position of each seed
+
+
+	//------------------------- Constructor --------------------------
+	private RefIndex()
+	{
+
+	}
+
+
+	//------------------------- seedCode --------------------------
+	// Pack len <= 32 bp into a long, first base in the high bits like SeedKey
+
+	public static long seedCode(byte [] arr, int arrpos, int len)
+	{
+		long code = 0;
+
+		for (int i = 0; i < len; i++)
+		{
+			code = (code << 2) | DNAString.byteToSeed(arr[arrpos+i]);
+		}
+
+		return code << (64 - 2*len);
+	}
+
+
+	//------------------------- build --------------------------
+	// Read the reference chunks from the .br file(s) at refpath, reassemble
+	// the sequences, and index every seed
+
+	public static RefIndex build(JobConf conf, String refpath, int SEED_LEN) throws IOException
+	{
+		if (SEED_LEN > MAX_SEED_LEN)
+		{
+			throw new IOException("Map-side alignment needs SEED_LEN <= " + MAX_SEED_LEN + ", not " + SEED_LEN);
+		}
+
+		Path path = new Path(refpath);
+		FileSystem fs = path.getFileSystem(conf);
+
+		List<Path> files = new ArrayList<Path>();
+		if (fs.getFileStatus(path).isDir())
+		{
+			for (FileStatus status : fs.listStatus(path))
+			{
+				if (!status.isDir()) { files.add(status.getPath()); }
+			}
+		}
+		else
+		{
+			files.add(path);
+		}
+
+		// id -> the chunks of that sequence
+		TreeMap<Integer, List<FastaRecord>> chunks = new TreeMap<Integer, List<FastaRecord>>();
+
+		IntWritable id = new IntWritable();
+		BytesWritable raw = new BytesWritable();
+
+		for (Path p : files)
+		{
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, p, conf);
+
+			try
+			{
+				while (reader.next(id, raw))
+				{
+					List<FastaRecord> l = chunks.get(id.get());
+					if (l == null) { l = new ArrayList<FastaRecord>(); chunks.put(id.get(), l); }
+
+					l.add(new FastaRecord(raw));
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+
+		RefIndex index = new RefIndex();
+		index.SEED_LEN  = SEED_LEN;
+		index.refids    = new int[chunks.size()];
+		index.refstarts = new int[chunks.size()];
+		index.reflens   = new int[chunks.size()];
+
+		List<byte []> sequences = new ArrayList<byte []>();
+
+		long total = 0;
+		long numseeds = 0;
+		int r = 0;
+
+		for (java.util.Map.Entry<Integer, List<FastaRecord>> e : chunks.entrySet())
+		{
+			int len = 0;
+			for (FastaRecord c : e.getValue())
+			{
+				len = Math.max(len, c.m_offset + c.m_sequence.length);
+			}
+
+			// the chunks overlap, so just lay each one down at its offset
+			byte [] seq = new byte[len];
+			for (FastaRecord c : e.getValue())
+			{
+				System.arraycopy(c.m_sequence, 0, seq, c.m_offset, c.m_sequence.length);
+			}
+
+			index.refids[r]    = e.getKey();
+			index.refstarts[r] = (int) total;
+			index.reflens[r]   = len;
+
+			sequences.add(seq);
+			total += len;
+			numseeds += Math.max(0, len - SEED_LEN + 1);
+			r++;
+		}
+
+		if (total > Integer.MAX_VALUE || numseeds > Integer.MAX_VALUE)
+		{
+			throw new IOException("Reference is too big for map-side alignment: " + total + "bp");
+		}
+
+		index.packed = new byte[(int) ((total+1)/2)];
+
+		long [] seeds = new long[(int) numseeds];
+		int [] positions = new int[(int) numseeds];
+		int n = 0;
+
+		for (r = 0; r < sequences.size(); r++)
+		{
+			byte [] seq = sequences.get(r);
+			int start = index.refstarts[r];
+
+			for (int i = 0; i < seq.length; i++)
+			{
+				index.setBase(start+i, DNAString.byteToDNA(seq[i]));
+			}
+
+			for (int i = 0; i + SEED_LEN <= seq.length; i++)
+			{
+				if (DNAString.arrHasN(seq, i, SEED_LEN)) { continue; }
+
+				seeds[n]     = seedCode(seq, i, SEED_LEN);
+				positions[n] = start + i;
+				n++;
+			}
+
+			sequences.set(r, null);
+		}
+
+		sort(seeds, positions, 0, n-1);
+
+		index.seeds     = java.util.Arrays.copyOf(seeds, n);
+		index.positions = java.util.Arrays.copyOf(positions, n);
+
+		return index;
+	}
+
+
+	//------------------------- sort --------------------------
+	// Sort the parallel arrays by (seed, position) between lo and hi inclusive
+
+	private static void sort(long [] seeds, int [] positions, int lo, int hi)
+	{
+		while (lo < hi)
+		{
+			int mid = lo + (hi - lo) / 2;
+			long ps = seeds[mid];
+			int  pp = positions[mid];
+
+			int i = lo;
+			int j = hi;
+
+			while (i <= j)
+			{
+				while (compare(seeds[i], positions[i], ps, pp) < 0) { i++; }
+				while (compare(seeds[j], positions[j], ps, pp) > 0) { j--; }
+
+				if (i <= j)
+				{
+					long ts = seeds[i]; seeds[i] = seeds[j]; seeds[j] = ts;
+					int  tp = positions[i]; positions[i] = positions[j]; positions[j] = tp;
+					i++;
+					j--;
+				}
+			}
+
+			// recurse on the smaller side to bound the stack
+			if (j - lo < hi - i)
+			{
+				sort(seeds, positions, lo, j);
+				lo = i;
+			}
+			else
+			{
+				sort(seeds, positions, i, hi);
+				hi = j;
+			}
+		}
+	}
+
+
+	//------------------------- compare --------------------------
+	// seeds compare unsigned, so the order matches SeedKey
+
+	private static int compare(long s1, int p1, long s2, int p2)
+	{
+		if (s1 != s2) { return ((s1 ^ Long.MIN_VALUE) < (s2 ^ Long.MIN_VALUE)) ? -1 : 1; }
+		return (p1 < p2) ? -1 : ((p1 == p2) ? 0 : 1);
+	}
+
+
+	//------------------------- firstHit --------------------------
+	// Index of the first occurrence of seed, or -1 if it isn't in the reference.
+	// The hits are then firstHit, firstHit+1, ... while seedAt(i) == seed
+
+	public int firstHit(long seed)
+	{
+		int lo = 0;
+		int hi = seeds.length;
+		long key = seed ^ Long.MIN_VALUE;
+
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if ((seeds[mid] ^ Long.MIN_VALUE) < key) { lo = mid + 1; }
+			else                                     { hi = mid; }
+		}
+
+		return ((lo < seeds.length) && (seeds[lo] == seed)) ? lo : -1;
+	}
+
+	public int numHits()                 { return seeds.length; }
+	public long seedAt(int hit)          { return seeds[hit]; }
+	public int positionAt(int hit)       { return positions[hit]; }
+	public int getSeedLen()              { return SEED_LEN; }
+
+
+	//------------------------- refIndex --------------------------
+	// Which reference sequence a global position is in
+
+	public int refIndex(int pos)
+	{
+		int r = java.util.Arrays.binarySearch(refstarts, pos);
+		return (r >= 0) ? r : -r - 2;
+	}
+
+	public int refId(int r)              { return refids[r]; }
+	public int refStart(int r)           { return refstarts[r]; }
+	public int refLen(int r)             { return reflens[r]; }
+
+
+	//------------------------- getBase / setBase --------------------------
+
+	private int getBase(int pos)
+	{
+		byte b = packed[pos >> 1];
+		return ((pos & 1) == 0) ? ((b >> 4) & 0x0F) : (b & 0x0F);
+	}
+
+	private void setBase(int pos, int code)
+	{
+		if ((pos & 1) == 0) { packed[pos >> 1] = (byte) ((packed[pos >> 1] & 0x0F) | (code << 4)); }
+		else                { packed[pos >> 1] = (byte) ((packed[pos >> 1] & 0xF0) | code); }
+	}
+
+
+	//------------------------- flank --------------------------
+	// Pack the len bases starting at global position pos into out like
+	// DNAString.arrToDNAStr, or like arrToDNAStrRev (last base first) if reverse
+
+	public void flank(int pos, int len, boolean reverse, byte [] out)
+	{
+		int o = 0;
+
+		for (int i = 0; i + 1 < len; i += 2, o++)
+		{
+			int a = reverse ? getBase(pos + len - 1 - i) : getBase(pos + i);
+			int b = reverse ? getBase(pos + len - 2 - i) : getBase(pos + i + 1);
+
+			out[o] = (byte) ((a << 4) | b);
+		}
+
+		if ((len & 1) == 1)
+		{
+			int a = reverse ? getBase(pos) : getBase(pos + len - 1);
+			out[o] = (byte) ((a << 4) | DNAString.space);
+		}
+	}
+
+
+	//------------------------- write --------------------------
+	public void write(FileSystem fs, Path path) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(path), 1 << 20));
+
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(SEED_LEN);
+
+			out.writeInt(refids.length);
+			for (int r = 0; r < refids.length; r++)
+			{
+				out.writeInt(refids[r]);
+				out.writeInt(refstarts[r]);
+				out.writeInt(reflens[r]);
+			}
+
+			out.writeInt(packed.length);
+			out.write(packed);
+
+			out.writeInt(seeds.length);
+			for (int i = 0; i < seeds.length; i++) { out.writeLong(seeds[i]); }
+			for (int i = 0; i < seeds.length; i++) { out.writeInt(positions[i]); }
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+
+	//------------------------- read --------------------------
+	public static RefIndex read(FileSystem fs, Path path) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(path), 1 << 20));
+
+		try
+		{
+			if (in.readInt() != MAGIC) { throw new IOException(path + " is not a reference index"); }
+
+			RefIndex index = new RefIndex();
+			index.SEED_LEN = in.readInt();
+
+			int numrefs = in.readInt();
+			index.refids    = new int[numrefs];
+			index.refstarts = new int[numrefs];
+			index.reflens   = new int[numrefs];
+
+			for (int r = 0; r < numrefs; r++)
+			{
+				index.refids[r]    = in.readInt();
+				index.refstarts[r] = in.readInt();
+				index.reflens[r]   = in.readInt();
+			}
+
+			index.packed = new byte[in.readInt()];
+			in.readFully(index.packed);
+
+			int n = in.readInt();
+			index.seeds     = new long[n];
+			index.positions = new int[n];
+
+			for (int i = 0; i < n; i++) { index.seeds[i] = in.readLong(); }
+			for (int i = 0; i < n; i++) { index.positions[i] = in.readInt(); }
+
+			return index;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+
+	//------------------------- main --------------------------
+	// Build the index for a .br file and check it against the sequence
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2)
+		{
+			System.err.println("Usage: RefIndex ref.br seedlen");
+			return;
+		}
+
+		JobConf conf = new JobConf(RefIndex.class);
+		int seedlen = Integer.parseInt(args[1]);
+
+		Timer t = new Timer();
+		RefIndex index = build(conf, args[0], seedlen);
+		System.out.println("Indexed " + index.numHits() + " seeds in " + index.refids.length + " sequences in " + t.get());
+
+		// every hit must point at its seed, and the hits must be sorted
+		byte [] window = new byte[seedlen];
+		byte [] dna = new byte[DNAString.arrToDNALen(seedlen)];
+
+		for (int i = 0; i < index.numHits(); i++)
+		{
+			index.flank(index.positionAt(i), seedlen, false, dna);
+			byte [] bases = DNAString.dnaToArr(dna);
+			System.arraycopy(bases, 0, window, 0, seedlen);
+
+			if (seedCode(window, 0, seedlen) != index.seedAt(i))
+			{
+				throw new IOException("Bad hit " + i + " at " + index.positionAt(i));
+			}
+
+			if ((i > 0) && (compare(index.seedAt(i-1), index.positionAt(i-1), index.seedAt(i), index.positionAt(i)) >= 0))
+			{
+				throw new IOException("Not sorted at " + i);
+			}
+
+			if (index.firstHit(index.seedAt(i)) > i)
+			{
+				throw new IOException("firstHit is wrong at " + i);
+			}
+		}
+
+		System.out.println("Index is consistent");
+	}
+}
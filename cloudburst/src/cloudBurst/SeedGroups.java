@@ -0,0 +1,306 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapred.OutputCollector;
+
+
+/// The reference tuples of one chunk, grouped by seed (CloudBurst -grouprefs).
+///
+/// A repeated seed costs a key, a record frame and a sort comparison in the
+/// map side spill for every copy in the chunk. MapClass collects the chunk's
+/// reference tuples here instead, and flush() emits one record per distinct
+/// key. The seeds are found with an open addressing table of ints into the
+/// buffered keys, and the tuples are kept in one slab.
+///
+/// A key seen once is emitted as its plain tuple. A repeated key is emitted as
+/// a group record: a flag byte of MerRecord.REFERENCE_GROUP, a varint count,
+/// then each tuple as a varint length and its bytes. The reducer adds the
+/// tuples of a group one at a time (TupleBuffer.add), so it takes both shapes.
+
+public class SeedGroups implements OutputCollector<SeedKey, BytesWritable>
+{
+	private List<SeedKey> keys = new ArrayList<SeedKey>();
+
+	// the tuples in the order they were collected
+	private byte [] slab = new byte[1 << 16];
+	private int slabused = 0;
+	private int [] starts = new int[1024];
+	private int [] lens = new int[1024];
+	private int size = 0;
+
+	// the table holds the first tuple of each key, and each tuple links to
+	// the next one with the same key. last is only kept for the first ones
+	private boolean [] first = new boolean[1024];
+	private int [] next = new int[1024];
+	private int [] last = new int[1024];
+	private int [] table = new int[2048];
+
+	private byte [] group = new byte[1024];
+	private BytesWritable value = new BytesWritable();
+
+
+	//------------------------- Constructor --------------------------
+	public SeedGroups()
+	{
+		clear();
+	}
+
+
+	//------------------------- clear --------------------------
+	public void clear()
+	{
+		size = 0;
+		slabused = 0;
+		Arrays.fill(table, -1);
+	}
+
+
+	//------------------------- size --------------------------
+	public int size()
+	{
+		return size;
+	}
+
+
+	//------------------------- collect --------------------------
+	// Copy a reference tuple and its key
+
+	public void collect(SeedKey seed, BytesWritable tuple)
+	{
+		if (size == starts.length)
+		{
+			starts = Arrays.copyOf(starts, 2 * size);
+			lens   = Arrays.copyOf(lens,   2 * size);
+			next   = Arrays.copyOf(next,   2 * size);
+			last   = Arrays.copyOf(last,   2 * size);
+			first  = Arrays.copyOf(first,  2 * size);
+		}
+
+		if (2 * (size + 1) > table.length)
+		{
+			rehash(2 * table.length);
+		}
+
+		int len = tuple.getSize();
+
+		if (slabused + len > slab.length)
+		{
+			slab = Arrays.copyOf(slab, Math.max(2 * slab.length, slabused + len));
+		}
+
+		System.arraycopy(tuple.get(), 0, slab, slabused, len);
+		starts[size] = slabused;
+		lens[size]   = len;
+		slabused += len;
+
+		if (size == keys.size()) { keys.add(new SeedKey()); }
+		keys.get(size).set(seed);
+
+		next[size]  = -1;
+		last[size]  = size;
+		first[size] = false;
+
+		int mask = table.length - 1;
+		for (int h = seed.hashCode() & mask; ; h = (h + 1) & mask)
+		{
+			int head = table[h];
+
+			if (head == -1)
+			{
+				table[h] = size;
+				first[size] = true;
+				break;
+			}
+
+			if (keys.get(head).equals(seed))
+			{
+				next[last[head]] = size;
+				last[head] = size;
+				break;
+			}
+		}
+
+		size++;
+	}
+
+
+	//------------------------- rehash --------------------------
+	private void rehash(int newsize)
+	{
+		table = new int[newsize];
+		Arrays.fill(table, -1);
+
+		int mask = newsize - 1;
+
+		for (int i = 0; i < size; i++)
+		{
+			if (!first[i]) { continue; }
+
+			int h = keys.get(i).hashCode() & mask;
+			while (table[h] != -1) { h = (h + 1) & mask; }
+			table[h] = i;
+		}
+	}
+
+
+	//------------------------- flush --------------------------
+	// Emit one record per key, in the order each key was first collected,
+	// and clear
+
+	public void flush(OutputCollector<SeedKey, BytesWritable> output) throws IOException
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (!first[i]) { continue; }
+
+			if (next[i] == -1)
+			{
+				value.set(slab, starts[i], lens[i]);
+				output.collect(keys.get(i), value);
+				continue;
+			}
+
+			int count = 0;
+			int bytes = 0;
+			for (int t = i; t != -1; t = next[t])
+			{
+				count++;
+				bytes += lens[t] + 5;
+			}
+
+			if (bytes + 6 > group.length) { group = new byte[2 * (bytes + 6)]; }
+
+			group[0] = (byte) MerRecord.REFERENCE_GROUP;
+			int pos = DNAString.putVarint(count, group, 1);
+
+			for (int t = i; t != -1; t = next[t])
+			{
+				pos = DNAString.putVarint(lens[t], group, pos);
+				System.arraycopy(slab, starts[t], group, pos, lens[t]);
+				pos += lens[t];
+			}
+
+			value.set(group, 0, pos);
+			output.collect(keys.get(i), value);
+		}
+
+		clear();
+	}
+
+
+	//------------------------- Cursor --------------------------
+	// Step through the tuples of a group record
+
+	public static class Cursor
+	{
+		private byte [] raw;
+		private int pos;
+		private int remaining;
+		private int [] v = new int[1];
+
+		public int start;
+		public int len;
+
+		public void reset(BytesWritable group)
+		{
+			raw = group.get();
+			pos = DNAString.getVarint(raw, 1, v);
+			remaining = v[0];
+		}
+
+		// false when there are no more tuples, otherwise the next one is raw()[start, start+len)
+		public boolean next()
+		{
+			if (remaining == 0) { return false; }
+
+			pos = DNAString.getVarint(raw, pos, v);
+			start = pos;
+			len = v[0];
+			pos += len;
+			remaining--;
+
+			return true;
+		}
+
+		public byte [] raw()
+		{
+			return raw;
+		}
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure every tuple comes back out once, under its own key
+
+	public static void main(String[] args) throws IOException
+	{
+		final SeedGroups groups = new SeedGroups();
+		final List<String> out = new ArrayList<String>();
+		final int [] records = new int[1];
+		final Cursor cursor = new Cursor();
+
+		byte [] seq = DNAString.stringToBytes("ACGTACGTACGTTTTTACGTACGTACGTGGGGACGT");
+		SeedKey seed = new SeedKey();
+		MerRecord rec = new MerRecord();
+		rec.isReference = true;
+		rec.id = 3;
+
+		int seedlen = 4;
+		int n = 0;
+
+		for (int i = 0; i + seedlen <= seq.length; i++)
+		{
+			seed.set(seq, i, seedlen, 0, 1);
+			seed.setTag(SeedKey.REF_TAG);
+			rec.offset = i;
+			groups.collect(seed, rec.toBytes(seq, 0, i, i + seedlen, seq.length - i - seedlen));
+			n++;
+		}
+
+		groups.flush(new OutputCollector<SeedKey, BytesWritable>()
+		{
+			public void collect(SeedKey key, BytesWritable value) throws IOException
+			{
+				String k = new String(key.toArr(4));
+				records[0]++;
+
+				if (!MerRecord.isGroup(value))
+				{
+					out.add(k + " " + new MerRecord(value).offset);
+					return;
+				}
+
+				BytesWritable t = new BytesWritable();
+				cursor.reset(value);
+				while (cursor.next())
+				{
+					t.set(cursor.raw(), cursor.start, cursor.len);
+					out.add(k + " " + new MerRecord(t).offset);
+				}
+			}
+		});
+
+		for (int i = 0; i + seedlen <= seq.length; i++)
+		{
+			String k = new String(seq, i, seedlen);
+			if (!out.contains(k + " " + i))
+			{
+				System.out.println("Missing " + k + " at " + i);
+				System.exit(1);
+			}
+		}
+
+		if (out.size() != n)
+		{
+			System.out.println("Got " + out.size() + " tuples back, expected " + n);
+			System.exit(1);
+		}
+
+		System.out.println("All " + n + " tuples are back under their keys, in " + records[0] + " records");
+	}
+}
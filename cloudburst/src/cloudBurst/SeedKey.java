@@ -0,0 +1,568 @@
+package cloudBurst;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+
+/// Shuffle key for a seed: 2 bits / bp packed into longs, 32 bp per long with
+/// the first base in the high bits, plus the replica byte when REDUNDANCY > 1.
+///
+/// Serialized as a 1 byte header (number of packed bytes, 0x80 if there is a
+/// replica byte, 0x40 if there is a tag byte), the packed bytes in the same
+/// layout as DNAString.arrToSeed, then the optional replica and tag bytes.
+/// That is 2-3 bytes less per key than the BytesWritable length prefix. All the
+/// seeds of a job have the same width, and the registered raw comparator
+/// compares them without deserializing.
+///
+/// The tag says which side of the join the tuple is from. It sorts last, so
+/// the reference tuples of a seed come before the reads, and GroupComparator
+/// ignores it so both sides still reach the same reduce call.
+///
+/// With canonical seeding (setCanonical) a seed and its reverse complement
+/// share one key, the smaller of the two, and the tuple records which strand
+/// of the seed it saw.
+
+public class SeedKey implements WritableComparable<SeedKey>
+{
+	private static final int HAS_REPLICA = 0x80;
+	private static final int HAS_TAG     = 0x40;
+
+	private static final int MAX_BYTES = 0x3f; // up to 252 bp
+
+	// tags of the two sides of the seed join, in the order they reach the reducer
+	public static final int REF_TAG = 0;
+	public static final int QRY_TAG = 1;
+
+	// which strand setCanonical packed
+	public static final int FORWARD    = 0;
+	public static final int REVERSE    = 1;
+	public static final int PALINDROME = 2; // the seed is its own reverse complement
+
+	private long [] words = new long[1];
+	private int numwords = 0;
+	private int numbytes = 0;
+	private int replica = -1; // -1 if there is no replica byte
+	private int tag = -1;     // -1 if there is no tag byte
+
+	static
+	{
+		WritableComparator.define(SeedKey.class, new Comparator());
+	}
+
+
+	//------------------------- Constructor --------------------------
+	public SeedKey()
+	{
+
+	}
+
+
+	//------------------------- set --------------------------
+	// Pack the len bp starting at arr[arrpos]. Like DNAString.arrToSeed, the
+	// replica byte is id % REDUNDANCY and is only present if REDUNDANCY > 1.
+	// The tag is cleared
+
+	public void set(byte [] arr, int arrpos, int len, int id, int REDUNDANCY)
+	{
+		pack(arr, arrpos, len, false, null);
+
+		replica = (REDUNDANCY > 1) ? ((id % REDUNDANCY) & 0xff) : -1;
+		tag = -1;
+	}
+
+
+	//------------------------- set --------------------------
+	// Copy other, including its replica and tag
+
+	public void set(SeedKey other)
+	{
+		if (other.numwords > words.length) { words = new long[other.numwords]; }
+		System.arraycopy(other.words, 0, words, 0, other.numwords);
+
+		numwords = other.numwords;
+		numbytes = other.numbytes;
+		replica  = other.replica;
+		tag      = other.tag;
+	}
+
+
+	//------------------------- setSpaced --------------------------
+	// Same as set, but only pack the care positions of a spaced seed mask from
+	// the window at arr[arrpos], like DNAString.arrToSpacedSeed
+
+	public void setSpaced(byte [] arr, int arrpos, int [] care, int id, int REDUNDANCY)
+	{
+		pack(arr, arrpos, care.length, false, care);
+
+		replica = (REDUNDANCY > 1) ? ((id % REDUNDANCY) & 0xff) : -1;
+		tag = -1;
+	}
+
+
+	//------------------------- setCanonical --------------------------
+	// Same as set, but pack whichever of the seed and its reverse complement
+	// is smaller, and return FORWARD, REVERSE or PALINDROME for which one it was.
+	// The seed must not have any N's
+
+	public int setCanonical(byte [] arr, int arrpos, int len, int id, int REDUNDANCY)
+	{
+		int strand = PALINDROME;
+
+		for (int i = 0, j = arrpos + len - 1; i < len; i++, j--)
+		{
+			byte f = arr[arrpos + i];
+			byte r = DNAString.rc(arr[j]);
+
+			if (f != r)
+			{
+				strand = (f < r) ? FORWARD : REVERSE;
+				break;
+			}
+		}
+
+		pack(arr, arrpos, len, strand == REVERSE, null);
+
+		replica = (REDUNDANCY > 1) ? ((id % REDUNDANCY) & 0xff) : -1;
+		tag = -1;
+
+		return strand;
+	}
+
+
+	//------------------------- pack --------------------------
+	// Pack the len bp at arr[arrpos], or their reverse complement, or the len
+	// bp at the care offsets from arr[arrpos]
+
+	private void pack(byte [] arr, int arrpos, int len, boolean rc, int [] care)
+	{
+		numbytes = (len + 3) / 4;
+		if (numbytes > MAX_BYTES) { throw new IllegalArgumentException("Seed too long: " + len); }
+
+		numwords = (len + 31) / 32;
+		if (numwords > words.length) { words = new long[numwords]; }
+
+		int i = 0;
+
+		for (int w = 0; w < numwords; w++)
+		{
+			long word = 0;
+			int shift = 62;
+
+			for (; (shift >= 0) && (i < len); shift -= 2, i++)
+			{
+				byte b;
+				if (care != null) { b = arr[arrpos + care[i]]; }
+				else              { b = rc ? DNAString.rc(arr[arrpos + len - 1 - i]) : arr[arrpos + i]; }
+				word |= ((long) DNAString.byteToSeed(b)) << shift;
+			}
+
+			words[w] = word;
+		}
+	}
+
+
+	//------------------------- setReplica --------------------------
+	// Set the replica byte for a seed that is split across reducers, or
+	// remove it if replica < 0
+
+	public void setReplica(int r)
+	{
+		replica = (r < 0) ? -1 : (r & 0xff);
+	}
+
+
+	//------------------------- getReplica --------------------------
+	public int getReplica()
+	{
+		return replica;
+	}
+
+
+	//------------------------- setTag --------------------------
+	// Set the join side (REF_TAG or QRY_TAG), or remove the tag if t < 0
+
+	public void setTag(int t)
+	{
+		tag = (t < 0) ? -1 : (t & 0xff);
+	}
+
+
+	//------------------------- getTag --------------------------
+	public int getTag()
+	{
+		return tag;
+	}
+
+
+	//------------------------- toArr --------------------------
+	// Unpack the first seedlen bp back to ascii
+
+	public byte [] toArr(int seedlen)
+	{
+		byte [] retval = new byte[seedlen];
+
+		for (int i = 0; i < seedlen; i++)
+		{
+			retval[i] = DNAString.seedToByte((int) (words[i >> 5] >>> (62 - 2*(i & 31))));
+		}
+
+		return retval;
+	}
+
+
+	//------------------------- write --------------------------
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeByte(header());
+
+		for (int i = 0; i < numbytes; i++)
+		{
+			out.writeByte((int) (words[i >> 3] >>> (56 - 8*(i & 7))));
+		}
+
+		if (replica >= 0)
+		{
+			out.writeByte(replica);
+		}
+
+		if (tag >= 0)
+		{
+			out.writeByte(tag);
+		}
+	}
+
+
+	//------------------------- header --------------------------
+	private int header()
+	{
+		return numbytes | (replica >= 0 ? HAS_REPLICA : 0) | (tag >= 0 ? HAS_TAG : 0);
+	}
+
+
+	//------------------------- readFields --------------------------
+	public void readFields(DataInput in) throws IOException
+	{
+		int header = in.readUnsignedByte();
+
+		numbytes = header & MAX_BYTES;
+		numwords = (numbytes + 7) / 8;
+		if (numwords > words.length) { words = new long[numwords]; }
+
+		java.util.Arrays.fill(words, 0, numwords, 0L);
+
+		for (int i = 0; i < numbytes; i++)
+		{
+			words[i >> 3] |= ((long) in.readUnsignedByte()) << (56 - 8*(i & 7));
+		}
+
+		replica = ((header & HAS_REPLICA) != 0) ? in.readUnsignedByte() : -1;
+		tag     = ((header & HAS_TAG) != 0)     ? in.readUnsignedByte() : -1;
+	}
+
+
+	//------------------------- compareUnsigned --------------------------
+	// longs compare like their big-endian serialized bytes, and the unused
+	// low bits are always 0
+
+	private static int compareUnsigned(long a, long b)
+	{
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+
+
+	//------------------------- compareTo --------------------------
+	// Same order as the raw comparator
+
+	public int compareTo(SeedKey other)
+	{
+		int h1 = header();
+		int h2 = other.header();
+		if (h1 != h2) { return (h1 < h2) ? -1 : 1; }
+
+		int c = compareSeed(other);
+		if (c != 0) { return c; }
+
+		return (tag < other.tag) ? -1 : ((tag == other.tag) ? 0 : 1);
+	}
+
+
+	//------------------------- compareSeed --------------------------
+	// Compare the bases and replica, ignoring the tag. Same order as the
+	// GroupComparator
+
+	public int compareSeed(SeedKey other)
+	{
+		int h1 = header() & ~HAS_TAG;
+		int h2 = other.header() & ~HAS_TAG;
+		if (h1 != h2) { return (h1 < h2) ? -1 : 1; }
+
+		for (int w = 0; w < numwords; w++)
+		{
+			int c = compareUnsigned(words[w], other.words[w]);
+			if (c != 0) { return c; }
+		}
+
+		return (replica < other.replica) ? -1 : ((replica == other.replica) ? 0 : 1);
+	}
+
+
+	//------------------------- equals --------------------------
+	public boolean equals(Object o)
+	{
+		return (o instanceof SeedKey) && (compareTo((SeedKey) o) == 0);
+	}
+
+
+	//------------------------- seedHash --------------------------
+	// Hash of the bases only, so every replica of a seed hashes the same
+
+	public int seedHash()
+	{
+		long h = numbytes;
+
+		for (int w = 0; w < numwords; w++)
+		{
+			h = h * 31 + words[w];
+		}
+
+		return (int) (h ^ (h >>> 32));
+	}
+
+
+	//------------------------- seedHash64 --------------------------
+	// 64 bit hash of the bases only, for ReadSeedFilter
+
+	public long seedHash64()
+	{
+		long h = numbytes;
+
+		for (int w = 0; w < numwords; w++)
+		{
+			h = (h ^ words[w]) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 29;
+		}
+
+		h *= 0xBF58476D1CE4E5B9L;
+		return h ^ (h >>> 32);
+	}
+
+
+	//------------------------- hashCode --------------------------
+	public int hashCode()
+	{
+		return (seedHash() * 31 + replica) * 31 + tag;
+	}
+
+
+	//------------------------- toString --------------------------
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		for (int w = 0; w < numwords; w++)
+		{
+			String hex = Long.toHexString(words[w]);
+			for (int i = hex.length(); i < 16; i++) { builder.append('0'); }
+			builder.append(hex);
+		}
+
+		if (replica >= 0) { builder.append(':'); builder.append(replica); }
+		if (tag >= 0)     { builder.append('/'); builder.append(tag); }
+
+		return builder.toString();
+	}
+
+
+	//------------------------- Comparator --------------------------
+	// The serialized key sorts like its bytes: the header first, then the
+	// packed bases, then the replica byte. Assembling longs from the bytes
+	// measured slower than a byte loop here, since most keys already differ
+	// in their first few bases.
+
+	public static class Comparator extends WritableComparator
+	{
+		public Comparator()
+		{
+			super(SeedKey.class);
+		}
+
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+		{
+			return compareBytes(b1, s1, l1, b2, s2, l2);
+		}
+	}
+
+
+	//------------------------- GroupComparator --------------------------
+	// Group the keys by seed and replica, so the reference and query tuples of
+	// a seed are reduced together in tag order
+
+	public static class GroupComparator extends WritableComparator
+	{
+		public GroupComparator()
+		{
+			super(SeedKey.class);
+		}
+
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+		{
+			int h1 = b1[s1] & 0xff;
+			int h2 = b2[s2] & 0xff;
+
+			if ((h1 & HAS_TAG) != 0) { h1 &= ~HAS_TAG; l1--; }
+			if ((h2 & HAS_TAG) != 0) { h2 &= ~HAS_TAG; l2--; }
+
+			if (h1 != h2) { return (h1 < h2) ? -1 : 1; }
+
+			return compareBytes(b1, s1+1, l1-1, b2, s2+1, l2-1);
+		}
+
+		// the reduce side groups deserialized keys through this one, WritableComparator declares it raw
+		@SuppressWarnings("rawtypes")
+		public int compare(WritableComparable a, WritableComparable b)
+		{
+			return ((SeedKey) a).compareSeed((SeedKey) b);
+		}
+	}
+
+
+
+
+
+
+	/////////////////////////////////////////////////////////////////////
+	//                    Debugging and Test code                      //
+    /////////////////////////////////////////////////////////////////////
+
+
+	//------------------------- serialize --------------------------
+
+	private static byte [] serialize(SeedKey k) throws IOException
+	{
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		k.write(new java.io.DataOutputStream(bos));
+		return bos.toByteArray();
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the raw comparators agree with compareTo, compareSeed and the
+	// unpacked seeds
+
+	public static void main(String[] args) throws IOException
+	{
+		java.util.Random r = new java.util.Random(0);
+		byte [] letters = DNAString.stringToBytes("ACGT");
+		WritableComparator raw = WritableComparator.get(SeedKey.class);
+		WritableComparator group = new GroupComparator();
+
+		int [] seedlens = { 1, 7, 12, 31, 32, 33, 64, 70 };
+
+		for (int tagged = 0; tagged < 2; tagged++)
+		for (int redundancy = 1; redundancy <= 4; redundancy += 3)
+		{
+			for (int seedlen : seedlens)
+			{
+				SeedKey a = new SeedKey();
+				SeedKey b = new SeedKey();
+				SeedKey c = new SeedKey();
+				SeedKey f = new SeedKey();
+				SeedKey g = new SeedKey();
+
+				for (int t = 0; t < 100000; t++)
+				{
+					byte [] s1 = new byte[seedlen];
+					byte [] s2 = new byte[seedlen];
+
+					for (int i = 0; i < seedlen; i++) { s1[i] = letters[r.nextInt(4)]; }
+					System.arraycopy(s1, 0, s2, 0, seedlen);
+					if (r.nextBoolean()) { s2[r.nextInt(seedlen)] = letters[r.nextInt(4)]; }
+
+					int id = r.nextInt(8);
+					a.set(s1, 0, seedlen, id, redundancy);
+					b.set(s2, 0, seedlen, r.nextInt(8), redundancy);
+
+					if (tagged == 1)
+					{
+						a.setTag(r.nextInt(2));
+						b.setTag(r.nextInt(2));
+					}
+
+					byte [] ab = serialize(a);
+					byte [] bb = serialize(b);
+
+					c.readFields(new java.io.DataInputStream(new java.io.ByteArrayInputStream(ab)));
+
+					// same packing as arrToSeed after the header
+					byte [] packed = new byte[DNAString.arrToSeedLen(seedlen, redundancy)];
+					DNAString.arrToSeed(s1, 0, seedlen, packed, 0, id, redundancy);
+					if (WritableComparator.compareBytes(ab, 1, packed.length, packed, 0, packed.length) != 0)
+					{
+						throw new IOException("Packing differs from arrToSeed seedlen=" + seedlen);
+					}
+
+					// a spaced seed packs the same as its care bases packed contiguously
+					int [] care = new int[(seedlen+1)/2];
+					byte [] carebases = new byte[care.length];
+					for (int i = 0; i < care.length; i++) { care[i] = 2*i; carebases[i] = s1[2*i]; }
+
+					f.setSpaced(s1, 0, care, id, redundancy);
+					g.set(carebases, 0, care.length, id, redundancy);
+
+					byte [] spaced = new byte[DNAString.arrToSeedLen(care.length, redundancy)];
+					DNAString.arrToSpacedSeed(s1, 0, care, spaced, 0, id, redundancy);
+					byte [] fb = serialize(f);
+
+					if (!f.equals(g) || (WritableComparator.compareBytes(fb, 1, spaced.length, spaced, 0, spaced.length) != 0))
+					{
+						throw new IOException("Spaced packing differs seedlen=" + seedlen);
+					}
+
+					int expected = Integer.signum(WritableComparator.compareBytes(ab, 0, ab.length, bb, 0, bb.length));
+
+					// the groups are the keys without the tag
+					int expectedgroup = Integer.signum(WritableComparator.compareBytes(ab, 1, ab.length-1-tagged, bb, 1, bb.length-1-tagged));
+
+					if ((Integer.signum(raw.compare(ab, 0, ab.length, bb, 0, bb.length)) != expected) ||
+						(Integer.signum(a.compareTo(b)) != expected) ||
+						(Integer.signum(group.compare(ab, 0, ab.length, bb, 0, bb.length)) != expectedgroup) ||
+						(Integer.signum(group.compare(a, b)) != expectedgroup) ||
+						((expectedgroup != 0) && (expected != expectedgroup)) ||
+						!c.equals(a) || (c.hashCode() != a.hashCode()) ||
+						!DNAString.bytesToString(c.toArr(seedlen)).equals(DNAString.bytesToString(s1)))
+					{
+						throw new IOException("Mismatch seedlen=" + seedlen + " redundancy=" + redundancy + "\n" +
+								              DNAString.bytesToString(s1) + " " + a + "\n" +
+								              DNAString.bytesToString(s2) + " " + b);
+					}
+
+					// a seed and its reverse complement share the canonical key, from opposite strands
+					byte [] rc1 = DNAString.rcarr_new(s1);
+					int fs = f.setCanonical(s1, 0, seedlen, id, redundancy);
+					int gs = g.setCanonical(rc1, 0, seedlen, id, redundancy);
+
+					String fwd = DNAString.bytesToString(s1);
+					String rev = DNAString.bytesToString(rc1);
+					String canon = (fwd.compareTo(rev) <= 0) ? fwd : rev;
+
+					boolean strandsok = fwd.equals(rev) ? ((fs == PALINDROME) && (gs == PALINDROME))
+					                                    : ((fs != PALINDROME) && (gs == 1 - fs));
+
+					if (!f.equals(g) || !strandsok || !DNAString.bytesToString(f.toArr(seedlen)).equals(canon))
+					{
+						throw new IOException("Canonical mismatch seedlen=" + seedlen + " " + fwd + " " + fs + " " + gs);
+					}
+				}
+			}
+		}
+
+		System.out.println("SeedKey raw comparators match compareTo and compareSeed, canonical and spaced seeds match");
+	}
+}
@@ -0,0 +1,31 @@
+package cloudBurst;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+
+/// Send each seed to a reducer chosen by its bases, and the replicas of a
+/// split seed to the reducers that follow it, so a seed split n ways lands
+/// on n different reducers (as long as there are at least n of them).
+
+public class SeedPartitioner implements Partitioner<SeedKey, BytesWritable>
+{
+	//------------------------- configure --------------------------
+	public void configure(JobConf conf)
+	{
+
+	}
+
+
+	//------------------------- getPartition --------------------------
+	public int getPartition(SeedKey seed, BytesWritable value, int numPartitions)
+	{
+		int base = (seed.seedHash() & Integer.MAX_VALUE) % numPartitions;
+		int replica = seed.getReplica();
+
+		if (replica <= 0) { return base; }
+
+		return (base + replica) % numPartitions;
+	}
+}
@@ -0,0 +1,308 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+
+import cloudBurst.MerReduce.MapClass;
+
+
+/// Reference seeds stored once on HDFS and reused by every alignment run.
+///
+/// The build job runs the reference half of MerReduce.MapClass and writes the
+/// (SeedKey, MerRecord) pairs sorted and split with the SeedPartitioner, one
+/// part file per partition. An alignment run against the store only maps and
+/// shuffles the reads, with one reducer per partition, and each reducer merges
+/// its sorted seed groups with the matching part file. The reference is never
+/// re-emitted or re-sorted.
+///
+/// The seeds and flanks depend on the read length and K, so a store can only
+/// be used with the settings it was built with. They are saved in PARAMS_FILE,
+/// along with whether the seeds are canonical or minimizers, and the
+/// reference path with the size and modification time of its files, so a
+/// store isn't used with another reference or a reconverted one.
+
+public class SeedStore {
+
+	public static final String PARAMS_FILE = "_seedstore";
+
+
+	//------------------------- build --------------------------
+	// Setup and run the hadoop job for writing the reference seeds
+
+	public static void build(AlignOptions opts) throws IOException
+	{
+		String storepath   = opts.SEED_STORE;
+		int NUM_PARTITIONS = opts.NUM_REDUCE_TASKS;
+
+		int SEED_LEN   = (opts.SPACED_SEED != null) ? new SpacedSeed(opts.SPACED_SEED).span() : opts.MIN_READ_LEN / (opts.K+1);
+		int FLANK_LEN  = opts.MAX_READ_LEN-SEED_LEN+opts.K;
+
+		System.out.println("SEED_STORE_PATH: " + storepath);
+		System.out.println("NUM_PARTITIONS: "  + NUM_PARTITIONS);
+		System.out.println("CANONICAL: "       + opts.CANONICAL);
+		System.out.println("MINIMIZER_W: "     + opts.MINIMIZER_W);
+		System.out.println("SPACED_SEED: "     + opts.SPACED_SEED);
+		System.out.println("REF_POINTERS: "    + opts.REF_POINTERS);
+		System.out.println("RECORD_V2: "       + opts.RECORD_V2);
+		System.out.println("GROUP_REFS: "      + opts.GROUP_REFS);
+
+		JobConf conf = new JobConf(SeedStore.class);
+		conf.setJobName("SeedStore");
+		conf.setNumMapTasks(opts.NUM_MAP_TASKS);
+		conf.setNumReduceTasks(NUM_PARTITIONS);
+
+		FileInputFormat.addInputPath(conf, new Path(opts.refpath));
+
+		conf.set("refpath",      opts.refpath);
+		conf.set("MIN_READ_LEN", Integer.toString(opts.MIN_READ_LEN));
+		conf.set("MAX_READ_LEN", Integer.toString(opts.MAX_READ_LEN));
+		conf.set("K",            Integer.toString(opts.K));
+		conf.set("SEED_LEN",     Integer.toString(SEED_LEN));
+		conf.set("FLANK_LEN",    Integer.toString(FLANK_LEN));
+		conf.set("REDUNDANCY",   Integer.toString(opts.REDUNDANCY));
+		conf.set("CANONICAL",    (opts.CANONICAL ? "1" : "0"));
+		conf.set("MINIMIZER_W",  Integer.toString(opts.MINIMIZER_W));
+		if (opts.SPACED_SEED != null) { conf.set("SPACED_SEED", opts.SPACED_SEED); }
+		conf.set("REF_POINTERS", (opts.REF_POINTERS ? "1" : "0"));
+		conf.set("RECORD_V2",    (opts.RECORD_V2 ? "1" : "0"));
+		conf.set("GROUP_REFS",   (opts.GROUP_REFS ? "1" : "0"));
+
+		conf.setMapperClass(MapClass.class);
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(SeedKey.class);
+		conf.setMapOutputValueClass(BytesWritable.class);
+
+		// the alignment runs must send each read seed to the same partition
+		conf.setPartitionerClass(SeedPartitioner.class);
+
+		conf.setReducerClass(IdentityReducer.class);
+		conf.setOutputKeyClass(SeedKey.class);
+		conf.setOutputValueClass(BytesWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		Path oPath = new Path(storepath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old results");
+		FileSystem fs = FileSystem.get(conf);
+		fs.delete(oPath, true);
+
+		JobClient.runJob(conf);
+
+		// count the partitions actually written, the local runner only runs one reducer
+		int partitions = 0;
+		for (FileStatus status : fs.listStatus(oPath))
+		{
+			if (status.getPath().getName().startsWith("part-")) { partitions++; }
+		}
+
+		// record what the store was built with
+		Properties params = new Properties();
+		params.setProperty("SEED_LEN",   Integer.toString(SEED_LEN));
+		params.setProperty("FLANK_LEN",  Integer.toString(FLANK_LEN));
+		params.setProperty("REDUNDANCY", Integer.toString(opts.REDUNDANCY));
+		params.setProperty("PARTITIONS", Integer.toString(partitions));
+		params.setProperty("CANONICAL",  (opts.CANONICAL ? "1" : "0"));
+		params.setProperty("MINIMIZER_W", Integer.toString(opts.MINIMIZER_W));
+		params.setProperty("SPACED_SEED", (opts.SPACED_SEED != null) ? opts.SPACED_SEED : "0");
+		params.setProperty("REF_POINTERS", (opts.REF_POINTERS ? "1" : "0"));
+		params.setProperty("REF_PATH",   refPath(conf, opts.refpath));
+		params.setProperty("REF_STAMP",  refStamp(conf, opts.refpath));
+
+		OutputStream out = fs.create(new Path(oPath, PARAMS_FILE));
+		try
+		{
+			params.store(out, "CloudBurst reference seed store of " + opts.refpath);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		System.err.println("SeedStore Finished");
+	}
+
+
+	//------------------------- exists --------------------------
+	// true if a complete store is at storepath
+
+	public static boolean exists(JobConf conf, String storepath) throws IOException
+	{
+		Path p = new Path(storepath, PARAMS_FILE);
+		return p.getFileSystem(conf).exists(p);
+	}
+
+
+	//------------------------- refPath --------------------------
+	// The qualified reference path
+
+	private static String refPath(JobConf conf, String refpath) throws IOException
+	{
+		Path p = new Path(refpath);
+		return p.getFileSystem(conf).makeQualified(p).toString();
+	}
+
+
+	//------------------------- refStamp --------------------------
+	// The total size and the latest modification time of the reference
+	// files, which change when the reference is reconverted
+
+	private static String refStamp(JobConf conf, String refpath) throws IOException
+	{
+		Path p = new Path(refpath);
+		FileSystem fs = p.getFileSystem(conf);
+
+		FileStatus status = fs.getFileStatus(p);
+		FileStatus [] files = status.isDir() ? fs.listStatus(p) : new FileStatus [] { status };
+
+		long len = 0;
+		long mtime = 0;
+
+		for (FileStatus file : files)
+		{
+			if (file.isDir() || file.getPath().getName().startsWith(".") || file.getPath().getName().startsWith("_")) { continue; }
+
+			len += file.getLen();
+			mtime = Math.max(mtime, file.getModificationTime());
+		}
+
+		return len + "@" + mtime;
+	}
+
+
+	//------------------------- checkParams --------------------------
+	// Make sure the store matches the reference and the alignment settings,
+	// and return the number of partitions (reducers) to use with it
+
+	public static int checkParams(JobConf conf, AlignOptions opts, int SEED_LEN, int FLANK_LEN) throws IOException
+	{
+		String storepath = opts.SEED_STORE;
+		Path p = new Path(storepath, PARAMS_FILE);
+		Properties params = new Properties();
+
+		InputStream in = p.getFileSystem(conf).open(p);
+		try
+		{
+			params.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		checkParam(params, "SEED_LEN",   SEED_LEN,   storepath);
+		checkParam(params, "FLANK_LEN",  FLANK_LEN,  storepath);
+		checkParam(params, "REDUNDANCY", opts.REDUNDANCY, storepath);
+		checkParam(params, "CANONICAL",  (opts.CANONICAL ? 1 : 0), storepath);
+		checkParam(params, "MINIMIZER_W", opts.MINIMIZER_W, storepath);
+		checkParam(params, "SPACED_SEED", (opts.SPACED_SEED != null) ? opts.SPACED_SEED : "0", storepath);
+		checkParam(params, "REF_POINTERS", (opts.REF_POINTERS ? 1 : 0), storepath);
+		checkParam(params, "REF_PATH",   refPath(conf, opts.refpath),  storepath);
+		checkParam(params, "REF_STAMP",  refStamp(conf, opts.refpath), storepath);
+
+		return Integer.parseInt(params.getProperty("PARTITIONS"));
+	}
+
+	private static void checkParam(Properties params, String name, int expected, String storepath) throws IOException
+	{
+		checkParam(params, name, Integer.toString(expected), storepath);
+	}
+
+	private static void checkParam(Properties params, String name, String expected, String storepath) throws IOException
+	{
+		// stores from before a setting existed were built without it
+		String stored = params.getProperty(name, "0");
+
+		if (!stored.equals(expected))
+		{
+			throw new IOException("Seed store " + storepath + " was built with " + name + "=" + stored +
+					              " not " + expected + ", rebuild it for these settings");
+		}
+	}
+
+
+	//------------------------- Reader --------------------------
+	// Merge the reference tuples of one partition with the sorted seed groups
+	// of a reducer. The seeds must be asked for in increasing order.
+
+	public static class Reader
+	{
+		private SequenceFile.Reader reader;
+		private SeedKey key = new SeedKey();
+		private BytesWritable value = new BytesWritable();
+		private boolean more;
+
+		public Reader(JobConf conf, String storepath, int partition) throws IOException
+		{
+			Path p = new Path(storepath, "part-" + String.format("%05d", partition));
+			reader = new SequenceFile.Reader(p.getFileSystem(conf), p, conf);
+			more = reader.next(key, value);
+		}
+
+		//------------------------- collect --------------------------
+		// Add the reference tuples of seed to reftuples, skipping over the
+		// stored seeds that have no reads
+
+		public void collect(SeedKey seed, TupleBuffer reftuples) throws IOException
+		{
+			while (more && (key.compareSeed(seed) < 0))
+			{
+				more = reader.next(key, value);
+			}
+
+			while (more && (key.compareSeed(seed) == 0))
+			{
+				reftuples.add(value);
+				more = reader.next(key, value);
+			}
+		}
+
+		public void close() throws IOException
+		{
+			reader.close();
+		}
+	}
+
+
+	//------------------------- main --------------------------
+	// Build a store without running an alignment
+
+	public static void main(String[] args) throws IOException
+	{
+		if ((args.length != 7) && (args.length != 8))
+		{
+			System.err.println("Usage: SeedStore refpath storepath readlen k redundancy #mappers #partitions [canonical]");
+			return;
+		}
+
+		Timer t = new Timer();
+		AlignOptions opts = new AlignOptions();
+		opts.refpath          = args[0];
+		opts.SEED_STORE       = args[1];
+		opts.MIN_READ_LEN     = Integer.parseInt(args[2]);
+		opts.MAX_READ_LEN     = opts.MIN_READ_LEN;
+		opts.K                = Integer.parseInt(args[3]);
+		opts.REDUNDANCY       = Integer.parseInt(args[4]);
+		opts.NUM_MAP_TASKS    = Integer.parseInt(args[5]);
+		opts.NUM_REDUCE_TASKS = Integer.parseInt(args[6]);
+		opts.CANONICAL        = (args.length == 8) && args[7].equals("1");
+
+		build(opts);
+		System.err.println("Total Running time was " + t.get());
+	}
+}
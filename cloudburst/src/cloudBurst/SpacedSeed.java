@@ -0,0 +1,304 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+
+/// A spaced seed mask such as 1101101101101: the 1's are the bases packed
+/// into the shuffle key, the 0's are don't care positions that are only
+/// checked when the reducer extends the seed.
+///
+/// Contiguous seeds rely on the pigeon hole principle: with K mismatches one
+/// of the K+1 blocks of a read is exact. A spaced seed can span more of the
+/// read, so with the right mask and read windows one of the windows still has
+/// all of its care positions exact, while the key has more bases and so far
+/// fewer random hits. readOffsets picks a set of read windows that guarantees
+/// that for every placement of K mismatches, so the sensitivity is the same.
+///
+/// An indel inside a window shifts every care position after it, so a spaced
+/// seed is only as good as a contiguous seed of its span with differences.
+/// Spaced seeds are only used for k-mismatch alignments.
+///
+/// An N only blocks the windows with an N in a care position, so around an N
+/// a spaced seed usually finds more alignments than contiguous seeding.
+/// Nothing guarantees that past K mismatches and N's together, so main can
+/// check a spaced run against a contiguous one.
+
+public class SpacedSeed {
+
+	private String mask;
+	private int [] care; // offsets of the 1's in the mask
+	private int span;
+
+
+	//------------------------- Constructor --------------------------
+	public SpacedSeed(String mask)
+	{
+		this.mask = mask;
+		span = mask.length();
+
+		if ((span == 0) || (mask.charAt(0) != '1') || (mask.charAt(span-1) != '1'))
+		{
+			throw new IllegalArgumentException("Spaced seed mask must start and end with a 1: " + mask);
+		}
+
+		int weight = 0;
+		for (int i = 0; i < span; i++)
+		{
+			char c = mask.charAt(i);
+			if (c == '1') { weight++; }
+			else if (c != '0') { throw new IllegalArgumentException("Spaced seed mask can only have 0's and 1's: " + mask); }
+		}
+
+		care = new int[weight];
+		for (int i = 0, j = 0; i < span; i++)
+		{
+			if (mask.charAt(i) == '1') { care[j++] = i; }
+		}
+	}
+
+
+	public int span()       { return span; }
+	public int weight()     { return care.length; }
+	public int [] care()    { return care; }
+	public String toString() { return mask; }
+
+
+	//------------------------- hasN --------------------------
+	// true if the window at seq[start] has an N in a care position
+
+	public boolean hasN(byte [] seq, int start)
+	{
+		for (int c : care)
+		{
+			if (DNAString.letterToDNA[seq[start+c]] == DNAString.dna_n) { return true; }
+		}
+
+		return false;
+	}
+
+
+	//------------------------- repseed --------------------------
+	// true if the care positions of the window at seq[start] are all the same
+	// base, the spaced version of DNAString.repseed
+
+	public boolean repseed(byte [] seq, int start)
+	{
+		byte first = seq[start];
+
+		for (int c : care)
+		{
+			if (seq[start+c] != first) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- readOffsets --------------------------
+	// Offsets of the windows to seed a read of readlen bp with, so that any K
+	// mismatches leave at least one window with exact care positions. Starts
+	// from every window and drops the ones that aren't needed. Returns null if
+	// even every window isn't enough. Longer reads are seeded at the same
+	// offsets, their first readlen bp have at most K mismatches too.
+
+	public int [] readOffsets(int readlen, int K)
+	{
+		int numwindows = readlen - span + 1;
+		if (numwindows <= 0) { return null; }
+
+		BitSet windows = new BitSet(numwindows);
+		windows.set(0, numwindows);
+
+		if (hittable(windows, K)) { return null; }
+
+		for (int o = 0; o < numwindows; o++)
+		{
+			windows.clear(o);
+			if (hittable(windows, K)) { windows.set(o); }
+		}
+
+		int [] offsets = new int[windows.cardinality()];
+		for (int o = windows.nextSetBit(0), i = 0; o >= 0; o = windows.nextSetBit(o+1), i++)
+		{
+			offsets[i] = o;
+		}
+
+		return offsets;
+	}
+
+
+	//------------------------- hittable --------------------------
+	// true if k mismatches can hit a care position of every window in alive.
+	// One of them has to hit the first window, so try each of its care
+	// positions in turn: at most weight^k branches
+
+	private boolean hittable(BitSet alive, int k)
+	{
+		int w = alive.nextSetBit(0);
+		if (w < 0) { return true; }
+		if (k == 0) { return false; }
+
+		for (int c : care)
+		{
+			int p = w + c;
+
+			BitSet next = (BitSet) alive.clone();
+			for (int c2 : care)
+			{
+				if (p >= c2) { next.clear(p - c2); }
+			}
+
+			if (hittable(next, k-1)) { return true; }
+		}
+
+		return false;
+	}
+
+
+	//------------------------- parseOffsets --------------------------
+	// Offsets written by offsetsString, as passed in the job conf
+
+	public static int [] parseOffsets(String s)
+	{
+		String [] fields = s.split(",");
+		int [] offsets = new int[fields.length];
+
+		for (int i = 0; i < fields.length; i++)
+		{
+			offsets[i] = Integer.parseInt(fields[i]);
+		}
+
+		return offsets;
+	}
+
+	public static String offsetsString(int [] offsets)
+	{
+		StringBuilder b = new StringBuilder();
+
+		for (int i = 0; i < offsets.length; i++)
+		{
+			if (i > 0) { b.append(','); }
+			b.append(offsets[i]);
+		}
+
+		return b.toString();
+	}
+
+
+	//------------------------- readAlignments --------------------------
+	// The alignments in an output file or directory, as PrintAlignments prints them
+
+	private static Set<String> readAlignments(String filename, JobConf conf) throws IOException
+	{
+		Set<String> alignments = new HashSet<String>();
+		FileSystem fs = FileSystem.get(conf);
+
+		Path thePath = new Path(filename);
+		if (!fs.exists(thePath)) { throw new IOException(thePath + " not found"); }
+
+		FileStatus [] files = fs.getFileStatus(thePath).isDir() ? fs.listStatus(thePath) : new FileStatus [] { fs.getFileStatus(thePath) };
+
+		IntWritable key = new IntWritable();
+		BytesWritable value = new BytesWritable();
+		AlignmentRecord ar = new AlignmentRecord();
+
+		for (FileStatus file : files)
+		{
+			if (file.isDir() || file.getPath().getName().startsWith(".")) { continue; }
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, file.getPath(), conf);
+
+			while (reader.next(key, value))
+			{
+				ar.fromBytes(value);
+				alignments.add(ar.toAlignment(key.get()));
+			}
+
+			reader.close();
+		}
+
+		return alignments;
+	}
+
+
+	//------------------------- main --------------------------
+	// Compare a mask to contiguous seeding for reads of readlen bp with k
+	// mismatches: read seeds per strand, key weight, and the expected random
+	// hits per read strand in 1 Mbp of reference. Given the unfiltered
+	// alignments of a contiguous and a spaced run, also check that the spaced
+	// run found every alignment the contiguous one did
+
+	public static void main(String[] args) throws IOException
+	{
+		if ((args.length != 3) && (args.length != 5))
+		{
+			System.err.println("Usage: SpacedSeed mask readlen k [contiguous.out spaced.out]");
+			System.exit(-1);
+		}
+
+		SpacedSeed s = new SpacedSeed(args[0]);
+		int readlen = Integer.parseInt(args[1]);
+		int k       = Integer.parseInt(args[2]);
+
+		Timer t = new Timer();
+		int [] offsets = s.readOffsets(readlen, k);
+
+		int seedlen = readlen / (k+1);
+		double contighits = (k+1) * 1e6 / Math.pow(4, seedlen);
+
+		System.out.println("contiguous: span=" + seedlen + " weight=" + seedlen + " seeds=" + (k+1) +
+				           " random hits/Mbp=" + String.format("%.4g", contighits));
+
+		if (offsets == null)
+		{
+			System.out.println(s + ": can't guarantee a hit with " + k + " mismatches in " + readlen + " bp");
+		}
+		else
+		{
+			double hits = offsets.length * 1e6 / Math.pow(4, s.weight());
+
+			System.out.println(s + ": span=" + s.span() + " weight=" + s.weight() + " seeds=" + offsets.length +
+					           " random hits/Mbp=" + String.format("%.4g", hits) +
+					           " offsets=" + offsetsString(offsets));
+		}
+
+		System.err.println("took " + t.get());
+
+		if (args.length == 5)
+		{
+			JobConf conf = new JobConf(SpacedSeed.class);
+			Set<String> contiguous = readAlignments(args[3], conf);
+			Set<String> spacedout  = readAlignments(args[4], conf);
+
+			int missing = 0;
+			for (String a : contiguous)
+			{
+				if (!spacedout.contains(a))
+				{
+					System.out.println("Missing from " + args[4] + ": " + a);
+					missing++;
+				}
+			}
+
+			if (missing > 0)
+			{
+				System.out.println(missing + " of " + contiguous.size() + " contiguous alignments weren't found with " + s);
+				System.exit(1);
+			}
+
+			System.out.println("All " + contiguous.size() + " contiguous alignments found with " + s + ", plus " +
+					           (spacedout.size() - contiguous.size()) + " more");
+		}
+	}
+}
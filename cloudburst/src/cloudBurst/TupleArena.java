@@ -0,0 +1,456 @@
+package cloudBurst;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.BytesWritable;
+
+
+/// Reusable struct-of-arrays store for the MerRecords of a seed group.
+///
+/// The fields of each tuple are kept in primitive arrays, and the packed
+/// flanks are copied into one shared slab and referenced by offset and length,
+/// so adding a tuple allocates nothing once the arrays have grown. The
+/// aligner reads the flanks straight out of the slab.
+///
+/// clear() reuses the slab for the next group, so anything that caches by
+/// flank position (the bit-vector match vectors) has to be reset when the
+/// stamp changes.
+///
+/// With canonical seeds a read tuple can also be added reverse complemented
+/// (addRC), which turns it into the tuple the other strand of the read would
+/// have had at the same window.
+///
+/// v2 tuples (MerRecord.V2) are unpacked to the original 4 bit encoding as
+/// they are added, so the aligner always sees the same slab layout.
+
+public class TupleArena {
+
+	private static long nextstamp = 0;
+
+	private int size = 0;
+	private long stamp;
+
+	private byte [] flags   = new byte[16];
+	private int [] offsets  = new int[16];
+	private int [] ids      = new int[16];
+	private int [] lefts    = new int[16]; // slab offset of the left flank
+	private int [] leftlens = new int[16];
+	private int [] rights   = new int[16]; // slab offset of the right flank
+	private int [] rightlens = new int[16];
+
+	private byte [] slab = new byte[1024];
+	private int slabused = 0;
+
+	private byte [] v1 = null; // v2 tuples are unpacked here first
+
+	// the tuples with byte identical flanks, linked from the first of each,
+	// once groupFlanks has been called
+	private boolean grouped = false;
+	private boolean [] firstflanks = new boolean[16];
+	private int [] nextflanks = new int[16];
+	private int [] lastflanks = new int[16];
+	private int [] flanktable = new int[32];
+
+
+	//------------------------- Constructor --------------------------
+	public TupleArena()
+	{
+		stamp = newStamp();
+	}
+
+
+	//------------------------- newStamp --------------------------
+	private static synchronized long newStamp()
+	{
+		return nextstamp++;
+	}
+
+
+	//------------------------- clear --------------------------
+	// Empty the arena, keeping the buffers
+
+	public void clear()
+	{
+		size = 0;
+		slabused = 0;
+		stamp = newStamp();
+		grouped = false;
+	}
+
+
+	//------------------------- add --------------------------
+	// Unpack a serialized MerRecord (see MerRecord.toBytes) into the arena
+
+	public void add(BytesWritable t)
+	{
+		add(t.get(), 0, t.getSize());
+	}
+
+	public void add(byte [] raw, int start, int rawlen)
+	{
+		add(raw, start, rawlen, false);
+	}
+
+
+	//------------------------- addRC --------------------------
+	// Add a read tuple as the reverse complement strand: the left flank is
+	// the complement of the right flank and vice versa, since the flanks are
+	// stored reading away from the seed
+
+	public void addRC(BytesWritable t)
+	{
+		add(t.get(), 0, t.getSize(), true);
+	}
+
+
+	//------------------------- add --------------------------
+	private void add(byte [] raw, int start, int rawlen, boolean rc)
+	{
+		if (MerRecord.isV2(raw, start))
+		{
+			int maxlen = MerRecord.maxV1Len(rawlen);
+			if ((v1 == null) || (v1.length < maxlen)) { v1 = new byte[Math.max(2 * maxlen, 1024)]; }
+
+			rawlen = MerRecord.toV1(raw, start, v1);
+			raw = v1;
+			start = 0;
+		}
+
+		if (size == ids.length) { grow(); }
+
+		int flanklen = rawlen - 9;
+		if (slabused + flanklen > slab.length)
+		{
+			slab = Arrays.copyOf(slab, Math.max(2 * slab.length, slabused + flanklen));
+		}
+
+		flags[size] = rc ? (byte) (raw[start] | 0x10) : raw[start];
+
+		offsets[size] = (raw[start+1] & 0xFF) << 24
+		              | (raw[start+2] & 0xFF) << 16
+		              | (raw[start+3] & 0xFF) << 8
+		              | (raw[start+4] & 0xFF);
+
+		ids[size] = (raw[start+5] & 0xFF) << 24
+		          | (raw[start+6] & 0xFF) << 16
+		          | (raw[start+7] & 0xFF) << 8
+		          | (raw[start+8] & 0xFF);
+
+		int leftlen = 0;
+		while (raw[start+9+leftlen] != DNAString.hardstop) { leftlen++; }
+
+		if (rc)
+		{
+			int rightlen = flanklen - leftlen - 1;
+			int pos = slabused;
+
+			for (int i = 0; i < rightlen; i++) { slab[pos++] = DNAString.dnaComplement[raw[start+10+leftlen+i] & 0xFF]; }
+			slab[pos++] = DNAString.hardstop;
+			for (int i = 0; i < leftlen; i++)  { slab[pos++] = DNAString.dnaComplement[raw[start+9+i] & 0xFF]; }
+
+			leftlen = rightlen;
+		}
+		else
+		{
+			// copy both flanks and the hardstop between them in one go
+			System.arraycopy(raw, start+9, slab, slabused, flanklen);
+		}
+
+		lefts[size]     = slabused;
+		leftlens[size]  = leftlen;
+		rights[size]    = slabused + leftlen + 1;
+		rightlens[size] = flanklen - leftlen - 1;
+
+		slabused += flanklen;
+		size++;
+		grouped = false;
+	}
+
+
+	//------------------------- grow --------------------------
+	private void grow()
+	{
+		int n = 2 * ids.length;
+
+		flags     = Arrays.copyOf(flags, n);
+		offsets   = Arrays.copyOf(offsets, n);
+		ids       = Arrays.copyOf(ids, n);
+		lefts     = Arrays.copyOf(lefts, n);
+		leftlens  = Arrays.copyOf(leftlens, n);
+		rights    = Arrays.copyOf(rights, n);
+		rightlens = Arrays.copyOf(rightlens, n);
+
+		firstflanks = Arrays.copyOf(firstflanks, n);
+		nextflanks  = Arrays.copyOf(nextflanks, n);
+		lastflanks  = Arrays.copyOf(lastflanks, n);
+	}
+
+
+	//------------------------- footprint --------------------------
+	// Bytes of heap held by the arena's arrays, whether they are in use or not
+
+	public long footprint()
+	{
+		// flags, six ints, and the flank grouping boolean and two ints per tuple
+		long pertuple = 1 + 6 * 4 + 1 + 2 * 4;
+
+		return pertuple * ids.length + slab.length + 4L * flanktable.length + ((v1 == null) ? 0 : v1.length);
+	}
+
+
+	//------------------------- rawLen --------------------------
+	// Length of tuple i serialized by write
+
+	public int rawLen(int i)
+	{
+		return 9 + leftlens[i] + 1 + rightlens[i];
+	}
+
+
+	//------------------------- write --------------------------
+	// Serialize tuple i in the MerRecord.toBytes format, add() unpacks it to
+	// the same tuple again
+
+	public void write(int i, DataOutput out) throws IOException
+	{
+		out.writeByte(flags[i]);
+		out.writeInt(offsets[i]);
+		out.writeInt(ids[i]);
+
+		// both flanks and the hardstop between them are together in the slab
+		out.write(slab, lefts[i], leftlens[i] + 1 + rightlens[i]);
+	}
+
+
+	//------------------------- groupFlanks --------------------------
+	// Link up the tuples with the same flags and byte identical flanks, so an
+	// extension of the first one can be reused for the others. Repeats put
+	// many copies of the same flanks in one seed group. Returns the number of
+	// distinct flank pairs. Not thread safe, call it before sharing the arena
+
+	public int groupFlanks()
+	{
+		int tablesize = Integer.highestOneBit(Math.max(2 * size, 16)) * 2;
+		if (flanktable.length != tablesize) { flanktable = new int[tablesize]; }
+		Arrays.fill(flanktable, -1);
+
+		int mask = tablesize - 1;
+		int distinct = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			nextflanks[i]  = -1;
+			firstflanks[i] = false;
+
+			int start = lefts[i];
+			int len   = leftlens[i] + 1 + rightlens[i];
+
+			int h = flags[i];
+			for (int j = start; j < start + len; j++) { h = 31 * h + slab[j]; }
+			h ^= (h >>> 16);
+
+			for (h &= mask; ; h = (h + 1) & mask)
+			{
+				int first = flanktable[h];
+
+				if (first == -1)
+				{
+					flanktable[h]  = i;
+					firstflanks[i] = true;
+					lastflanks[i]  = i;
+					distinct++;
+					break;
+				}
+
+				if (sameFlanks(first, i))
+				{
+					nextflanks[lastflanks[first]] = i;
+					lastflanks[first] = i;
+					break;
+				}
+			}
+		}
+
+		grouped = true;
+		return distinct;
+	}
+
+
+	//------------------------- sameFlanks --------------------------
+	private boolean sameFlanks(int a, int b)
+	{
+		if ((flags[a] != flags[b]) || (leftlens[a] != leftlens[b]) || (rightlens[a] != rightlens[b])) { return false; }
+
+		int len = leftlens[a] + 1 + rightlens[a];
+		for (int i = 0; i < len; i++)
+		{
+			if (slab[lefts[a] + i] != slab[lefts[b] + i]) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- firstFlanks --------------------------
+	// true if no earlier tuple has the same flanks as i, always true if the
+	// arena hasn't been grouped
+
+	public boolean firstFlanks(int i)
+	{
+		return !grouped || firstflanks[i];
+	}
+
+
+	//------------------------- nextFlanks --------------------------
+	// The next tuple after i with the same flanks, or -1
+
+	public int nextFlanks(int i)
+	{
+		return grouped ? nextflanks[i] : -1;
+	}
+
+
+	//------------------------- accessors --------------------------
+
+	public int size()                  { return size; }
+	public long stamp()                { return stamp; }
+	public byte [] slab()              { return slab; }
+
+	public boolean isReference(int i)  { return (flags[i] & 0x01) == 0x01; }
+	public boolean isRC(int i)         { return (flags[i] & 0x10) == 0x10; }
+	public int seedStrand(int i)       { return (flags[i] >> 1) & 0x03; }
+	public int offset(int i)           { return offsets[i]; }
+	public int id(int i)               { return ids[i]; }
+	public int leftStart(int i)        { return lefts[i]; }
+	public int leftLen(int i)          { return leftlens[i]; }
+	public int rightStart(int i)       { return rights[i]; }
+	public int rightLen(int i)         { return rightlens[i]; }
+
+
+	//------------------------- sharesSeed --------------------------
+	// With canonical seeds, true if read tuple qi, on the strand it was added
+	// with, has the same seed as reference tuple ri of ra. Reference tuples
+	// are always on the forward strand
+
+	public boolean sharesSeed(int qi, TupleArena ra, int ri)
+	{
+		int qs = seedStrand(qi);
+		if (qs == SeedKey.PALINDROME) { return true; }
+
+		return (qs == ra.seedStrand(ri)) != isRC(qi);
+	}
+
+
+	//------------------------- toString --------------------------
+	// Same format as MerRecord.toString, for debugging
+
+	public String toString(int i)
+	{
+		return (isReference(i) ? '1' : '0') + ";" + (isRC(i) ? '1' : '0') + ";" + offset(i) + ";" + id(i) + ";" +
+		       DNAString.bytesToString(DNAString.dnaToArr(slab, leftStart(i), leftLen(i))) + ";" +
+		       DNAString.bytesToString(DNAString.dnaToArr(slab, rightStart(i), rightLen(i)));
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the tuples match MerRecord
+
+	public static void main(String[] args) throws java.io.IOException
+	{
+		byte [] seq = DNAString.stringToBytes("ACGTNACGTTGCAACGTACGGACTACGTACGTACGTAGGT");
+
+		TupleArena arena = new TupleArena();
+		MerRecord mr = new MerRecord();
+
+		for (int pass = 0; pass < 4; pass++)
+		{
+			arena.clear();
+			mr.v2 = (pass >= 2);
+
+			for (int i = 0; i < 1000; i++)
+			{
+				mr.id = i * 7;
+				mr.offset = i * 11;
+				mr.isReference = (i & 1) == 0;
+				mr.isRC = (i & 2) == 0;
+
+				arena.add(mr.toBytes(seq, 0, i % 15, 15, i % 25));
+			}
+
+			for (int i = 0; i < 1000; i++)
+			{
+				mr.id = i * 7;
+				mr.offset = i * 11;
+				mr.isReference = (i & 1) == 0;
+				mr.isRC = (i & 2) == 0;
+
+				mr.v2 = false;
+				String expected = new MerRecord(mr.toBytes(seq, 0, i % 15, 15, i % 25)).toString();
+				mr.v2 = (pass >= 2);
+
+				if (!arena.toString(i).equals(expected))
+				{
+					throw new java.io.IOException("Tuple " + i + ": " + arena.toString(i) + " != " + expected);
+				}
+			}
+
+			// the flags and flanks repeat every 300 tuples
+			int distinct = arena.groupFlanks();
+			if (distinct != 300) { throw new java.io.IOException(distinct + " distinct flank pairs, expected 300"); }
+
+			for (int i = 0; i < 1000; i++)
+			{
+				int next = arena.nextFlanks(i);
+				if (arena.firstFlanks(i) != (i < 300) || ((next != -1) && (next != i + 300)))
+				{
+					throw new java.io.IOException("Tuple " + i + " is grouped with " + next);
+				}
+			}
+		}
+
+		// addRC gives the tuple of the same window of the reverse complemented read
+		byte [] rcseq = DNAString.rcarr_new(seq);
+		int seedlen = 7;
+
+		arena.clear();
+		mr.isReference = false;
+
+		for (int w = 0; w + seedlen <= seq.length; w++)
+		{
+			mr.isRC = false;
+			mr.v2 = (w & 1) == 1;
+			arena.addRC(mr.toBytes(seq, 0, w, w+seedlen, seq.length-w-seedlen));
+
+			int j = seq.length - w - seedlen;
+			mr.isRC = true;
+			mr.v2 = false;
+			String expected = new MerRecord(mr.toBytes(rcseq, 0, j, j+seedlen, seq.length-j-seedlen)).toString();
+
+			if (!arena.toString(w).equals(expected))
+			{
+				throw new java.io.IOException("RC tuple " + w + ": " + arena.toString(w) + " != " + expected);
+			}
+		}
+
+		// write gives back the same tuples, reverse complemented ones too
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+		for (int i = 0; i < arena.size(); i++) { arena.write(i, out); }
+
+		byte [] raw = bytes.toByteArray();
+		TupleArena copy = new TupleArena();
+		for (int i = 0, pos = 0; i < arena.size(); pos += arena.rawLen(i), i++) { copy.add(raw, pos, arena.rawLen(i)); }
+
+		for (int i = 0; i < arena.size(); i++)
+		{
+			if (!copy.toString(i).equals(arena.toString(i)))
+			{
+				throw new java.io.IOException("Written tuple " + i + ": " + copy.toString(i) + " != " + arena.toString(i));
+			}
+		}
+
+		System.out.println("TupleArena matches MerRecord");
+	}
+}
@@ -0,0 +1,368 @@
+package cloudBurst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+
+
+/// Bounded buffer for the reference tuples of one seed group.
+///
+/// The tuples are kept unpacked in a TupleArena until the arena would need
+/// more than maxbytes of heap. Then they are written out to a local spill
+/// file, and every later tuple of the group goes straight to the file, so a
+/// group is only ever held in one place. The tuples of a spilled group are
+/// read back a block at a time. A repetitive seed costs I/O instead of heap,
+/// and can't run the task out of memory.
+
+public class TupleBuffer {
+
+	private long maxbytes;
+
+	private TupleArena tuples = new TupleArena();
+	private boolean spilled = false; // true once the tuples are in the spill file
+
+	private int size = 0;
+
+	private File spillfile = null;
+	private DataOutputStream spill = null;
+
+	// fills in the flanks of pointer tuples, if the mappers sent them
+	private RefFlanks flanks = null;
+	private byte [] expanded = null;
+
+	// steps through the tuples of a group record
+	private SeedGroups.Cursor groupcursor = new SeedGroups.Cursor();
+	private BytesWritable grouptuple = new BytesWritable();
+
+
+	//------------------------- Constructor --------------------------
+	// keep the tuples on the heap while the arena needs at most maxbytes
+
+	public TupleBuffer(long maxbytes)
+	{
+		this.maxbytes = maxbytes;
+	}
+
+
+	//------------------------- heapBytes --------------------------
+	// The default maxbytes, a quarter of the heap of this JVM. The task also
+	// needs the heap for the shuffle, the query blocks and their output
+
+	public static long heapBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+
+	//------------------------- setFlanks --------------------------
+	// Expand the pointer tuples added from now on with flanks
+
+	public void setFlanks(RefFlanks flanks, int maxtuple)
+	{
+		this.flanks = flanks;
+		expanded = new byte[maxtuple];
+	}
+
+
+	//------------------------- clear --------------------------
+	// Empty the buffer for the next seed group
+
+	public void clear() throws IOException
+	{
+		tuples.clear();
+		spilled = false;
+		size = 0;
+
+		if (spill != null)
+		{
+			spill.close();
+			spill = null;
+		}
+
+		if (spillfile != null)
+		{
+			spillfile.delete();
+			spillfile = null;
+		}
+	}
+
+
+	//------------------------- close --------------------------
+	public void close() throws IOException
+	{
+		clear();
+	}
+
+
+	//------------------------- add --------------------------
+	public void add(BytesWritable raw) throws IOException
+	{
+		if (MerRecord.isGroup(raw))
+		{
+			// a repeated seed of a reference chunk, see SeedGroups
+			groupcursor.reset(raw);
+			while (groupcursor.next())
+			{
+				grouptuple.set(groupcursor.raw(), groupcursor.start, groupcursor.len);
+				add(grouptuple);
+			}
+			return;
+		}
+
+		if ((flanks != null) && MerRecord.isPointer(raw))
+		{
+			add(expanded, flanks.expand(raw, expanded));
+			return;
+		}
+
+		add(raw.get(), raw.getSize());
+	}
+
+
+	//------------------------- add --------------------------
+	// Same, for the serialized tuple in the first len bytes of raw
+
+	private void add(byte [] raw, int len) throws IOException
+	{
+		size++;
+
+		if (spilled)
+		{
+			spill.writeInt(len);
+			spill.write(raw, 0, len);
+			return;
+		}
+
+		tuples.add(raw, 0, len);
+
+		// the arena doubles its arrays as it grows, and the old and new copies
+		// are both live while it does, so stop at a third of maxbytes
+		if (3 * tuples.footprint() > maxbytes)
+		{
+			spillArena();
+		}
+	}
+
+
+	//------------------------- spillArena --------------------------
+	// Write the tuples in the arena out to the spill file, and drop the arena
+	// so its heap is free while the group is aligned
+
+	private void spillArena() throws IOException
+	{
+		spillfile = File.createTempFile("cloudburst-tuples", ".spill");
+		spillfile.deleteOnExit();
+		spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillfile), 1 << 16));
+
+		for (int i = 0; i < tuples.size(); i++)
+		{
+			spill.writeInt(tuples.rawLen(i));
+			tuples.write(i, spill);
+		}
+
+		tuples = new TupleArena();
+		spilled = true;
+	}
+
+
+	//------------------------- size --------------------------
+	public int size()
+	{
+		return size;
+	}
+
+
+	//------------------------- isSpilled --------------------------
+	// true if the tuples have to be read back with a Cursor
+
+	public boolean isSpilled()
+	{
+		return spilled;
+	}
+
+
+	//------------------------- arena --------------------------
+	// The unpacked tuples, only while !isSpilled()
+
+	public TupleArena arena()
+	{
+		return tuples;
+	}
+
+
+	//------------------------- cursor --------------------------
+	// Read all of the tuples of a spilled group back in order
+
+	public Cursor cursor() throws IOException
+	{
+		if (!spilled) { throw new IOException("Only a spilled group is read back with a Cursor"); }
+
+		spill.flush();
+
+		return new Cursor(spillfile);
+	}
+
+
+	//------------------------- Cursor --------------------------
+
+	public static class Cursor
+	{
+		private DataInputStream in;
+
+		private byte [] buf = new byte[1024];
+
+		private Cursor(File spillfile) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillfile), 1 << 16));
+		}
+
+		//------------------------- next --------------------------
+		// Unpack up to max tuples into block, returns how many were read
+
+		public int next(TupleArena block, int max) throws IOException
+		{
+			block.clear();
+
+			while ((in != null) && (block.size() < max))
+			{
+				int len;
+
+				try
+				{
+					len = in.readInt();
+				}
+				catch (EOFException e)
+				{
+					close();
+					break;
+				}
+
+				if (len > buf.length) { buf = new byte[len * 2]; }
+				in.readFully(buf, 0, len);
+
+				block.add(buf, 0, len);
+			}
+
+			return block.size();
+		}
+
+		public void close() throws IOException
+		{
+			if (in != null)
+			{
+				in.close();
+				in = null;
+			}
+		}
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the tuples come back in order from the arena and the spill
+	// file, and that a group bigger than the heap doesn't run out of memory.
+	// Run it with a small heap, e.g. java -Xmx64m, for the last check
+
+	public static void main(String[] args) throws IOException
+	{
+		byte [] seq = DNAString.stringToBytes("ACGTACGTACGTACGTACGTACGTACGTACGT");
+
+		MerRecord mr = new MerRecord();
+		mr.isReference = true;
+
+		TupleBuffer buffer = new TupleBuffer(10000);
+
+		for (int n = 0; n <= 3; n++)
+		{
+			int num = (n == 0) ? 20 : 100000 * n;
+
+			buffer.clear();
+			for (int i = 0; i < num; i++) { buffer.add(tuple(mr, seq, i)); }
+
+			if (buffer.isSpilled() != (n > 0))
+			{
+				throw new IOException(num + " tuples in 10000 bytes, spilled: " + buffer.isSpilled());
+			}
+
+			check(buffer, seq, num);
+		}
+
+		buffer.close();
+
+		// each tuple takes about 60 bytes in the arena, add twice the heap worth of them
+		long heap = Runtime.getRuntime().maxMemory();
+		if (heap > (512L << 20))
+		{
+			System.out.println("TupleBuffer tuples match, run with -Xmx64m to check a group bigger than the heap");
+			return;
+		}
+
+		int num = (int) (2 * heap / 60);
+
+		buffer = new TupleBuffer(heapBytes());
+		for (int i = 0; i < num; i++) { buffer.add(tuple(mr, seq, i)); }
+
+		if (!buffer.isSpilled()) { throw new IOException(num + " tuples weren't spilled"); }
+
+		check(buffer, seq, num);
+		buffer.close();
+
+		System.out.println("TupleBuffer tuples match, " + num + " tuples spilled from a " + (heap >> 20) + " MB heap");
+	}
+
+
+	//------------------------- tuple --------------------------
+	private static BytesWritable tuple(MerRecord mr, byte [] seq, int i)
+	{
+		mr.id = i;
+		mr.offset = i * 3;
+		return mr.toBytes(seq, 0, i % 20, 10, 1 + i % 20);
+	}
+
+
+	//------------------------- check --------------------------
+	private static void check(TupleBuffer buffer, byte [] seq, int num) throws IOException
+	{
+		TupleArena block = buffer.arena();
+		TupleBuffer.Cursor cursor = null;
+
+		if (buffer.isSpilled())
+		{
+			block = new TupleArena();
+			cursor = buffer.cursor();
+			cursor.next(block, 16);
+		}
+
+		int i = 0;
+
+		while (block.size() > 0)
+		{
+			for (int r = 0; r < block.size(); r++)
+			{
+				if ((block.id(r) != i) || (block.offset(r) != i * 3) || !block.isReference(r) ||
+					(block.rightLen(r) != DNAString.arrToDNALen(1 + i % 20)))
+				{
+					throw new IOException("Tuple " + i + " came back as " + block.toString(r));
+				}
+				i++;
+			}
+
+			if (cursor == null) { break; }
+			cursor.next(block, 16);
+		}
+
+		if (cursor != null) { cursor.close(); }
+
+		if (i != num)
+		{
+			throw new IOException("Read " + i + " of " + num + " tuples");
+		}
+	}
+}